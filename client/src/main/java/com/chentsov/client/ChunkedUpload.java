@@ -0,0 +1,115 @@
+package com.chentsov.client;
+
+import com.chentsov.common.ChunkManifest;
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.ContentChunker;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.ManifestRequest;
+import com.chentsov.common.messages.responses.FileMessage;
+import com.chentsov.common.messages.responses.MissingChunks;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Uploads a large file as a list of content-defined chunks, see {@link ContentChunker}. The server assembles
+ * the file from the chunks it already stores, e.g. from the previous version of the file, and only the missing
+ * chunks are sent. An edit in the middle of a large file costs the chunks around the edit rather than the file.
+ */
+public final class ChunkedUpload {
+
+    private static final Logger logger = LogManager.getLogger(ChunkedUpload.class.getSimpleName());
+    //smaller files are uploaded as they are
+    private static final long MIN_FILE_SIZE = Long.getLong("geekcloud.dedupMinSize", 16 * 1024 * 1024); // 16 mb
+    //the server may index the previous version of the file before answering
+    private static final long ANSWER_TIMEOUT_MILLIS = Long.getLong("geekcloud.manifestTimeoutMillis", 60_000);
+
+    private final ContentChunker chunker = new ContentChunker();
+    //answers of the server by transfer ids
+    private final Map<String, CompletableFuture<MissingChunks>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param fileSize size of a file
+     * @return true if the file is to be uploaded as chunks. A manifest of the file must fit a single frame
+     */
+    public boolean accepts(long fileSize) {
+        return fileSize >= MIN_FILE_SIZE
+                && chunker.maxChunks(fileSize) * ChunkManifest.ENTRY_LENGTH <= ChunkSizer.FRAME_OVERHEAD;
+    }
+
+    /**
+     * Offers the file to the server and sends the chunks the server does not have
+     *
+     * @param consumer a consumer that sends the messages to the server
+     * @param sizer    picks the size of every part
+     * @return false if the file is small or the server has not answered, so it must be sent as usual
+     */
+    public boolean send(Path filePath, String relativePath, String destination, String transferId, long fileSize,
+                        Consumer<AbstractMessage> consumer, ChunkSizer sizer) {
+        if (!accepts(fileSize)) return false;
+        CompletableFuture<MissingChunks> answer = new CompletableFuture<>();
+        pending.put(transferId, answer);
+        try {
+            long start = System.nanoTime();
+            ChunkManifest manifest = chunker.chunk(filePath);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            logger.info("Chunked " + filePath + " into " + manifest.size() + " chunks at "
+                    + (fileSize * 1_000_000_000L / elapsed / (1024 * 1024)) + " mb/s");
+
+            consumer.accept(new ManifestRequest(destination, relativePath, transferId, manifest));
+            int[] missing = answer.get(ANSWER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).indices;
+            logger.info("Server needs " + missing.length + " of " + manifest.size() + " chunks of " + filePath);
+
+            //the chunks are read from the file again, so the file must be the one the manifest was made of
+            if (manifest.getFileSize() != fileSize || !transferId.equals(FileMessage.transferId(destination,
+                    relativePath, Files.size(filePath), Files.getLastModifiedTime(filePath).toMillis()))) {
+                FileMessage.resume(filePath, relativePath, destination, transferId, 0, consumer, sizer);
+                return true;
+            }
+            //adjacent chunks are sent as a single range
+            for (int i = 0; i < missing.length; ) {
+                int last = i;
+                while (last + 1 < missing.length && missing[last + 1] == missing[last] + 1) last++;
+                long from = manifest.getOffset(missing[i]);
+                long to = manifest.getOffset(missing[last]) + manifest.getLength(missing[last]);
+                FileMessage.sendRange(filePath, relativePath, destination, transferId, fileSize, from, to, consumer, sizer);
+                i = last + 1;
+            }
+            return true;
+        } catch (TimeoutException e) {
+            logger.warn("No answer to the manifest of " + filePath);
+            return false;
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pending.remove(transferId);
+        }
+    }
+
+    /**
+     * Passes an answer of the server to the waiting upload
+     *
+     * @param message a received MissingChunks
+     */
+    public void onMissingChunks(MissingChunks message) {
+        CompletableFuture<MissingChunks> answer = pending.get(message.transferId);
+        if (answer != null) answer.complete(message);
+    }
+
+}
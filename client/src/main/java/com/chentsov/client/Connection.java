@@ -1,13 +1,16 @@
 package com.chentsov.client;
 
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.codec.MessageInputStream;
+import com.chentsov.common.codec.MessageOutputStream;
 import com.chentsov.common.messages.AbstractMessage;
-import com.chentsov.common.messages.responses.FileMessage;
-import io.netty.handler.codec.serialization.ObjectDecoderInputStream;
-import io.netty.handler.codec.serialization.ObjectEncoderOutputStream;
+import com.chentsov.common.messages.requests.AuthRequest;
+import com.chentsov.common.messages.responses.AuthResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 /**
@@ -20,13 +23,21 @@ public class Connection {
     private static Connection connection;
 
     private final Socket socket;
-    private final ObjectEncoderOutputStream out;
-    private final ObjectDecoderInputStream in;
+    private final MessageOutputStream out;
+    private final MessageInputStream in;
+    //time the socket took to connect, an estimate of the round trip time
+    private final long rttMicros;
+    //sizes file parts sent over this connection, replaced with the negotiated one after login
+    private volatile ChunkSizer chunkSizer = new ChunkSizer();
 
     private static int port = 8189;
     private static String address = "127.0.0.1";
     private static final Logger logger = LogManager.getLogger(Connection.class.getSimpleName());
 
+    //session of the logged in user that survives reconnects
+    private static String sessionLogin;
+    private static String sessionToken;
+
     public static void setPort(int port) {
         Connection.port = port;
     }
@@ -39,67 +50,160 @@ public class Connection {
         return connection == null;
     }
 
-    private Connection() throws IOException {
+    /**
+     * Remembers the session, so a new connection logs in with the token instead of the password
+     *
+     * @param login a login of the user
+     * @param token a session token issued by the server
+     */
+    public static synchronized void setSession(String login, String token) {
+        sessionLogin = login;
+        sessionToken = token;
+    }
+
+    public static synchronized void clearSession() {
+        setSession(null, null);
+    }
+
+    public static synchronized boolean hasSession() {
+        return sessionToken != null;
+    }
+
+    private Connection(boolean isDataConnection) throws IOException {
             logger.info("Initializing connection to server");
-            this.socket = new Socket(address, port);
-            this.out = new ObjectEncoderOutputStream(socket.getOutputStream(), FileMessage.getMaxFileSize() * 2);
-            this.in = new ObjectDecoderInputStream(socket.getInputStream(), FileMessage.getMaxFileSize() * 2);
+            this.socket = new Socket();
+            long start = System.nanoTime();
+            socket.connect(new InetSocketAddress(address, port));
+            this.rttMicros = (System.nanoTime() - start) / 1000;
+            this.out = new MessageOutputStream(socket.getOutputStream());
+            this.in = new MessageInputStream(socket.getInputStream(),
+                    ChunkSizer.MAX_CHUNK_SIZE + ChunkSizer.FRAME_OVERHEAD);
             logger.info("Connection has been established");
+            if (hasSession() || isDataConnection) {
+                try {
+                    resumeSession(isDataConnection);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }
+    }
+
+    /**
+     * Logs in with the session token. If the server rejects it, the session is cleared
+     *
+     * @param isDataConnection true if the connection carries ranges of a large file only
+     * @throws IOException in case of I/O errors or if a data connection is rejected
+     */
+    private void resumeSession(boolean isDataConnection) throws IOException {
+        String login;
+        String token;
+        synchronized (Connection.class) {
+            login = sessionLogin;
+            token = sessionToken;
+        }
+        if (token == null) throw new IOException("No session to open a data connection");
+        sendMsg(new AuthRequest(login, token, rttMicros, isDataConnection));
+        AbstractMessage am = readObject();
+        if (am instanceof AuthResponse && ((AuthResponse) am).success) {
+            chunkSizer = ((AuthResponse) am).chunkSizer(rttMicros);
+            if (isDataConnection) return;
+            setSession(login, ((AuthResponse) am).sessionToken);
+            logger.info("Session resumed");
+        } else if (isDataConnection) {
+            throw new IOException("Data connection was rejected");
+        } else {
+            clearSession();
+            logger.info("Session token was rejected");
+        }
+    }
+
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    public ChunkSizer getChunkSizer() {
+        return chunkSizer;
+    }
+
+    public void setChunkSizer(ChunkSizer chunkSizer) {
+        this.chunkSizer = chunkSizer;
     }
 
     /**
      * Establishes client-server connection
      */
-    public static Connection get() throws IOException {
-        if (connection == null) connection = new Connection();
+    public static synchronized Connection get() throws IOException {
+        if (connection == null) connection = new Connection(false);
         return connection;
     }
 
+    /**
+     * Opens one more connection logged in with the session token. A data connection carries ranges
+     * of a large file next to the main connection, so one file is transferred over several TCP streams
+     *
+     * @return a new connection, it must be closed with {@link #disconnect()}
+     * @throws IOException in case of I/O errors or if there is no session
+     */
+    public static Connection openDataConnection() throws IOException {
+        return new Connection(true);
+    }
+
     /**
      * Closes the connection between client and server
      */
     public static void close() {
+        connection.disconnect();
+        connection = null;
+    }
+
+    /**
+     * Closes the streams and the socket of this connection
+     */
+    public void disconnect() {
         try {
-            connection.out.close();
+            out.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
         try {
-            connection.in.close();
+            in.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
         try {
-            connection.socket.close();
+            socket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        connection = null;
     }
 
     /**
-     * Sends message from client to server
+     * Sends message from client to server. Several threads may send over the same connection,
+     * so the whole frame is written under the connection lock.
      *
      * @param msg a message to be sent
+     * @return false if the message could not be sent
      */
-    public void sendMsg(AbstractMessage msg) {
+    public synchronized boolean sendMsg(AbstractMessage msg) {
         try {
-            out.writeObject(msg);
+            out.writeMessage(msg);
             out.flush();
+            return true;
         } catch (IOException e) {
             logger.warn("Send message failed");
+            return false;
         }
     }
 
     /**
-     * Reads an object from the input stream
+     * Reads a message from the input stream
      *
-     * @return A read object
-     * @throws ClassNotFoundException in case if class of received object was not found
-     * @throws IOException            in case of I/O errors
+     * @return A read message
+     * @throws IOException in case of I/O errors or a corrupted frame
      */
-    public AbstractMessage readObject() throws ClassNotFoundException, IOException {
-        return (AbstractMessage) in.readObject();
+    public AbstractMessage readObject() throws IOException {
+        return in.readMessage();
     }
 
 }
@@ -0,0 +1,222 @@
+package com.chentsov.client;
+
+import com.chentsov.common.BlockSignatures;
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.DeltaEncoder;
+import com.chentsov.common.DeltaFile;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.DeltaRequest;
+import com.chentsov.common.messages.requests.FileRequest;
+import com.chentsov.common.messages.requests.SignatureRequest;
+import com.chentsov.common.messages.responses.DeltaMessage;
+import com.chentsov.common.messages.responses.DeltaResult;
+import com.chentsov.common.messages.responses.SignatureResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Transfers a modified file as a delta against the copy the other side already has, the way rsync does.
+ * The side that has the copy sends the block signatures of it, the other side sends the instructions
+ * to copy the matching blocks and the literal bytes in between, see {@link DeltaEncoder}. A few edited bytes
+ * of a large file cost a few blocks rather than the whole file.
+ */
+public final class DeltaTransfer {
+
+    private static final Logger logger = LogManager.getLogger(DeltaTransfer.class.getSimpleName());
+    //smaller files are transferred as they are
+    private static final long MIN_FILE_SIZE = Long.getLong("geekcloud.deltaMinSize", 1024 * 1024); // 1 mb
+    //the server reads its copy before answering
+    private static final long ANSWER_TIMEOUT_MILLIS = Long.getLong("geekcloud.signatureTimeoutMillis", 60_000);
+
+    //answers of the server by transfer ids
+    private final Map<String, CompletableFuture<SignatureResponse>> pending = new ConcurrentHashMap<>();
+    //results of the uploaded deltas by transfer ids
+    private final Map<String, CompletableFuture<Boolean>> results = new ConcurrentHashMap<>();
+    //server paths of the requested downloads by transfer ids
+    private final Map<String, String> downloads = new ConcurrentHashMap<>();
+    //downloads being rebuilt, they are received by a single thread
+    private final Map<String, DeltaFile> deltaFiles = new HashMap<>();
+
+    /**
+     * Asks the server for the signatures of its copy, sends a delta against them and waits until it is applied
+     *
+     * @param consumer a consumer that sends the messages to the server
+     * @param sizer    picks the size of every part of the delta
+     * @return false if the file is small, the server has no copy or has not applied the delta,
+     * so it must be sent as usual
+     */
+    public boolean send(Path filePath, String relativePath, String destination, String transferId, long fileSize,
+                        Consumer<AbstractMessage> consumer, ChunkSizer sizer) {
+        if (fileSize < MIN_FILE_SIZE) return false;
+        CompletableFuture<SignatureResponse> answer = new CompletableFuture<>();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pending.put(transferId, answer);
+        results.put(transferId, result);
+        try {
+            consumer.accept(new SignatureRequest(transferId, destination + File.separator + relativePath));
+            BlockSignatures basis = answer.get(ANSWER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).signatures;
+            if (basis == null) return false;
+
+            long sent = 0;
+            try (DeltaEncoder encoder = new DeltaEncoder(filePath, basis)) {
+                while (!encoder.isDone()) {
+                    byte[] data = encoder.next(sizer.next());
+                    sent += data.length;
+                    consumer.accept(new DeltaMessage(transferId, destination, relativePath, basis.getBlockSize(),
+                            fileSize, encoder.isDone() ? encoder.getFileHash() : null, data));
+                }
+                logger.info("Sent a delta of " + filePath + ": " + sent + " bytes for " + encoder.getFileSize()
+                        + ", " + encoder.getCopiedBytes() + " bytes copied from the server copy");
+            }
+            //the copy may have been overwritten since its signatures were sent
+            if (result.get(ANSWER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+            logger.warn("Delta of " + relativePath + " is not applied, sending the whole file");
+            return false;
+        } catch (TimeoutException e) {
+            logger.warn("No answer of the server on the delta of " + relativePath);
+            return false;
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pending.remove(transferId);
+            results.remove(transferId);
+        }
+    }
+
+    /**
+     * Passes an answer of the server to the waiting upload
+     *
+     * @param message a received SignatureResponse
+     */
+    public void onSignatures(SignatureResponse message) {
+        CompletableFuture<SignatureResponse> answer = pending.get(message.transferId);
+        if (answer != null) answer.complete(message);
+    }
+
+    /**
+     * Passes a result of an uploaded delta to the waiting upload
+     *
+     * @param message a received DeltaResult
+     */
+    public void onResult(DeltaResult message) {
+        CompletableFuture<Boolean> result = results.get(message.transferId);
+        if (result != null) result.complete(message.isApplied);
+    }
+
+    /**
+     * @param stringPath  a server path of the file
+     * @param destination a local folder
+     * @return true if the folder has a copy of the file to download a delta against
+     */
+    public boolean hasBasis(String stringPath, String destination) {
+        try {
+            Path local = localCopy(stringPath, destination);
+            return Files.isRegularFile(local) && Files.size(local) >= MIN_FILE_SIZE
+                    && BlockSignatures.accepts(Files.size(local));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Requests a file as a delta against the local copy. Reads the whole copy, so it must not run on the UI thread
+     *
+     * @param consumer a consumer that sends the messages to the server
+     * @return false if the signatures of the copy could not be calculated, the file must be requested as usual
+     */
+    public boolean request(String stringPath, String destination, Consumer<AbstractMessage> consumer) {
+        try {
+            BlockSignatures signatures = BlockSignatures.of(localCopy(stringPath, destination));
+            String transferId = UUID.randomUUID().toString();
+            downloads.put(transferId, stringPath);
+            consumer.accept(new DeltaRequest(transferId, stringPath, destination, signatures));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Applies a received part of a download. If the rebuilt file does not match, the local copy is kept
+     * and the whole file is requested
+     *
+     * @param message      a received part of the delta
+     * @param transfersDir a folder that keeps the rebuilt file until complete
+     * @param consumer     a consumer that sends the messages to the server
+     * @param operation    an operation that runs when the file is rebuilt
+     * @throws IOException in case of I/O errors
+     */
+    public void receive(DeltaMessage message, Path transfersDir, Consumer<AbstractMessage> consumer,
+                        Runnable operation) throws IOException {
+        String stringPath = downloads.get(message.transferId);
+        if (stringPath == null) return;
+        DeltaFile deltaFile = deltaFiles.get(message.transferId);
+        try {
+            if (deltaFile == null) {
+                deltaFile = new DeltaFile(Paths.get(message.destination + File.separator + message.relativePath),
+                        message.blockSize, message.fileSize, transfersDir, message.transferId);
+                deltaFiles.put(message.transferId, deltaFile);
+            }
+            deltaFile.apply(message.getData());
+            if (!message.isLast()) return;
+
+            deltaFiles.remove(message.transferId);
+            downloads.remove(message.transferId);
+            if (deltaFile.complete(message.fileHash)) {
+                logger.info("File successfully rebuilt from a delta: " + message.relativePath);
+                operation.run();
+                return;
+            }
+            logger.warn("Rebuilt file does not match, requesting the whole file: " + message.relativePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            deltaFiles.remove(message.transferId);
+            downloads.remove(message.transferId);
+            if (deltaFile != null) deltaFile.close();
+        }
+        consumer.accept(new FileRequest(Collections.singletonList(stringPath), message.destination));
+    }
+
+    /**
+     * Drops the downloads being rebuilt, e.g. when the connection is lost. The local copies stay as they were
+     */
+    public void closeAll() {
+        for (DeltaFile deltaFile : deltaFiles.values()) {
+            try {
+                deltaFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        deltaFiles.clear();
+        downloads.clear();
+    }
+
+    private static Path localCopy(String stringPath, String destination) {
+        return Paths.get(destination, Paths.get(stringPath).getFileName().toString());
+    }
+
+}
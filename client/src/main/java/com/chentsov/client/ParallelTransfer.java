@@ -0,0 +1,194 @@
+package com.chentsov.client;
+
+import com.chentsov.common.FileParts;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.FileRequest;
+import com.chentsov.common.messages.responses.FileMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Transfers a large file over several data connections at once. The file is split into disjoint byte ranges,
+ * one per connection, and the receiver writes every part at its offset. A single TCP stream rarely fills
+ * a link with a high round trip time and packet loss, several streams share the bandwidth between them.
+ * If a range fails, the caller sends the file over the main connection; the receiver keeps the data
+ * committed so far, see {@link FileParts}.
+ */
+public final class ParallelTransfer implements FileMessage.RangeSender {
+
+    private static final Logger logger = LogManager.getLogger(ParallelTransfer.class.getSimpleName());
+    //count of data connections a single file is transferred over, 1 disables parallel transfers
+    private static final int CONNECTIONS = Integer.getInteger("geekcloud.parallelConnections", 4);
+    //smaller files are transferred over the main connection
+    private static final long MIN_FILE_SIZE = Long.getLong("geekcloud.parallelMinSize", 64 * 1024 * 1024); // 64 mb
+
+    private final int connections;
+    private final long minFileSize;
+
+    public ParallelTransfer() {
+        this(CONNECTIONS, MIN_FILE_SIZE);
+    }
+
+    /**
+     * @param connections count of data connections per file
+     * @param minFileSize the smallest file to be transferred in parallel
+     */
+    public ParallelTransfer(int connections, long minFileSize) {
+        this.connections = connections;
+        this.minFileSize = minFileSize;
+    }
+
+    /**
+     * @param fileSize size of a file
+     * @return true if the file is to be transferred in parallel
+     */
+    public boolean isParallel(long fileSize) {
+        return connections > 1 && fileSize >= minFileSize;
+    }
+
+    /**
+     * Uploads a large file, every data connection sends its own range
+     *
+     * @return false if the file is small or has not been sent completely
+     */
+    @Override
+    public boolean send(Path filePath, String relativePath, String destination, String transferId, long fileSize) {
+        if (!isParallel(fileSize)) return false;
+        List<Connection> opened = open();
+        if (opened.isEmpty()) return false;
+
+        AtomicBoolean failed = new AtomicBoolean();
+        long start = System.currentTimeMillis();
+        run(opened, fileSize, (connection, from, to) -> {
+            FileMessage.sendRange(filePath, relativePath, destination, transferId, fileSize, from, to, msg -> {
+                if (!connection.sendMsg(msg)) failed.set(true);
+            }, connection.getChunkSizer());
+            return !failed.get();
+        }, failed);
+        logTime(filePath.toString(), fileSize, opened.size(), start, failed.get());
+        return !failed.get();
+    }
+
+    /**
+     * Downloads a large file, every data connection requests its own range
+     *
+     * @param stringPath   a server path of the file
+     * @param destination  a local folder to store the file to
+     * @param fileSize     size of the file
+     * @param transfersDir a folder that keeps partially received files
+     * @param operation    an operation that runs when the file is received
+     * @return false if the file has not been received completely
+     */
+    public boolean download(String stringPath, String destination, long fileSize, Path transfersDir, Runnable operation) {
+        if (!isParallel(fileSize)) return false;
+        List<Connection> opened = open();
+        if (opened.isEmpty()) return false;
+
+        Map<Path, FileParts> fileParts = new ConcurrentHashMap<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        long start = System.currentTimeMillis();
+        run(opened, fileSize, (connection, from, to) -> {
+            if (!connection.sendMsg(new FileRequest(stringPath, destination, from, to - from))) return false;
+            while (!failed.get()) {
+                AbstractMessage am = connection.readObject();
+                if (!(am instanceof FileMessage)) continue;
+                FileMessage fm = (FileMessage) am;
+                FileMessage.receive(fm, fileParts, transfersDir, operation);
+                //the file may have changed on the server, so the range ends with the file
+                if (fm.getOffset() + fm.getData().length >= Math.min(to, fm.getFileSize())) return true;
+            }
+            return false;
+        }, failed);
+        FileParts.closeAll(fileParts);
+        logTime(stringPath, fileSize, opened.size(), start, failed.get());
+        return !failed.get();
+    }
+
+    /**
+     * Opens the data connections. If some of them fail, the rest are used
+     *
+     * @return opened connections, empty if less than two could be opened
+     */
+    private List<Connection> open() {
+        List<Connection> opened = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            try {
+                opened.add(Connection.openDataConnection());
+            } catch (IOException e) {
+                logger.warn("Data connection failed: " + e.getMessage());
+                break;
+            }
+        }
+        if (opened.size() > 1) return opened;
+        opened.forEach(Connection::disconnect);
+        return new ArrayList<>();
+    }
+
+    /**
+     * Transfers the ranges in a thread per connection and closes the connections
+     *
+     * @param opened   data connections, one range per connection
+     * @param fileSize size of the file
+     * @param range    transfers a single range
+     * @param failed   set if any range fails, so the others stop early
+     */
+    private static void run(List<Connection> opened, long fileSize, RangeTask range, AtomicBoolean failed) {
+        long rangeSize = (fileSize + opened.size() - 1) / opened.size();
+        List<Thread> threads = new ArrayList<>(opened.size());
+        for (int i = 0; i < opened.size(); i++) {
+            Connection connection = opened.get(i);
+            long from = Math.min(fileSize, i * rangeSize);
+            long to = Math.min(fileSize, from + rangeSize);
+            Thread thread = new Thread(() -> {
+                try {
+                    if (!range.transfer(connection, from, to)) failed.set(true);
+                } catch (IOException e) {
+                    logger.warn("Range " + from + "-" + to + " failed: " + e.getMessage());
+                    failed.set(true);
+                } finally {
+                    connection.disconnect();
+                }
+            }, "range-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.set(true);
+                return;
+            }
+        }
+    }
+
+    private static void logTime(String file, long fileSize, int connections, long start, boolean failed) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.info((failed ? "Failed to transfer " : "Transferred ") + file + " over " + connections + " connections in "
+                + elapsed + " ms, " + (fileSize / 1024 * 1000 / elapsed) + " kb/s");
+    }
+
+    /**
+     * Transfers a range of the file over a data connection
+     */
+    private interface RangeTask {
+
+        /**
+         * @return false if the range has not been transferred
+         */
+        boolean transfer(Connection connection, long from, long to) throws IOException;
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.chentsov.client;
+
+import com.chentsov.client.util.ContentHashes;
+import com.chentsov.common.MerkleEntry;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.MerkleRequest;
+import com.chentsov.common.messages.responses.MerkleResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Compares a local folder with a cloud folder by their Merkle hashes, see {@link MerkleEntry}. The server
+ * is asked for the hashes of the children of the differing directories only, a whole level of the trees
+ * in a single request, so a comparison costs a round trip per level of the changed subtrees and the work
+ * is proportional to the changes rather than to the size of the trees.
+ */
+public final class TreeComparison {
+
+    private static final Logger logger = LogManager.getLogger(TreeComparison.class.getSimpleName());
+    //limit of the directories asked for in a single request
+    private static final int PAGE_PATHS = Integer.getInteger("geekcloud.merklePageSize", 1000);
+    //the server may hash its files before answering
+    private static final long ANSWER_TIMEOUT_MILLIS = Long.getLong("geekcloud.merkleTimeoutMillis", 60_000);
+
+    private final ContentHashes hashes = ContentHashes.getInstance();
+    //answers of the server by request ids
+    private final Map<String, Answer> pending = new ConcurrentHashMap<>();
+
+    /**
+     * An answer to a request that is joined from the responses of the server
+     */
+    private static final class Answer {
+        private final List<MerkleResponse.Directory> directories = new ArrayList<>();
+        private final CompletableFuture<List<MerkleResponse.Directory>> completed = new CompletableFuture<>();
+        //the last directory is continued by the next response
+        private boolean isContinued;
+    }
+
+    /**
+     * Finds the files and folders that differ between the local folder and the cloud folder.
+     * Reads the whole local folder, so it must not run on the UI thread
+     *
+     * @param local    a local folder
+     * @param cloud    a server path of the cloud folder
+     * @param consumer a consumer that sends the messages to the server
+     * @return the differences described by their relative paths, or null if the server has not answered
+     */
+    public List<String> compare(Path local, String cloud, Consumer<AbstractMessage> consumer) {
+        long start = System.currentTimeMillis();
+        List<String> differences = new ArrayList<>();
+        //children of the local directories by relative paths, every local directory is listed once
+        Map<String, List<MerkleEntry>> localTree = new HashMap<>();
+        List<String> level = Collections.singletonList("");
+        int roundTrips = 0;
+        int compared = 0;
+        try {
+            String localHash = MerkleEntry.directoryHash(localChildren(local, "", localTree));
+            while (!level.isEmpty()) {
+                List<MerkleResponse.Directory> answers = request(level, cloud, consumer);
+                roundTrips++;
+                compared += level.size();
+                List<String> nextLevel = new ArrayList<>();
+                for (int i = 0; i < level.size(); i++) {
+                    String relativePath = level.get(i);
+                    MerkleResponse.Directory answer = answers.get(i);
+                    if (answer.hash == null) {
+                        differences.add("Only local: " + display(relativePath));
+                    } else if (!(relativePath.isEmpty() && answer.hash.equals(localHash))) {
+                        compareChildren(relativePath, localTree.get(relativePath), answer.children, differences, nextLevel);
+                    }
+                }
+                level = nextLevel;
+            }
+            logger.info("Compared " + local + " with " + cloud + ": " + differences.size() + " differences, "
+                    + compared + " directories in " + roundTrips + " round trips, "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return differences;
+        } catch (TimeoutException e) {
+            logger.warn("No Merkle hashes of " + cloud);
+            return null;
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void compareChildren(String relativePath, List<MerkleEntry> localChildren, List<MerkleEntry> cloudChildren,
+                                 List<String> differences, List<String> nextLevel) {
+        Map<String, MerkleEntry> cloudByName = new HashMap<>();
+        for (MerkleEntry child : cloudChildren) {
+            cloudByName.put(child.name, child);
+        }
+        for (MerkleEntry child : localChildren) {
+            String childPath = relativePath.isEmpty() ? child.name : relativePath + File.separator + child.name;
+            MerkleEntry cloudChild = cloudByName.remove(child.name);
+            if (cloudChild == null) {
+                differences.add("Only local: " + childPath);
+            } else if (child.isDirectory && cloudChild.isDirectory) {
+                if (!child.hash.equals(cloudChild.hash)) nextLevel.add(childPath);
+            } else if (child.isDirectory != cloudChild.isDirectory || child.size != cloudChild.size
+                    || !child.hash.equals(cloudChild.hash)) {
+                differences.add("Changed: " + childPath);
+            }
+        }
+        for (MerkleEntry cloudChild : cloudByName.values()) {
+            differences.add("Only in the cloud: "
+                    + (relativePath.isEmpty() ? cloudChild.name : relativePath + File.separator + cloudChild.name));
+        }
+    }
+
+    private List<MerkleResponse.Directory> request(List<String> level, String cloud, Consumer<AbstractMessage> consumer)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        List<String> ids = new ArrayList<>();
+        try {
+            //all the pages of the level are sent before the first answer is awaited
+            for (int from = 0; from < level.size(); from += PAGE_PATHS) {
+                List<String> paths = new ArrayList<>();
+                for (String relativePath : level.subList(from, Math.min(level.size(), from + PAGE_PATHS))) {
+                    paths.add(relativePath.isEmpty() ? cloud : cloud + File.separator + relativePath);
+                }
+                String id = UUID.randomUUID().toString();
+                pending.put(id, new Answer());
+                ids.add(id);
+                consumer.accept(new MerkleRequest(id, paths));
+            }
+            List<MerkleResponse.Directory> answers = new ArrayList<>(level.size());
+            long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT_MILLIS;
+            for (String id : ids) {
+                long timeout = Math.max(1, deadline - System.currentTimeMillis());
+                answers.addAll(pending.get(id).completed.get(timeout, TimeUnit.MILLISECONDS));
+            }
+            if (answers.size() != level.size()) throw new ExecutionException(new IOException("Invalid Merkle response"));
+            return answers;
+        } finally {
+            ids.forEach(pending::remove);
+        }
+    }
+
+    /**
+     * Lists the children of a local directory with their hashes, the same way the server does
+     */
+    private List<MerkleEntry> localChildren(Path directory, String relativePath, Map<String, List<MerkleEntry>> localTree)
+            throws IOException {
+        List<MerkleEntry> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                String name = child.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    List<MerkleEntry> grandChildren = localChildren(child,
+                            relativePath.isEmpty() ? name : relativePath + File.separator + name, localTree);
+                    children.add(new MerkleEntry(name, true, MerkleEntry.directorySize(grandChildren),
+                            MerkleEntry.directoryHash(grandChildren)));
+                } else if (attributes.isRegularFile()) {
+                    children.add(new MerkleEntry(name, false, attributes.size(), hashes.get(child, attributes)));
+                }
+            }
+        }
+        children.sort(MerkleEntry.BY_NAME);
+        localTree.put(relativePath, children);
+        return children;
+    }
+
+    /**
+     * Joins a response of the server to the answer, the waiting comparison gets it with the last response.
+     * Responses come from the single connection thread in their order
+     *
+     * @param message a received MerkleResponse
+     */
+    public void onMerkleResponse(MerkleResponse message) {
+        Answer answer = pending.get(message.id);
+        if (answer == null) return;
+        for (MerkleResponse.Directory directory : message.directories) {
+            if (answer.isContinued) {
+                answer.directories.get(answer.directories.size() - 1).children.addAll(directory.children);
+            } else {
+                answer.directories.add(new MerkleResponse.Directory(directory.path, directory.hash,
+                        new ArrayList<>(directory.children)));
+            }
+            answer.isContinued = directory.isContinued;
+        }
+        if (message.isLast) answer.completed.complete(answer.directories);
+    }
+
+    private static String display(String relativePath) {
+        return relativePath.isEmpty() ? File.separator : relativePath;
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.chentsov.client;
+
+import com.chentsov.client.util.ContentHashes;
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.FileTreeWalker;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.PreflightRequest;
+import com.chentsov.common.messages.responses.NeededFiles;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Asks the server which files of an upload it needs before they are sent. The selection is listed with sizes
+ * and content hashes, and the server answers with the files it does not have. All the pages of the list are sent
+ * before the first answer is awaited, so a repeated upload of a mostly unchanged tree costs a single round trip
+ * and the changed files.
+ */
+public final class UploadPreflight {
+
+    private static final Logger logger = LogManager.getLogger(UploadPreflight.class.getSimpleName());
+    //limits of a single page, so a page fits a frame
+    private static final int PAGE_ENTRIES = Integer.getInteger("geekcloud.preflightPageSize", 2000);
+    private static final int PAGE_BYTES = ChunkSizer.FRAME_OVERHEAD / 2;
+    //the server may hash its copies before answering
+    private static final long ANSWER_TIMEOUT_MILLIS = Long.getLong("geekcloud.preflightTimeoutMillis", 60_000);
+
+    private final ContentHashes hashes = ContentHashes.getInstance();
+    //answers of the server by page ids
+    private final Map<String, CompletableFuture<NeededFiles>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Lists the selected files to the server and collects the answers
+     *
+     * @param roots       selected files and folders
+     * @param source      a local folder the relative paths of the files are calculated from
+     * @param destination a server folder the files are uploaded to
+     * @param consumer    a consumer that sends the messages to the server
+     * @return the files to be sent or null if the server has not answered, so all the files must be sent
+     */
+    public Set<Path> neededFiles(List<Path> roots, String source, String destination, Consumer<AbstractMessage> consumer) {
+        long start = System.currentTimeMillis();
+        List<String> ids = new ArrayList<>();
+        List<List<Path>> pages = new ArrayList<>();
+        try (FileTreeWalker walker = new FileTreeWalker(roots)) {
+            List<PreflightRequest.Entry> entries = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            int bytes = 0;
+            while (walker.hasNext()) {
+                FileTreeWalker.Entry entry = walker.next();
+                if (entry.isDirectory()) continue;
+                String relativePath = entry.path.toString().substring(source.length());
+                String contentHash = hashes.get(entry.path, entry.attributes);
+                entries.add(new PreflightRequest.Entry(relativePath, entry.size(), contentHash));
+                files.add(entry.path);
+                bytes += relativePath.length() * 3 + PreflightRequest.ENTRY_OVERHEAD;
+                if (entries.size() < PAGE_ENTRIES && bytes < PAGE_BYTES) continue;
+                sendPage(destination, entries, files, ids, pages, consumer);
+                entries = new ArrayList<>();
+                files = new ArrayList<>();
+                bytes = 0;
+            }
+            if (!entries.isEmpty()) sendPage(destination, entries, files, ids, pages, consumer);
+
+            Set<Path> needed = new HashSet<>();
+            long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT_MILLIS;
+            int total = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                long timeout = Math.max(1, deadline - System.currentTimeMillis());
+                NeededFiles answer = pending.get(ids.get(i)).get(timeout, TimeUnit.MILLISECONDS);
+                List<Path> page = pages.get(i);
+                for (int index : answer.indices) {
+                    if (index >= 0 && index < page.size()) needed.add(page.get(index));
+                }
+                total += page.size();
+            }
+            logger.info("Server needs " + needed.size() + " of " + total + " files, pre-flight took "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return needed;
+        } catch (TimeoutException e) {
+            logger.warn("No answer to the pre-flight of " + roots);
+            return null;
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            ids.forEach(pending::remove);
+        }
+    }
+
+    private void sendPage(String destination, List<PreflightRequest.Entry> entries, List<Path> files, List<String> ids,
+                          List<List<Path>> pages, Consumer<AbstractMessage> consumer) {
+        String id = UUID.randomUUID().toString();
+        pending.put(id, new CompletableFuture<>());
+        ids.add(id);
+        pages.add(files);
+        consumer.accept(new PreflightRequest(id, destination, entries));
+    }
+
+    /**
+     * Passes an answer of the server to the waiting upload
+     *
+     * @param message a received NeededFiles
+     */
+    public void onNeededFiles(NeededFiles message) {
+        CompletableFuture<NeededFiles> answer = pending.get(message.id);
+        if (answer != null) answer.complete(message);
+    }
+
+}
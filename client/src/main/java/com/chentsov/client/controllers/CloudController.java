@@ -1,14 +1,32 @@
 package com.chentsov.client.controllers;
 
+import com.chentsov.client.ChunkedUpload;
 import com.chentsov.client.Connection;
+import com.chentsov.client.DeltaTransfer;
+import com.chentsov.client.ParallelTransfer;
+import com.chentsov.client.TreeComparison;
+import com.chentsov.client.UploadPreflight;
+import com.chentsov.client.util.ArchiveReceiver;
 import com.chentsov.client.util.GUIHelper;
+import com.chentsov.client.util.TransferTracker;
 import com.chentsov.client.util.WatcherService;
+import com.chentsov.common.ChunkSizer;
 import com.chentsov.common.FileItem;
 import com.chentsov.common.FileParts;
 import com.chentsov.common.messages.AbstractMessage;
 import com.chentsov.common.messages.requests.*;
+import com.chentsov.common.messages.responses.ArchiveChunk;
+import com.chentsov.common.messages.responses.DeltaMessage;
+import com.chentsov.common.messages.responses.DeltaResult;
+import com.chentsov.common.messages.responses.FileChangeEvent;
+import com.chentsov.common.messages.responses.FileListDelta;
 import com.chentsov.common.messages.responses.FileMessage;
 import com.chentsov.common.messages.responses.FileListResponse;
+import com.chentsov.common.messages.responses.MerkleResponse;
+import com.chentsov.common.messages.responses.MissingChunks;
+import com.chentsov.common.messages.responses.NeededFiles;
+import com.chentsov.common.messages.responses.ResumeResponse;
+import com.chentsov.common.messages.responses.SignatureResponse;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -24,6 +42,7 @@ import java.io.*;
 import java.net.URL;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.chentsov.client.util.GUIHelper.*;
@@ -32,14 +51,40 @@ public class CloudController extends AbstractController implements Initializable
 
     private static final Logger logger = LogManager.getLogger(CloudController.class.getSimpleName());
     private final static String PATH_TO_STORAGE = "client/local_storage";
+    //partially downloaded files are kept here until complete, see FileParts
+    private final static Path TRANSFERS_PATH = Paths.get(System.getProperty("geekcloud.transfersPath", "client/transfers"));
+    private final static int RECONNECT_ATTEMPTS = 5;
+    private final static long RECONNECT_DELAY_MS = 1000;
+    private final static int MAX_SHOWN_DIFFERENCES = 30;
 
     private String currentLocalPath = PATH_TO_STORAGE;
     private String currentCloudPath = "";
+    //the root of the user's cloud storage, downloaded files are sent with paths relative to it
+    private String storagePath = "";
+    //a directory and a version of the complete cloud listing shown, the version is 0 while pages are received
+    private volatile String cloudListingPath;
+    private volatile long cloudListingVersion;
+    //true while changes requested because of a nested change event are not received, so events do not flood the server
+    private boolean isChangeRefreshRequested;
 
     private final ObservableList<FileItem> localFiles = FXCollections.observableArrayList();
     private final ObservableList<FileItem> cloudFiles = FXCollections.observableArrayList();
     //a map that contains parts of different downloaded parts. When all the parts are downloaded, they are to be merged
     private final Map<Path, FileParts> fileParts = new HashMap<>();
+    //an archive being received, archives of one connection come one after another
+    private ArchiveReceiver archiveReceiver;
+    //large files to be continued after a connection loss
+    private final TransferTracker transferTracker = new TransferTracker();
+    //large files are transferred over several data connections at once
+    private final ParallelTransfer parallelTransfer = new ParallelTransfer();
+    //large files are offered to the server as chunks, only the chunks it does not have are sent
+    private final ChunkedUpload chunkedUpload = new ChunkedUpload();
+    //modified files are transferred as a delta against the copy the other side has
+    private final DeltaTransfer deltaTransfer = new DeltaTransfer();
+    //files the server already has are not uploaded again
+    private final UploadPreflight uploadPreflight = new UploadPreflight();
+    //local and cloud folders are compared by their Merkle hashes
+    private final TreeComparison treeComparison = new TreeComparison();
 
     private WatcherService watcherService;
 
@@ -78,7 +123,11 @@ public class CloudController extends AbstractController implements Initializable
     @FXML
     Label cloudCurrentPathLabel;
 
-    private Connection connection;
+    private volatile Connection connection;
+
+    public Connection getConnection() {
+        return connection;
+    }
 
     public String getCurrentLocalPath() {
         return currentLocalPath;
@@ -97,6 +146,27 @@ public class CloudController extends AbstractController implements Initializable
         this.currentCloudPath = currentCloudPath;
     }
 
+    public void setStoragePath(String storagePath) {
+        this.storagePath = storagePath;
+    }
+
+    /**
+     * Creates a sender of large files. A file the server has a copy of is sent as a delta against the copy.
+     * Otherwise it is offered as chunks, so the chunks the server already stores are not sent, and a file
+     * the server has not accepted is sent over several data connections
+     *
+     * @param source a local folder the relative paths of the files are calculated from
+     * @return a range sender for {@link FileMessage#send}
+     */
+    public FileMessage.RangeSender rangeSender(String source) {
+        Consumer<AbstractMessage> sender = uploadSender(source);
+        ChunkSizer sizer = connection.getChunkSizer();
+        return (filePath, relativePath, destination, transferId, fileSize) ->
+                deltaTransfer.send(filePath, relativePath, destination, transferId, fileSize, sender, sizer)
+                        || chunkedUpload.send(filePath, relativePath, destination, transferId, fileSize, sender, sizer)
+                        || parallelTransfer.send(filePath, relativePath, destination, transferId, fileSize);
+    }
+
     public String getCurrentCloudPath() {
         return currentCloudPath;
     }
@@ -112,12 +182,44 @@ public class CloudController extends AbstractController implements Initializable
         Optional<ButtonType> result = alert.showAndWait();
         //noinspection OptionalGetWithoutIsPresent
         if (result.get() == ButtonType.OK) {
+            Connection.clearSession();
             connection.sendMsg(new LogoutMessage());
             logger.info("Logging out...");
             changeScene((Stage) mainVBox.getScene().getWindow(), getClass().getResource("/login.fxml"),250, 350, false);
         }
     }
 
+    /**
+     * Compares the current local folder with the current cloud folder and shows the differences
+     */
+    public void compareWithCloud() {
+        if (currentCloudPath.isEmpty()) return;
+        Path local = Paths.get(currentLocalPath);
+        String cloud = currentCloudPath;
+        Connection current = connection;
+        new Thread(() -> {
+            List<String> differences = treeComparison.compare(local, cloud, current::sendMsg);
+            Platform.runLater(() -> showDifferences(differences));
+        }).start();
+    }
+
+    private void showDifferences(List<String> differences) {
+        Alert alert = new Alert(differences == null ? Alert.AlertType.ERROR : Alert.AlertType.INFORMATION);
+        alert.setTitle("Compare with cloud");
+        if (differences == null) {
+            alert.setHeaderText("The folders could not be compared");
+        } else if (differences.isEmpty()) {
+            alert.setHeaderText("The folders are identical");
+        } else {
+            alert.setHeaderText(differences.size() + " differences found");
+            int shown = Math.min(differences.size(), MAX_SHOWN_DIFFERENCES);
+            String text = String.join("\n", differences.subList(0, shown));
+            if (shown < differences.size()) text += "\n...and " + (differences.size() - shown) + " more";
+            alert.setContentText(text);
+        }
+        alert.showAndWait();
+    }
+
     /**
      * Initializes the main window
      */
@@ -139,47 +241,226 @@ public class CloudController extends AbstractController implements Initializable
         refreshLocalFiles();
 
         watcherService = new WatcherService(Paths.get(currentLocalPath), this);
+        FileParts.purgeExpired(TRANSFERS_PATH);
     }
 
     /**
-     * Listens for incoming messages
+     * Listens for incoming messages. If the connection is lost, it is restored with the session token
      */
     private void listenForMessages() {
+        logger.info("Listening for messages");
+        while (readMessages() && reconnect()) {
+            logger.info("Connection restored");
+            refreshCloudFiles();
+            resumeTransfers();
+        }
+    }
+
+    /**
+     * Reads incoming messages until logout or connection loss
+     *
+     * @return true if the connection was lost and false on logout
+     */
+    private boolean readMessages() {
         try {
-            logger.info("Listening for messages");
             while (true) {
                 AbstractMessage am = connection.readObject();
                 if (am instanceof FileListResponse) {
                     processFileList((FileListResponse) am);
+                } else if (am instanceof FileListDelta) {
+                    processFileListDelta((FileListDelta) am);
+                } else if (am instanceof FileChangeEvent) {
+                    processFileChangeEvent((FileChangeEvent) am);
                 } else if (am instanceof FileMessage) {
                     logger.info("Received FileMessage");
                     FileMessage fm = (FileMessage) am;
                     receiveFileMessage(fm);
+                } else if (am instanceof ResumeResponse) {
+                    resumeUpload((ResumeResponse) am);
+                } else if (am instanceof MissingChunks) {
+                    chunkedUpload.onMissingChunks((MissingChunks) am);
+                } else if (am instanceof NeededFiles) {
+                    uploadPreflight.onNeededFiles((NeededFiles) am);
+                } else if (am instanceof SignatureResponse) {
+                    deltaTransfer.onSignatures((SignatureResponse) am);
+                } else if (am instanceof DeltaResult) {
+                    deltaTransfer.onResult((DeltaResult) am);
+                } else if (am instanceof MerkleResponse) {
+                    treeComparison.onMerkleResponse((MerkleResponse) am);
+                } else if (am instanceof DeltaMessage) {
+                    deltaTransfer.receive((DeltaMessage) am, TRANSFERS_PATH, connection::sendMsg, this::refreshLocalFiles);
+                } else if (am instanceof ArchiveChunk) {
+                    receiveArchiveChunk((ArchiveChunk) am);
                 } else if (am instanceof LogoutMessage) {
-                    break;
+                    return false;
                 }
             }
-        } catch (ClassNotFoundException | IOException e) {
+        } catch (IOException e) {
             e.printStackTrace();
+            return true;
         } finally {
             logger.info("Closing connection");
+            FileParts.closeAll(fileParts);
+            deltaTransfer.closeAll();
+            if (archiveReceiver != null) archiveReceiver.close();
+            archiveReceiver = null;
             Connection.close();
         }
     }
 
+    /**
+     * Makes several attempts to connect again. The server accepts the session token
+     * without the password, so a reconnect is cheap for both sides
+     *
+     * @return true if the connection is restored and the session is resumed
+     */
+    private boolean reconnect() {
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && Connection.hasSession(); attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS * attempt);
+                connection = Connection.get();
+                if (Connection.hasSession()) return true;
+                Connection.close();
+            } catch (IOException e) {
+                logger.warn("Reconnect attempt " + attempt + " failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Continues the large files interrupted by the connection loss. Uploads ask the server where to continue from,
+     * downloads are requested again from the offset committed locally
+     */
+    private void resumeTransfers() {
+        for (String transferId : transferTracker.getUploadIds()) {
+            connection.sendMsg(new ResumeRequest(transferId));
+        }
+        for (Map.Entry<String, TransferTracker.Transfer> entry : transferTracker.takeDownloads().entrySet()) {
+            TransferTracker.Transfer download = entry.getValue();
+            long offset = FileParts.committedOffset(TRANSFERS_PATH, entry.getKey());
+            logger.info("Resuming download of " + download.relativePath + " from " + offset);
+            connection.sendMsg(new FileRequest(download.source + download.relativePath, download.destination,
+                    entry.getKey(), offset));
+        }
+    }
+
+    /**
+     * Sends the rest of an interrupted upload from the offset the server has committed
+     *
+     * @param response a response that holds the offset
+     */
+    private void resumeUpload(ResumeResponse response) {
+        TransferTracker.Transfer upload = transferTracker.takeUpload(response.transferId);
+        if (upload == null) return;
+        new Thread(() -> FileMessage.resume(Paths.get(upload.source + upload.relativePath), upload.relativePath,
+                upload.destination, response.transferId, response.offset, uploadSender(upload.source),
+                connection.getChunkSizer())).start();
+    }
+
+    /**
+     * Creates a consumer that sends upload messages over the current connection. Large files that fail
+     * to be sent are remembered, so they are continued after reconnecting
+     *
+     * @param source a local folder the relative paths of the files are calculated from
+     * @return a consumer for {@link FileMessage#send}
+     */
+    public Consumer<AbstractMessage> uploadSender(String source) {
+        Connection current = connection;
+        return msg -> {
+            boolean sent = current.sendMsg(msg);
+            if (msg instanceof FileMessage) transferTracker.trackUpload((FileMessage) msg, source, sent);
+        };
+    }
+
+    /**
+     * Shows a page of the cloud file list. The first page replaces the list and the next ones are appended,
+     * so the first rows are shown before the whole directory is received. Pages of a directory that is
+     * not shown anymore are skipped
+     *
+     * @param am a received page
+     */
     private void processFileList(FileListResponse am) {
-        logger.info("Received FileList");
-        cloudFiles.clear();
-        cloudFiles.addAll(am.cloudFilesList);
-        if (Platform.isFxApplicationThread()) {
-            cloudFilesTable.setItems(cloudFiles);
-            cloudCurrentPathLabel.setText(currentCloudPath);
-        } else Platform.runLater(() -> {
-            cloudFilesTable.setItems(cloudFiles);
+        logger.info("Received FileList page, " + (am.offset + am.cloudFilesList.size()) + " of " + am.total);
+        Platform.runLater(() -> {
+            if (!currentCloudPath.isEmpty() && !Paths.get(am.path).equals(Paths.get(currentCloudPath))) return;
+            if (am.offset == 0) {
+                isChangeRefreshRequested = false;
+                cloudFiles.setAll(am.cloudFilesList);
+                cloudListingPath = am.path;
+                cloudListingVersion = 0;
+            } else cloudFiles.addAll(am.cloudFilesList);
+            if (am.isLast()) cloudListingVersion = am.version;
+            if (cloudFilesTable.getItems() != cloudFiles) cloudFilesTable.setItems(cloudFiles);
             cloudCurrentPathLabel.setText(currentCloudPath);
         });
     }
 
+    /**
+     * Applies changes of the cloud file list. The list is sorted by name, so new items are inserted in place.
+     * A delta that does not follow the shown version is skipped and the changes are requested again
+     *
+     * @param am received changes
+     */
+    private void processFileListDelta(FileListDelta am) {
+        logger.info("Received FileList delta, " + (am.changed.size() + am.removed.size()) + " items");
+        Platform.runLater(() -> {
+            if (cloudListingPath == null || !Paths.get(am.path).equals(Paths.get(cloudListingPath))) return;
+            isChangeRefreshRequested = false;
+            if (cloudListingVersion == 0 || am.version == cloudListingVersion) return;
+            if (am.fromVersion != cloudListingVersion) {
+                refreshCloudFiles();
+                return;
+            }
+
+            Set<String> removed = new HashSet<>(am.removed);
+            for (FileItem item : am.changed) {
+                removed.add(item.getStringPath());
+            }
+            cloudFiles.removeIf(item -> removed.contains(item.getStringPath()));
+            for (FileItem item : am.changed) {
+                insertCloudFile(item);
+            }
+            cloudListingVersion = am.version;
+        });
+    }
+
+    /**
+     * Applies a change made by another session of the user. A change of an item of the shown directory
+     * is applied in place, a change deeper in the tree alters a folder of the directory, so the changes
+     * of the directory are requested
+     *
+     * @param am received event
+     */
+    private void processFileChangeEvent(FileChangeEvent am) {
+        logger.info("Received change event: " + am.kind + " " + am.path);
+        Platform.runLater(() -> {
+            if (cloudListingPath == null || cloudListingVersion == 0) return;
+            Path shown = Paths.get(cloudListingPath);
+            Path changed = Paths.get(am.path);
+            if (shown.equals(changed.getParent())) {
+                cloudFiles.removeIf(item -> Paths.get(item.getStringPath()).equals(changed));
+                if (am.kind == FileChangeEvent.Kind.CHANGED) insertCloudFile(am.toFileItem());
+            } else if (changed.startsWith(shown) && !isChangeRefreshRequested) {
+                isChangeRefreshRequested = true;
+                refreshCloudFiles();
+            }
+        });
+    }
+
+    /**
+     * Inserts an item into the cloud file list, which is sorted by name
+     *
+     * @param item a new item
+     */
+    private void insertCloudFile(FileItem item) {
+        int index = Collections.binarySearch(cloudFiles, item, FileListRequest.SortKey.NAME.comparator());
+        cloudFiles.add(index < 0 ? -index - 1 : index, item);
+    }
+
     /**
      * Deletes a file in local storage
      */
@@ -213,47 +494,106 @@ public class CloudController extends AbstractController implements Initializable
     }
 
     /**
-     * Sends file from local storage to cloud
+     * Sends file from local storage to cloud. Selected folders are walked while being sent
      */
     public void sendLocalFiles() {
-        List<Path> filePaths = new ArrayList<>();
-        try {
-            for (FileItem fileItem : localFilesTable.getSelectionModel().getSelectedItems()) {
-                if (!fileItem.isParentDir())
-                    filePaths.addAll(Files.walk(fileItem.getPath()).collect(Collectors.toList()));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        List<Path> filePaths = localFilesTable.getSelectionModel().getSelectedItems()
+                .stream()
+                .filter(fileItem -> !fileItem.isParentDir())
+                .map(FileItem::getPath)
+                .collect(Collectors.toList());
 
         if (filePaths.size() == 0) return;
         ProgressController pc = ProgressController.showProgressStage(this.getClass());
         new Thread(() -> {
-            FileMessage.send(filePaths, currentLocalPath, currentCloudPath, connection::sendMsg, Objects.requireNonNull(pc).getProgressBar());
+            upload(filePaths, currentLocalPath, currentCloudPath, Objects.requireNonNull(pc).getProgressBar());
             pc.close();
             refreshCloudFiles();
         }).start();
     }
 
+    /**
+     * Uploads the files to the cloud. The server is asked which files it needs first, so unchanged files are skipped.
+     * Must not be called from the thread that reads messages, since it waits for the answers
+     *
+     * @param filePaths   selected files and folders
+     * @param source      a local folder the relative paths of the files are calculated from
+     * @param destination a cloud folder
+     * @param progressBar shows the progress of the upload
+     */
+    public void upload(List<Path> filePaths, String source, String destination, ProgressBar progressBar) {
+        Consumer<AbstractMessage> sender = uploadSender(source);
+        Set<Path> needed = uploadPreflight.neededFiles(filePaths, source, destination, sender);
+        FileMessage.send(filePaths, source, destination, sender, progressBar, connection.getChunkSizer(),
+                rangeSender(source), needed == null ? null : needed::contains);
+    }
+
     /**
      * Sends command to get refreshed file list in cloud
      */
     public void refreshCloudFiles() {
-        connection.sendMsg(new FileListRequest(currentCloudPath));
+        //the listing of the shown directory is updated with changes only
+        boolean isListed = cloudListingPath != null && !currentCloudPath.isEmpty()
+                && Paths.get(cloudListingPath).equals(Paths.get(currentCloudPath));
+        connection.sendMsg(new FileListRequest(currentCloudPath, isListed ? cloudListingVersion : 0));
     }
 
     /**
-     * Saves the file from cloud to local storage
+     * Saves the file from cloud to local storage. Folders are requested as a single compressed archive,
+     * files that have a local copy are sent as a delta against it and the rest are sent as they are
      */
     public void requestCloudFile() {
-        List<String> filenames = cloudFilesTable.getSelectionModel().getSelectedItems()
+        List<FileItem> items = cloudFilesTable.getSelectionModel().getSelectedItems()
                 .stream()
                 .filter(item -> !item.isParentDir())
-                .map(FileItem::getStringPath)
                 .collect(Collectors.toList());
-        if (filenames.size() == 0) return;
+        if (items.size() == 0) return;
+
+        boolean archive = items.stream().anyMatch(FileItem::isDir);
+        if (!archive) {
+            items.removeIf(this::requestDelta);
+            //large files are downloaded over data connections, the rest over the main one
+            List<FileItem> large = items.stream().filter(item -> parallelTransfer.isParallel(item.getSize()))
+                    .collect(Collectors.toList());
+            items.removeAll(large);
+            large.forEach(this::downloadInParallel);
+            if (items.size() == 0) return;
+        }
+        List<String> filenames = items.stream().map(FileItem::getStringPath).collect(Collectors.toList());
+        connection.sendMsg(new FileRequest(filenames, currentLocalPath, archive));
+    }
+
+    /**
+     * Requests a file as a delta against its local copy. If the copy cannot be read, the file is requested as usual
+     *
+     * @param item a file to be downloaded
+     * @return false if there is no local copy
+     */
+    private boolean requestDelta(FileItem item) {
+        String destination = currentLocalPath;
+        if (!deltaTransfer.hasBasis(item.getStringPath(), destination)) return false;
+        Connection current = connection;
+        new Thread(() -> {
+            if (!deltaTransfer.request(item.getStringPath(), destination, current::sendMsg))
+                current.sendMsg(new FileRequest(Collections.singletonList(item.getStringPath()), destination));
+        }).start();
+        return true;
+    }
 
-        connection.sendMsg(new FileRequest(filenames, currentLocalPath));
+    /**
+     * Downloads a large file over several data connections. If it fails, the file is requested
+     * over the main connection and continues from the data received so far
+     *
+     * @param item a file to be downloaded
+     */
+    private void downloadInParallel(FileItem item) {
+        String destination = currentLocalPath;
+        new Thread(() -> {
+            if (!parallelTransfer.download(item.getStringPath(), destination, item.getSize(), TRANSFERS_PATH,
+                    this::refreshLocalFiles)) {
+                connection.sendMsg(new FileRequest(Collections.singletonList(item.getStringPath()), destination));
+            }
+        }).start();
     }
 
     /**
@@ -273,7 +613,25 @@ public class CloudController extends AbstractController implements Initializable
      * @throws IOException in case of i/o operations
      */
     private void receiveFileMessage(FileMessage fm) throws IOException {
-        FileMessage.receive(fm, fileParts, this::refreshLocalFiles);
+        transferTracker.trackDownload(fm, storagePath);
+        FileMessage.receive(fm, fileParts, TRANSFERS_PATH, this::refreshLocalFiles);
+    }
+
+    /**
+     * Extracts a received piece of an archive. The first piece starts extracting
+     *
+     * @param chunk received piece of the archive
+     * @throws IOException if receiving is interrupted
+     */
+    private void receiveArchiveChunk(ArchiveChunk chunk) throws IOException {
+        if (archiveReceiver == null) archiveReceiver = new ArchiveReceiver(Paths.get(chunk.destination), this::refreshLocalFiles);
+        try {
+            archiveReceiver.accept(chunk.getData(), chunk.last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Archive receiving is interrupted", e);
+        }
+        if (chunk.last) archiveReceiver = null;
     }
 
     /**
@@ -56,10 +56,11 @@ public class LoginController extends AbstractController {
         if (userField.getText().isEmpty() || passwordField.getText().isEmpty())
             infoLabel.setText("Username and password cannot be empty");
 
-        AuthRequest request = new AuthRequest(userField.getText().trim(), passwordField.getText().trim(), false);
+        AuthRequest request = new AuthRequest(userField.getText().trim(), passwordField.getText().trim(), false,
+                connection.getRttMicros());
         connection.sendMsg(request);
 
-        listenForAuthResponse();
+        listenForAuthResponse(request.login);
     }
 
     /**
@@ -84,23 +85,28 @@ public class LoginController extends AbstractController {
 
     /**
      * Listens for the auth response
+     *
+     * @param login a login the auth was requested for
      */
-    private void listenForAuthResponse() {
+    private void listenForAuthResponse(String login) {
         try {
             while (true) {
                 AbstractMessage am = connection.readObject();
                 if (am instanceof AuthResponse) {
                     if (((AuthResponse) am).success) {
+                        Connection.setSession(login, ((AuthResponse) am).sessionToken);
+                        connection.setChunkSizer(((AuthResponse) am).chunkSizer(connection.getRttMicros()));
                         CloudController controller = (CloudController) GUIHelper.changeScene((Stage) mainVBox.getScene().getWindow(),
                                 getClass().getResource("/cloud.fxml"), 800, 600, true);
                         //setting cloud storage path
                         Objects.requireNonNull(controller).setCurrentCloudPath(((AuthResponse) am).pathToStorage);
+                        controller.setStoragePath(((AuthResponse) am).pathToStorage);
                     } else infoLabel.setText("Wrong username or password");
                     resetFields();
                     break;
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             resetFields();
             infoLabel.setText("A connection error occurred, please reload the app");
         }
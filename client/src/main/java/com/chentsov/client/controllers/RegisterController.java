@@ -61,7 +61,8 @@ public class RegisterController extends AbstractController {
         Future<Connection> future = executor.submit(Connection::get);
         connection = LoginController.checkConnection(future, executor, infoLabel);
 
-        AuthRequest request = new AuthRequest(userField.getText().trim(), passwordField1.getText().trim(), true);
+        AuthRequest request = new AuthRequest(userField.getText().trim(), passwordField1.getText().trim(), true,
+                connection.getRttMicros());
         connection.sendMsg(request);
 
         try {
@@ -77,7 +78,7 @@ public class RegisterController extends AbstractController {
                     break;
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             resetFields();
             infoLabel.setText("A connection error occurred, please reload the app");
         }
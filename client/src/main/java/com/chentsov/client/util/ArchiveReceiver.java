@@ -0,0 +1,130 @@
+package com.chentsov.client.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Extracts a zip archive while its chunks are being received. Chunks are passed to a separate thread
+ * through a small bounded queue, so the archive is never stored as a whole, and a slow disk holds
+ * the network reader back instead of filling the memory.
+ */
+public class ArchiveReceiver implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(ArchiveReceiver.class.getSimpleName());
+    private static final int QUEUE_SIZE = 16;
+    private static final byte[] END_OF_ARCHIVE = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Path destination;
+    private final Runnable operation;
+    private final Thread extractor;
+    //set when extracting is over, so the rest of the chunks are dropped instead of blocking the reader
+    private volatile boolean isStopped;
+
+    /**
+     * @param destination a folder to extract the archive to
+     * @param operation   an operation that runs when the archive is extracted
+     */
+    public ArchiveReceiver(Path destination, Runnable operation) {
+        this.destination = destination.toAbsolutePath().normalize();
+        this.operation = operation;
+        extractor = new Thread(this::extract, "archive-extractor");
+        extractor.setDaemon(true);
+        extractor.start();
+    }
+
+    /**
+     * Passes the next chunk of the archive to the extractor
+     *
+     * @param data a chunk of the archive
+     * @param last true if the chunk completes the archive
+     * @throws InterruptedException if the thread is interrupted while the queue is full
+     */
+    public void accept(byte[] data, boolean last) throws InterruptedException {
+        if (isStopped) return;
+        if (data.length > 0) chunks.put(data);
+        if (last) chunks.put(END_OF_ARCHIVE);
+    }
+
+    /**
+     * Stops extracting, e.g. when the connection is lost
+     */
+    @Override
+    public void close() {
+        extractor.interrupt();
+    }
+
+    private void extract() {
+        ChunkInputStream input = new ChunkInputStream();
+        try (ZipInputStream zip = new ZipInputStream(input)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Path path = destination.resolve(entry.getName()).normalize();
+                //entries must not escape the destination folder
+                if (!path.startsWith(destination)) throw new IOException("Illegal archive entry: " + entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                    continue;
+                }
+                Files.createDirectories(path.getParent());
+                Files.copy(zip, path, StandardCopyOption.REPLACE_EXISTING);
+                logger.info("Extracted " + path);
+            }
+            //the central directory at the end of the archive is not read by ZipInputStream
+            byte[] skip = new byte[8192];
+            while (input.read(skip, 0, skip.length) >= 0) ;
+            operation.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            isStopped = true;
+            chunks.clear();
+        }
+    }
+
+    /**
+     * An input stream over the queued chunks
+     */
+    private final class ChunkInputStream extends InputStream {
+        private byte[] current = new byte[0];
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (position == current.length) {
+                if (current == END_OF_ARCHIVE) return -1;
+                try {
+                    current = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new IOException("Archive receiving is interrupted");
+                }
+                position = 0;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.chentsov.client.util;
+
+import com.chentsov.common.ChunkManifest;
+import com.chentsov.common.ContentChunker;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Content hashes of local files, see {@link ChunkManifest#getContentHash()}. A hash is kept while the size
+ * and the modification time of the file stay the same, so an unchanged file is read once.
+ */
+public final class ContentHashes {
+
+    private static ContentHashes contentHashes;
+
+    private final ContentChunker chunker = new ContentChunker();
+    private final Map<Path, Hash> hashes = new ConcurrentHashMap<>();
+
+    private static final class Hash {
+        private final long size;
+        private final long lastModified;
+        private final String contentHash;
+
+        private Hash(long size, long lastModified, String contentHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private ContentHashes() {
+    }
+
+    public static synchronized ContentHashes getInstance() {
+        if (contentHashes == null) contentHashes = new ContentHashes();
+        return contentHashes;
+    }
+
+    /**
+     * @param file       a local file
+     * @param attributes attributes of the file
+     * @return a hex string of the content hash
+     * @throws IOException in case of I/O errors
+     */
+    public String get(Path file, BasicFileAttributes attributes) throws IOException {
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Hash hash = hashes.get(file);
+        if (hash != null && hash.size == attributes.size() && hash.lastModified == lastModified) return hash.contentHash;
+        String contentHash = chunker.chunk(file).getContentHash();
+        hashes.put(file, new Hash(attributes.size(), lastModified, contentHash));
+        return contentHash;
+    }
+
+}
@@ -1,11 +1,9 @@
 package com.chentsov.client.util;
 
-import com.chentsov.client.Connection;
 import com.chentsov.client.controllers.AbstractController;
 import com.chentsov.client.controllers.CloudController;
 import com.chentsov.client.controllers.ProgressController;
 import com.chentsov.common.FileItem;
-import com.chentsov.common.messages.responses.FileMessage;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.fxml.FXMLLoader;
@@ -50,7 +48,6 @@ public class GUIHelper {
     private static final Map<String, Image> iconCache = new WeakHashMap<>();
 
     private static CloudController controller;
-    private static Connection connection;
 
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
 
@@ -71,12 +68,6 @@ public class GUIHelper {
         setupLocalDnD(localFilesTable, cloudFilesTable);
         setupCloudDnD(localFilesTable, cloudFilesTable);
         logger.info("Tables configured");
-
-        try {
-            connection = Connection.get();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
     /**
@@ -172,19 +163,12 @@ public class GUIHelper {
                 controller.sendLocalFiles();
             } else {
                 logger.info("Gesture source is outside the app");
-                List<Path> filePaths = new ArrayList<>();
+                List<Path> filePaths = db.getFiles().stream().map(File::toPath).collect(Collectors.toList());
                 String source = db.getFiles().get(0).getParent();
-                try {
-                    for (File file : db.getFiles()) {
-                        filePaths.addAll(Files.walk(file.toPath()).collect(Collectors.toList()));
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
                 ProgressController pc = ProgressController.showProgressStage(CloudController.class);
                 new Thread(() -> {
-                    FileMessage.send(filePaths, source, controller.getCurrentCloudPath(),
-                            connection::sendMsg, Objects.requireNonNull(pc).getProgressBar());
+                    controller.upload(filePaths, source, controller.getCurrentCloudPath(),
+                            Objects.requireNonNull(pc).getProgressBar());
                     pc.close();
                 }).start();
             }
@@ -0,0 +1,97 @@
+package com.chentsov.client.util;
+
+import com.chentsov.common.messages.responses.FileMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Remembers large files whose transfer has been broken by a connection loss, so they are continued
+ * from the committed offset after reconnecting instead of being sent again from the start.
+ * An upload is interrupted when one of its parts could not be sent. A download is interrupted
+ * when its last part has not been received.
+ */
+public class TransferTracker {
+
+    private static final Logger logger = LogManager.getLogger(TransferTracker.class.getSimpleName());
+
+    private final Map<String, Transfer> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Transfer> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * A file being transferred. The file is source + relativePath, where source is a local folder
+     * for an upload and a server folder for a download
+     */
+    public static final class Transfer {
+        public final String source;
+        public final String relativePath;
+        public final String destination;
+
+        private Transfer(String source, String relativePath, String destination) {
+            this.source = source;
+            this.relativePath = relativePath;
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * Takes a result of sending an upload part into account
+     *
+     * @param message a sent FileMessage
+     * @param source  a local folder the relative path of the file is calculated from
+     * @param sent    false if the part could not be sent
+     */
+    public void trackUpload(FileMessage message, String source, boolean sent) {
+        String transferId = message.getTransferId();
+        if (transferId == null || sent) return;
+        if (uploads.putIfAbsent(transferId, new Transfer(source, message.getRelativePath(),
+                message.getDestination())) == null) {
+            logger.info("Upload is interrupted: " + message.getRelativePath());
+        }
+    }
+
+    /**
+     * Takes a received download part into account
+     *
+     * @param message     a received FileMessage
+     * @param storagePath a server folder the relative path of the file is calculated from
+     */
+    public void trackDownload(FileMessage message, String storagePath) {
+        String transferId = message.getTransferId();
+        if (transferId == null) return;
+        if (message.getOffset() + message.getData().length == message.getFileSize()) downloads.remove(transferId);
+        else downloads.put(transferId, new Transfer(storagePath, message.getRelativePath(), message.getDestination()));
+    }
+
+    /**
+     * @return ids of the interrupted uploads, they stay remembered until {@link #takeUpload(String)}
+     */
+    public Iterable<String> getUploadIds() {
+        return uploads.keySet();
+    }
+
+    /**
+     * @param transferId an id of the interrupted upload
+     * @return the upload or null if it is unknown or already continued
+     */
+    public Transfer takeUpload(String transferId) {
+        return uploads.remove(transferId);
+    }
+
+    /**
+     * Forgets the interrupted downloads. A continued download is remembered again while its parts are received
+     *
+     * @return interrupted downloads by their transfer ids
+     */
+    public Map<String, Transfer> takeDownloads() {
+        Map<String, Transfer> taken = new HashMap<>(downloads);
+        downloads.keySet().removeAll(taken.keySet());
+        return taken;
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.chentsov.common;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Signatures of the fixed-size blocks of a file the receiver already has, the basis of a delta transfer.
+ * Every block has a weak rolling checksum, which the sender calculates at every offset of the new version
+ * of the file at a low cost, and a strong hash, which confirms a weak match, see {@link DeltaEncoder}.
+ */
+public final class BlockSignatures {
+
+    //a prefix of the SHA-256 hash of a block
+    public static final int STRONG_LENGTH = 16;
+    //bytes a single block takes in a message
+    public static final int ENTRY_LENGTH = Integer.BYTES + STRONG_LENGTH;
+    //a block is buffered whole by both sides, so the bounds are checked for the blocks of the peer too
+    static final int MIN_BLOCK_SIZE = 2 * 1024; // 2 kb
+    static final int MAX_BLOCK_SIZE = 1024 * 1024; // 1 mb
+    //signatures of a file must fit a single frame
+    private static final int MAX_BLOCKS = ChunkSizer.FRAME_OVERHEAD / 2 / ENTRY_LENGTH;
+
+    private final int blockSize;
+    private final long fileSize;
+    private final int[] weak;
+    private final byte[] strong;    //strong hashes of all the blocks one after another
+
+    private BlockSignatures(int blockSize, long fileSize, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * @param fileSize size of a basis file
+     * @return true if signatures of the file fit a single frame
+     */
+    public static boolean accepts(long fileSize) {
+        return (fileSize + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE <= MAX_BLOCKS;
+    }
+
+    /**
+     * @param blockSize a block size received from the peer
+     * @return true if the block size is one {@link #blockSize(long)} may pick
+     */
+    static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE;
+    }
+
+    /**
+     * Picks a block size about the square root of the file size, so the signatures and the literal data
+     * around an edit stay small together
+     *
+     * @param fileSize size of a basis file
+     * @return a block size
+     */
+    static int blockSize(long fileSize) {
+        long size = ((long) Math.sqrt(fileSize) + 1023) / 1024 * 1024;
+        size = Math.max(size, (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        return (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Reads the file and calculates the signatures of its blocks
+     *
+     * @param file a basis file, see {@link #accepts(long)}
+     * @return signatures of the file
+     * @throws IOException in case of I/O errors
+     */
+    public static BlockSignatures of(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int blockSize = blockSize(fileSize);
+            int count = (int) ((fileSize + blockSize - 1) / blockSize);
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_LENGTH];
+            MessageDigest digest = ChunkManifest.sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                long offset = (long) i * blockSize;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) break;
+                }
+                //the file may be cut while being read, the rest of its blocks are never matched then
+                int length = buffer.position();
+                weak[i] = weakChecksum(buffer.array(), 0, length);
+                digest.update(buffer.array(), 0, length);
+                System.arraycopy(digest.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new BlockSignatures(blockSize, fileSize, weak, strong);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int size() {
+        return weak.length;
+    }
+
+    public int getWeak(int index) {
+        return weak[index];
+    }
+
+    /**
+     * @return length of the block, the last block may be shorter than the rest
+     */
+    public int getLength(int index) {
+        return (int) Math.min(blockSize, fileSize - (long) index * blockSize);
+    }
+
+    /**
+     * @param index  an index of the block
+     * @param digest a strong hash of a candidate, see {@link #strongHash(MessageDigest, byte[], int, int)}
+     * @return true if the candidate equals the block
+     */
+    public boolean matches(int index, byte[] digest) {
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (strong[index * STRONG_LENGTH + i] != digest[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A weak checksum of rsync: the sum of the bytes and the sum of the prefix sums, 16 bits each. Moving
+     * the window by one byte updates it in constant time, see {@link DeltaEncoder}
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    static byte[] strongHash(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public void write(ByteBuf out) {
+        out.writeInt(blockSize);
+        out.writeLong(fileSize);
+        out.writeInt(weak.length);
+        for (int checksum : weak) {
+            out.writeInt(checksum);
+        }
+        out.writeBytes(strong);
+    }
+
+    public static BlockSignatures read(ByteBuf in) {
+        int blockSize = in.readInt();
+        long fileSize = in.readLong();
+        int count = in.readInt();
+        if (!isValidBlockSize(blockSize) || fileSize < 0 || count < 0 || (long) count * ENTRY_LENGTH > in.readableBytes()
+                || (fileSize + blockSize - 1) / blockSize != count)
+            throw new IllegalArgumentException("Invalid block signatures: " + count + " blocks of " + blockSize);
+        int[] weak = new int[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+        }
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        in.readBytes(strong);
+        return new BlockSignatures(blockSize, fileSize, weak, strong);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BlockSignatures)) return false;
+        BlockSignatures that = (BlockSignatures) o;
+        return blockSize == that.blockSize && fileSize == that.fileSize && Arrays.equals(weak, that.weak)
+                && Arrays.equals(strong, that.strong);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(weak);
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.chentsov.common;
+
+import io.netty.buffer.ByteBuf;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A list of content-defined chunks a file consists of, see {@link ContentChunker}. Every chunk is identified
+ * by the SHA-256 hash of its bytes, so equal chunks of different files or versions of a file are found by hash.
+ */
+public final class ChunkManifest {
+
+    public static final int HASH_LENGTH = 32;
+    //bytes a single chunk takes in a message
+    public static final int ENTRY_LENGTH = HASH_LENGTH + Integer.BYTES;
+
+    private final long fileSize;
+    private final byte[] hashes;    //hashes of all the chunks one after another
+    private final int[] lengths;
+    private final long[] offsets;
+    private String contentHash;
+
+    ChunkManifest(byte[] hashes, int[] lengths) {
+        this.hashes = hashes;
+        this.lengths = lengths;
+        this.offsets = new long[lengths.length];
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+        this.fileSize = offset;
+    }
+
+    public int size() {
+        return lengths.length;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @param index an index of the chunk
+     * @return a hex string of the chunk hash
+     */
+    public String getHash(int index) {
+        return toHex(hashes, index * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Calculates a hash of the whole content as a hash of the chunk hashes, so the file is not read again.
+     * Files with equal content have equal content hashes
+     *
+     * @return a hex string of the content hash
+     */
+    public synchronized String getContentHash() {
+        if (contentHash == null) contentHash = toHex(sha256().digest(hashes), 0, HASH_LENGTH);
+        return contentHash;
+    }
+
+    public void write(ByteBuf out) {
+        out.writeInt(lengths.length);
+        out.writeBytes(hashes);
+        for (int length : lengths) {
+            out.writeInt(length);
+        }
+    }
+
+    public static ChunkManifest read(ByteBuf in) {
+        int size = in.readInt();
+        if (size < 0 || (long) size * ENTRY_LENGTH > in.readableBytes())
+            throw new IllegalArgumentException("Invalid manifest size: " + size);
+        byte[] hashes = new byte[size * HASH_LENGTH];
+        in.readBytes(hashes);
+        int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            lengths[i] = in.readInt();
+        }
+        return new ChunkManifest(hashes, lengths);
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a hex string of the hash of the given bytes
+     */
+    public static String hash(byte[] data, int offset, int length) {
+        MessageDigest digest = sha256();
+        digest.update(data, offset, length);
+        return toHex(digest.digest(), 0, HASH_LENGTH);
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String toHex(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xff;
+            chars[i * 2] = HEX[b >>> 4];
+            chars[i * 2 + 1] = HEX[b & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ChunkManifest)) return false;
+        ChunkManifest that = (ChunkManifest) o;
+        return Arrays.equals(lengths, that.lengths) && Arrays.equals(hashes, that.hashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(hashes);
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.chentsov.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Picks the size of the next file part from the measured throughput of the link. A part should take
+ * about {@link #TARGET_CHUNK_MILLIS} or a round trip, whichever is longer, to be sent: on a fast link
+ * large parts amortize the per-message overhead, on a slow one small parts keep progress and cancellation
+ * fine-grained. The size stays within the bounds negotiated at login and changes at most twice per step.
+ * <p>
+ * The socket buffers along the path take the first bytes of a transfer in at once, so the parts that fill them
+ * seem to be sent instantly. The size is kept until they are full, and again after every pause that lets them drain.
+ * Parts leave the outbound buffer in bursts as well, so the throughput is measured over several parts at once.
+ */
+public final class ChunkSizer {
+
+    public static final int MIN_CHUNK_SIZE = Integer.getInteger("geekcloud.minChunkSize", 256 * 1024); // 256 kb
+    public static final int MAX_CHUNK_SIZE = Integer.getInteger("geekcloud.maxChunkSize", 8 * 1024 * 1024); // 8 mb
+    public static final int INITIAL_CHUNK_SIZE = Integer.getInteger("geekcloud.initialChunkSize", 1024 * 1024); // 1 mb
+    //room for message fields and batches of small files on top of the largest part
+    public static final int FRAME_OVERHEAD = 2 * 1024 * 1024; // 2 mb
+    private static final long TARGET_CHUNK_MILLIS = Long.getLong("geekcloud.targetChunkMillis", 250);
+    //weight of the last measurement in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+    private static final long WARMUP_BYTES = Long.getLong("geekcloud.chunkWarmupBytes", 4 * 1024 * 1024); // 4 mb
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("geekcloud.chunkIdleMillis", 1000));
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long rttNanos;
+    private double bytesPerNano;
+    private int chunkSize;
+    private long warmupLeft = WARMUP_BYTES;
+    private long lastRecorded;
+    private long sampleBytes;
+    private long sampleNanos;
+
+    /**
+     * @param minChunkSize     the smallest part
+     * @param maxChunkSize     the largest part, the receiver must accept frames of this size
+     * @param initialChunkSize a part size used until the throughput is measured
+     * @param rttMicros        a round trip time of the link or 0 if it is unknown
+     */
+    public ChunkSizer(int minChunkSize, int maxChunkSize, int initialChunkSize, long rttMicros) {
+        this.minChunkSize = Math.min(minChunkSize, maxChunkSize);
+        this.maxChunkSize = maxChunkSize;
+        this.rttNanos = rttMicros * 1000;
+        this.chunkSize = clamp(initialChunkSize);
+    }
+
+    /**
+     * Creates a sizer with the default bounds, used until the bounds are negotiated
+     */
+    public ChunkSizer() {
+        this(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, INITIAL_CHUNK_SIZE, 0);
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * @return a size of the next part
+     */
+    public synchronized int next() {
+        return chunkSize;
+    }
+
+    /**
+     * Takes a measurement of a sent part into account
+     *
+     * @param bytes a size of the part
+     * @param nanos time the part took to be sent
+     */
+    public synchronized void record(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+        long now = System.nanoTime();
+        if (lastRecorded != 0 && now - nanos - lastRecorded > IDLE_NANOS) {
+            warmupLeft = WARMUP_BYTES;
+            sampleBytes = 0;
+            sampleNanos = 0;
+        }
+        lastRecorded = now;
+        if (warmupLeft > 0) {
+            warmupLeft -= bytes;
+            return;
+        }
+        sampleBytes += bytes;
+        sampleNanos += nanos;
+        if (sampleNanos < SAMPLE_NANOS) return;
+        double measured = (double) sampleBytes / sampleNanos;
+        sampleBytes = 0;
+        sampleNanos = 0;
+        bytesPerNano = bytesPerNano == 0 ? measured : bytesPerNano * (1 - SMOOTHING) + measured * SMOOTHING;
+
+        long target = (long) (bytesPerNano * Math.max(TARGET_CHUNK_MILLIS * 1_000_000L, rttNanos));
+        target = Math.max(chunkSize / 2, Math.min((long) chunkSize * 2, target));
+        chunkSize = clamp(target);
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(minChunkSize, Math.min(maxChunkSize, size));
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.chentsov.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Splits a file into content-defined chunks. A rolling gear hash is calculated over the bytes, and a chunk
+ * ends where the hash matches a mask, so boundaries depend on the content around them rather than on offsets.
+ * An insertion in the middle of a file changes the chunks around it only, and the rest of the chunks stay
+ * equal to the chunks of the previous version.
+ */
+public final class ContentChunker {
+
+    public static final int MIN_CHUNK = Integer.getInteger("geekcloud.cdcMinChunk", 64 * 1024); // 64 kb
+    public static final int AVERAGE_CHUNK = Integer.getInteger("geekcloud.cdcAverageChunk", 256 * 1024); // 256 kb
+    public static final int MAX_CHUNK = Integer.getInteger("geekcloud.cdcMaxChunk", 1024 * 1024); // 1 mb
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    //the same random table on every side, so equal content gives equal boundaries
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6765656b636c6fL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minChunk;
+    private final int maxChunk;
+    //the high bits of the gear hash depend on the last 64 bytes, so the mask is taken from them
+    private final long mask;
+
+    public ContentChunker() {
+        this(MIN_CHUNK, AVERAGE_CHUNK, MAX_CHUNK);
+    }
+
+    /**
+     * @param minChunk     the smallest chunk, no boundary is looked for before it
+     * @param averageChunk an expected chunk size
+     * @param maxChunk     the largest chunk
+     */
+    public ContentChunker(int minChunk, int averageChunk, int maxChunk) {
+        this.minChunk = minChunk;
+        this.maxChunk = maxChunk;
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(2, averageChunk - minChunk));
+        this.mask = -1L << (64 - bits);
+    }
+
+    /**
+     * @param fileSize size of a file
+     * @return the largest count of chunks the file may be split into
+     */
+    public long maxChunks(long fileSize) {
+        return fileSize / minChunk + 1;
+    }
+
+    /**
+     * Reads the file and splits it into chunks
+     *
+     * @param file a file to be split
+     * @return a manifest of the file
+     * @throws IOException in case of I/O errors
+     */
+    public ChunkManifest chunk(Path file) throws IOException {
+        ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+        int[] lengths = new int[16];
+        int count = 0;
+
+        MessageDigest digest = ChunkManifest.sha256();
+        long hash = 0;
+        int length = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            //small files are hashed one after another, so they get no larger buffer than they need
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(READ_BUFFER_SIZE, channel.size())));
+            byte[] bytes = buffer.array();
+            while (channel.read(buffer) > 0) {
+                int limit = buffer.position();
+                int start = 0;
+                for (int i = 0; i < limit; i++) {
+                    hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+                    length++;
+                    if (length < minChunk) continue;
+                    if ((hash & mask) != 0 && length < maxChunk) continue;
+
+                    digest.update(bytes, start, i + 1 - start);
+                    hashes.write(digest.digest());
+                    if (count == lengths.length) lengths = Arrays.copyOf(lengths, count * 2);
+                    lengths[count++] = length;
+                    start = i + 1;
+                    length = 0;
+                    hash = 0;
+                }
+                digest.update(bytes, start, limit - start);
+                buffer.clear();
+            }
+        }
+        if (length > 0) {
+            hashes.write(digest.digest());
+            if (count == lengths.length) lengths = Arrays.copyOf(lengths, count + 1);
+            lengths[count++] = length;
+        }
+        return new ChunkManifest(hashes.toByteArray(), Arrays.copyOf(lengths, count));
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.chentsov.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Encodes a new version of a file as a delta against the blocks the receiver already has, the way rsync does.
+ * A window of a block size slides over the file byte by byte. When its weak checksum and then its strong hash
+ * match a block of the basis, the window is sent as a copy of that block and jumps over it, otherwise
+ * the first byte of the window is sent as a literal. Runs of blocks and of literal bytes are encoded
+ * as single instructions, see {@link DeltaFile}.
+ * <p>
+ * The delta is encoded while being sent, so it is never kept whole in memory.
+ */
+public final class DeltaEncoder implements Closeable {
+
+    //copy blocks from the basis: the first block and the count of blocks follow
+    static final byte COPY = 1;
+    //new data: the length and the bytes follow
+    static final byte LITERAL = 2;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    //pending literal bytes are sent before the buffer has to keep more of them
+    private static final int MAX_LITERAL = READ_BUFFER_SIZE / 2;
+
+    private final BlockSignatures basis;
+    private final int blockSize;
+    private final FileChannel channel;
+    private final MessageDigest fileDigest = ChunkManifest.sha256();
+    private final MessageDigest blockDigest = ChunkManifest.sha256();
+    //blocks by weak checksum: the first block of every bucket and the next block of every block
+    private final int[] buckets;
+    private final int[] nextInBucket;
+
+    private final byte[] buffer;
+    private int bufferLength;
+    private int position;       //the start of the window in the buffer
+    private int literalStart;   //the first byte in the buffer that is not encoded yet
+    private boolean isEof;
+    private boolean isDone;
+
+    private boolean isRolling;
+    private int a;
+    private int b;
+
+    private int copyStart = -1;
+    private int copyCount;
+
+    private long fileSize;
+    private long copiedBytes;
+    private byte[] fileHash;
+
+    /**
+     * @param file  a new version of the file
+     * @param basis signatures of the version the receiver has
+     * @throws IOException in case of I/O errors
+     */
+    public DeltaEncoder(Path file, BlockSignatures basis) throws IOException {
+        this.basis = basis;
+        this.blockSize = basis.getBlockSize();
+        this.buffer = new byte[READ_BUFFER_SIZE + 2 * blockSize];
+        this.buckets = new int[Integer.highestOneBit(Math.max(1, basis.size())) * 2];
+        this.nextInBucket = new int[basis.size()];
+        Arrays.fill(buckets, -1);
+        //blocks are added from the end, so every bucket lists its blocks in order
+        for (int i = basis.size() - 1; i >= 0; i--) {
+            int bucket = bucket(basis.getWeak(i));
+            nextInBucket[i] = buckets[bucket];
+            buckets[bucket] = i;
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    public boolean isDone() {
+        return isDone;
+    }
+
+    /**
+     * @return size of the encoded file, known when the delta is done
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return a SHA-256 hash of the encoded file, known when the delta is done
+     */
+    public byte[] getFileHash() {
+        return fileHash;
+    }
+
+    /**
+     * @return bytes of the file that are copied from the basis rather than sent
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * Encodes the next instructions
+     *
+     * @param maxLength a preferred length of the encoded instructions, a literal may exceed it by {@link #MAX_LITERAL}
+     * @return encoded instructions, empty when the delta is done
+     * @throws IOException in case of I/O errors
+     */
+    public byte[] next(int maxLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(maxLength, MAX_LITERAL) + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int literalLimit = Math.min(maxLength, MAX_LITERAL);
+        while (!isDone && bytes.size() < maxLength) {
+            step(out, literalLimit);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void step(DataOutputStream out, int literalLimit) throws IOException {
+        fill();
+        int window = Math.min(blockSize, bufferLength - position);
+        if (window == 0) {
+            flushLiteral(out);
+            flushCopy(out);
+            fileHash = fileDigest.digest();
+            isDone = true;
+            channel.close();
+            return;
+        }
+
+        int block = -1;
+        if (window == blockSize) {
+            if (!isRolling) {
+                int checksum = BlockSignatures.weakChecksum(buffer, position, window);
+                a = checksum & 0xffff;
+                b = checksum >>> 16;
+                isRolling = true;
+            }
+            block = find((a & 0xffff) | (b << 16), window);
+        } else if (basis.size() > 0 && window == basis.getLength(basis.size() - 1)) {
+            //only the last block of the basis may be shorter than a block
+            block = find(BlockSignatures.weakChecksum(buffer, position, window), window);
+        }
+
+        if (block >= 0) {
+            flushLiteral(out);
+            if (copyStart >= 0 && copyStart + copyCount == block) {
+                copyCount++;
+            } else {
+                flushCopy(out);
+                copyStart = block;
+                copyCount = 1;
+            }
+            position += window;
+            literalStart = position;
+            copiedBytes += window;
+            isRolling = false;
+            return;
+        }
+
+        if (window < blockSize) {
+            //the tail of the file matches nothing
+            position = bufferLength;
+        } else {
+            if (position + blockSize < bufferLength) {
+                int removed = buffer[position] & 0xff;
+                a += (buffer[position + blockSize] & 0xff) - removed;
+                b += a - blockSize * removed;
+            } else {
+                isRolling = false;
+            }
+            position++;
+        }
+        if (position - literalStart >= literalLimit) flushLiteral(out);
+    }
+
+    /**
+     * Looks for a block equal to the window. The block that continues the current run of copies is preferred,
+     * so repeated blocks are still copied as a single run
+     *
+     * @return an index of the block or -1
+     */
+    private int find(int weak, int window) {
+        byte[] strong = null;
+        int expected = copyStart >= 0 ? copyStart + copyCount : -1;
+        if (expected >= 0 && expected < basis.size() && basis.getWeak(expected) == weak
+                && basis.getLength(expected) == window) {
+            strong = BlockSignatures.strongHash(blockDigest, buffer, position, window);
+            if (basis.matches(expected, strong)) return expected;
+        }
+        for (int i = buckets[bucket(weak)]; i >= 0; i = nextInBucket[i]) {
+            if (basis.getWeak(i) != weak || basis.getLength(i) != window) continue;
+            if (strong == null) strong = BlockSignatures.strongHash(blockDigest, buffer, position, window);
+            if (basis.matches(i, strong)) return i;
+        }
+        return -1;
+    }
+
+    private int bucket(int weak) {
+        return ((weak ^ (weak >>> 16)) * 0x9e3779b1 >>> 8) & (buckets.length - 1);
+    }
+
+    /**
+     * Reads the file until the buffer holds a whole window and the byte after it. The bytes before
+     * the pending literal are dropped from the buffer
+     */
+    private void fill() throws IOException {
+        if (isEof || bufferLength - position > blockSize) return;
+        if (literalStart > 0) {
+            System.arraycopy(buffer, literalStart, buffer, 0, bufferLength - literalStart);
+            bufferLength -= literalStart;
+            position -= literalStart;
+            literalStart = 0;
+        }
+        while (bufferLength - position <= blockSize) {
+            int read = channel.read(ByteBuffer.wrap(buffer, bufferLength, buffer.length - bufferLength));
+            if (read < 0) {
+                isEof = true;
+                return;
+            }
+            fileDigest.update(buffer, bufferLength, read);
+            bufferLength += read;
+            fileSize += read;
+        }
+    }
+
+    private void flushLiteral(DataOutputStream out) throws IOException {
+        if (position == literalStart) return;
+        flushCopy(out);
+        out.writeByte(LITERAL);
+        out.writeInt(position - literalStart);
+        out.write(buffer, literalStart, position - literalStart);
+        literalStart = position;
+    }
+
+    private void flushCopy(DataOutputStream out) throws IOException {
+        if (copyStart < 0) return;
+        out.writeByte(COPY);
+        out.writeInt(copyStart);
+        out.writeInt(copyCount);
+        copyStart = -1;
+        copyCount = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
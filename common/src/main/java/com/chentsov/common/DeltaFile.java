@@ -0,0 +1,158 @@
+package com.chentsov.common;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Rebuilds a new version of a file from a delta, see {@link DeltaEncoder}. Copied blocks are read from
+ * the current version of the file, literal bytes are taken from the delta, and the result is written
+ * to a temporary file. The temporary file replaces the current version only if its size and hash match
+ * the ones the sender has calculated, so a broken delta never damages the file. The size is declared
+ * in the first message and nothing is written past it, so a delta cannot grow the temporary file without limit.
+ */
+public final class DeltaFile implements Closeable {
+
+    private final Path destination;
+    private final Path temporary;
+    private final int blockSize;
+    private final long fileSize;
+    private final FileChannel basis;
+    private final long basisSize;
+    private final FileChannel out;
+    private final MessageDigest digest = ChunkManifest.sha256();
+    private final ByteBuffer block;
+    private long written;
+
+    /**
+     * @param destination  the file to be rebuilt, its current version is the basis of the delta
+     * @param blockSize    a block size of the basis signatures
+     * @param fileSize     size of the new version declared by the sender
+     * @param transfersDir a folder that keeps the temporary file
+     * @param transferId   an id of the transfer
+     * @throws IOException in case of I/O errors
+     */
+    public DeltaFile(Path destination, int blockSize, long fileSize, Path transfersDir, String transferId)
+            throws IOException {
+        if (!BlockSignatures.isValidBlockSize(blockSize)) throw new IOException("Invalid block size: " + blockSize);
+        if (fileSize < 0) throw new IOException("Invalid file size: " + fileSize);
+        this.destination = destination;
+        this.fileSize = fileSize;
+        this.temporary = FileParts.stateFile(transfersDir, transferId, ".delta");
+        this.blockSize = blockSize;
+        this.block = ByteBuffer.allocate(blockSize);
+        Files.createDirectories(transfersDir);
+        if (destination.getParent() != null) Files.createDirectories(destination.getParent());
+        this.basis = Files.isRegularFile(destination) ? FileChannel.open(destination, StandardOpenOption.READ) : null;
+        this.basisSize = basis == null ? 0 : basis.size();
+        this.out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Applies the next instructions of the delta
+     *
+     * @param instructions encoded instructions, see {@link DeltaEncoder#next(int)}
+     * @throws IOException in case of I/O errors or invalid instructions
+     */
+    public void apply(byte[] instructions) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(instructions);
+        while (in.hasRemaining()) {
+            byte instruction = in.get();
+            if (instruction == DeltaEncoder.COPY && in.remaining() >= 2 * Integer.BYTES) {
+                int first = in.getInt();
+                int count = in.getInt();
+                if (first < 0 || count <= 0) throw new IOException("Invalid copy of " + count + " blocks at " + first);
+                for (int i = 0; i < count; i++) {
+                    copy(((long) first + i) * blockSize);
+                }
+            } else if (instruction == DeltaEncoder.LITERAL && in.remaining() >= Integer.BYTES) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) throw new IOException("Invalid literal of " + length + " bytes");
+                write(ByteBuffer.wrap(instructions, in.position(), length));
+                in.position(in.position() + length);
+            } else {
+                throw new IOException("Invalid delta instruction: " + instruction);
+            }
+        }
+    }
+
+    private void copy(long offset) throws IOException {
+        if (basis == null || offset >= basisSize) throw new IOException("Copied block is out of the file: " + offset);
+        block.clear();
+        block.limit((int) Math.min(blockSize, basisSize - offset));
+        while (block.hasRemaining()) {
+            if (basis.read(block, offset + block.position()) < 0) throw new EOFException("File is cut: " + destination);
+        }
+        block.flip();
+        write(block);
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        if (written + data.remaining() > fileSize)
+            throw new IOException("Delta exceeds the declared size of " + fileSize + " bytes: " + destination);
+        digest.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        written += data.remaining();
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Replaces the current version of the file with the rebuilt one
+     *
+     * @param fileHash a SHA-256 hash of the new version
+     * @return false if the rebuilt file does not match, the current version stays then
+     * @throws IOException in case of I/O errors
+     */
+    public boolean complete(byte[] fileHash) throws IOException {
+        out.force(false);
+        closeFiles();
+        if (written != fileSize || !MessageDigest.isEqual(digest.digest(), fileHash)) {
+            Files.deleteIfExists(temporary);
+            return false;
+        }
+        try {
+            Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    public Path getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return bytes of the new version written so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Closes the files. An incomplete temporary file is deleted
+     */
+    @Override
+    public void close() throws IOException {
+        closeFiles();
+        Files.deleteIfExists(temporary);
+    }
+
+    private void closeFiles() throws IOException {
+        if (basis != null) basis.close();
+        out.close();
+    }
+
+}
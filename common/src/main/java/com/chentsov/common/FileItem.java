@@ -1,18 +1,22 @@
 package com.chentsov.common;
 
+import com.chentsov.common.codec.MessageCodec;
+import io.netty.buffer.ByteBuf;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * A class that wraps a String file path.
  */
-public class FileItem implements Serializable {
+public class FileItem {
+
+    //two empty strings, size, time and three flags, see write(ByteBuf)
+    public static final int MIN_ENCODED_LENGTH = 2 * Integer.BYTES + 2 * Long.BYTES + 3;
 
     private String name;
     private long size;
@@ -63,15 +67,31 @@ public class FileItem implements Serializable {
     }
 
     private FileItem(String stringPath) {
-        this.stringPath = stringPath;
-        Path path = Paths.get(stringPath);
-        isDir = Files.isDirectory(path);
+        this(Paths.get(stringPath), readAttributes(Paths.get(stringPath)));
+    }
+
+    /**
+     * Creates an item from attributes that are already read, so no more syscalls are made
+     *
+     * @param path       a path to the file
+     * @param attributes file attributes or null if they could not be read
+     */
+    private FileItem(Path path, BasicFileAttributes attributes) {
+        this.stringPath = path.toString();
         name = path.getFileName().toString();
+        isDir = attributes != null && attributes.isDirectory();
+        if (attributes != null) {
+            size = attributes.size();
+            date = new Date(attributes.lastModifiedTime().toMillis());
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
         try {
-            size = Files.size(path);
-            date = new Date(Files.getLastModifiedTime(path).toMillis());
+            return Files.readAttributes(path, BasicFileAttributes.class);
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
@@ -82,6 +102,60 @@ public class FileItem implements Serializable {
         if (isRootDir) name = "...";
     }
 
+    private FileItem(String stringPath, String name, long size, Date date,
+                     boolean isRootDir, boolean isParentDir, boolean isDir) {
+        this.stringPath = stringPath;
+        this.name = name;
+        this.size = size;
+        this.date = date;
+        this.isRootDir = isRootDir;
+        this.isParentDir = isParentDir;
+        this.isDir = isDir;
+    }
+
+    /**
+     * Creates an item from known attributes, no file system calls are made
+     *
+     * @param stringPath a path to the file
+     * @param size       a file size
+     * @param date       a modification date
+     * @param isDir      true if the file is a directory
+     * @return a new FileItem
+     */
+    public static FileItem of(String stringPath, long size, Date date, boolean isDir) {
+        return new FileItem(stringPath, Paths.get(stringPath).getFileName().toString(), size, date, false, false, isDir);
+    }
+
+    /**
+     * Writes the item into a message buffer
+     *
+     * @param out a buffer to write to
+     */
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, stringPath);
+        MessageCodec.writeString(out, name);
+        out.writeLong(size);
+        out.writeLong(date == null ? -1 : date.getTime());
+        out.writeBoolean(isRootDir);
+        out.writeBoolean(isParentDir);
+        out.writeBoolean(isDir);
+    }
+
+    /**
+     * Reads an item written by {@link #write(ByteBuf)}. No file system calls are made
+     *
+     * @param in a buffer to read from
+     * @return a read FileItem
+     */
+    public static FileItem read(ByteBuf in) {
+        String stringPath = MessageCodec.readString(in);
+        String name = MessageCodec.readString(in);
+        long size = in.readLong();
+        long time = in.readLong();
+        return new FileItem(stringPath, name, size, time < 0 ? null : new Date(time),
+                in.readBoolean(), in.readBoolean(), in.readBoolean());
+    }
+
     /**
      * Renames a file.
      *
@@ -125,21 +199,23 @@ public class FileItem implements Serializable {
     }
 
     /**
-     * Refreshes file list and puts it into given List
+     * Refreshes file list and puts it into given List. Attributes of every entry are read
+     * with a single call; entries that disappear while listing are skipped
      *
      * @param files      a list that stores paths to files
      * @param stringPath a stringPath to search
      */
     public static void refreshFileList(List<FileItem> files, String stringPath, boolean isRoot) {
         files.clear();
-        try {
-            if (!isRoot) files.add(new FileItem(new File(stringPath).getParent(), true));
-            files.addAll(Files
-                    .list(Paths.get(stringPath))
-                    .filter(Files::exists)
-                    .map(Path::toString)
-                    .map(FileItem::new)
-                    .collect(Collectors.toList()));
+        if (!isRoot) files.add(new FileItem(new File(stringPath).getParent(), true));
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(stringPath))) {
+            for (Path entry : entries) {
+                try {
+                    files.add(new FileItem(entry, Files.readAttributes(entry, BasicFileAttributes.class)));
+                } catch (NoSuchFileException e) {
+                    //the entry was removed while listing
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
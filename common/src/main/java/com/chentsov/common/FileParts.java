@@ -1,43 +1,270 @@
 package com.chentsov.common;
 
-import com.chentsov.common.messages.responses.FileMessage;
-
-import java.util.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Evgenii Chentsov
  * <p>
- * A class that contains file parts for the large file.
+ * A class that tracks parts of the large file being received. Every part carries its offset and is written
+ * there as soon as it arrives, so no parts are buffered in RAM regardless of their sizes and arrival order.
+ * Received byte ranges are merged, so a part that is received twice is counted once.
+ * <p>
+ * The file is received into a transfers folder and moved to the destination when complete, so a broken
+ * transfer never leaves a truncated destination file. The end of the contiguous data written from the start
+ * of the file is persisted next to it, and a transfer with the same id continues from that offset.
  */
-public class FileParts {
+public class FileParts implements Closeable {
+
+    //the committed offset is persisted at least every CHECKPOINT_BYTES of contiguous data
+    private static final long CHECKPOINT_BYTES = Long.getLong("geekcloud.resumeCheckpointBytes", 8 * 1024 * 1024); // 8 mb
+    //transfers that are not continued within this time are purged
+    private static final long EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(Long.getLong("geekcloud.transferExpiryHours", 24));
+    private static final String DATA_SUFFIX = ".part";
+    private static final String RECORD_SUFFIX = ".offset";
+
+    private final Path destination;
+    private final Path dataFile;
+    private final Path recordFile;
+    private final FileChannel channel;                      //partial file opened once for all the parts
+    private final TreeMap<Long, Long> received = new TreeMap<>();   //start -> end of the received ranges
+    private final long fileSize;
+    private long committed;                                 //offset persisted in the record
+    private boolean isCompleted;                            //the file is moved, guarded by this
+
+    /**
+     * Opens the partial file of the transfer. If the transfer has been interrupted before,
+     * the data up to the committed offset is kept
+     *
+     * @param destination  a path to the destination file
+     * @param fileSize     size of the whole file
+     * @param transfersDir a folder that keeps partial files and their records
+     * @param transferId   an id of the transfer
+     * @throws IOException in case of I/O errors or an invalid id
+     */
+    public FileParts(Path destination, long fileSize, Path transfersDir, String transferId) throws IOException {
+        this.destination = destination;
+        this.fileSize = fileSize;
+        this.dataFile = stateFile(transfersDir, transferId, DATA_SUFFIX);
+        this.recordFile = stateFile(transfersDir, transferId, RECORD_SUFFIX);
+        Files.createDirectories(transfersDir);
+
+        long offset = readRecord(recordFile, fileSize);
+        if (offset > 0 && (!Files.exists(dataFile) || Files.size(dataFile) < offset)) offset = 0;
+        this.channel = offset > 0
+                ? FileChannel.open(dataFile, StandardOpenOption.WRITE)
+                : FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.committed = offset;
+        if (offset > 0) received.put(0L, offset);
+    }
+
+    /**
+     * Writes the part at its offset in the file. Parts of parallel ranges are written concurrently,
+     * a part that comes after another writer has completed the file is there already and is skipped
+     *
+     * @param offset position of the part in the file
+     * @param data   part data
+     * @throws IOException in case of I/O errors
+     */
+    public void write(long offset, byte[] data) throws IOException {
+        if (offset < 0 || offset + data.length > fileSize)
+            throw new IOException("Unexpected part at " + offset + " of size " + data.length + ", file size is " + fileSize);
+        if (isCompleted()) return;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (ClosedChannelException e) {
+            if (isCompleted()) return;
+            throw e;
+        }
+        addRange(offset, offset + data.length);
+        if (getContiguousBytes() - committed >= CHECKPOINT_BYTES) checkpoint();
+    }
+
+    private synchronized void addRange(long start, long end) {
+        Map.Entry<Long, Long> before = received.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = received.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            received.remove(after.getKey());
+        }
+        received.put(start, end);
+    }
+
+    /**
+     * @return count of bytes received so far
+     */
+    public synchronized long getReceivedBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : received.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    /**
+     * @return count of bytes received without gaps from the start of the file
+     */
+    private synchronized long getContiguousBytes() {
+        Long end = received.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    private synchronized boolean isCompleted() {
+        return isCompleted;
+    }
+
+    /**
+     * @return true if the whole file has been written
+     */
+    public synchronized boolean isComplete() {
+        return getContiguousBytes() == fileSize;
+    }
+
+    /**
+     * Flushes the contiguous data to disk and only then persists its end, so the record never
+     * points past the data that survives a crash
+     *
+     * @throws IOException in case of I/O errors
+     */
+    private synchronized void checkpoint() throws IOException {
+        long contiguous = getContiguousBytes();
+        //the record of a completed file is deleted already
+        if (isCompleted || contiguous <= committed) return;
+        channel.force(false);
+        ByteBuffer record = ByteBuffer.allocate(2 * Long.BYTES).putLong(fileSize).putLong(contiguous);
+        Files.write(recordFile, record.array());
+        committed = contiguous;
+    }
 
-    private int nextPart;                                   //next part to be written on disk;
-    private final Map<Integer, FileMessage> parts;          //key: part number; value: message containing data part
+    /**
+     * Moves the complete file to the destination and forgets the transfer. The writers of the other ranges
+     * may still be finishing their last parts, they skip the rest of their work afterwards
+     *
+     * @throws IOException in case of I/O errors
+     */
+    public synchronized void complete() throws IOException {
+        isCompleted = true;
+        channel.close();
+        try {
+            Files.move(dataFile, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(dataFile, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(recordFile);
+    }
 
-    public int getNextPart() {
-        return nextPart;
+    /**
+     * Closes the partial file and persists the committed offset, so the transfer may be continued
+     *
+     * @throws IOException in case of I/O errors
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) return;
+        try {
+            checkpoint();
+        } finally {
+            channel.close();
+        }
     }
 
-    public FileParts() {
-        nextPart = 1;
-        parts = new HashMap<>();
+    /**
+     * Reads the offset an interrupted transfer continues from
+     *
+     * @param transfersDir a folder that keeps partial files and their records
+     * @param transferId   an id of the transfer
+     * @return the committed offset or 0 if the transfer is unknown
+     */
+    public static long committedOffset(Path transfersDir, String transferId) {
+        try {
+            Path dataFile = stateFile(transfersDir, transferId, DATA_SUFFIX);
+            long offset = readRecord(stateFile(transfersDir, transferId, RECORD_SUFFIX), -1);
+            return Files.exists(dataFile) && Files.size(dataFile) >= offset ? offset : 0;
+        } catch (IOException e) {
+            return 0;
+        }
     }
 
     /**
-     * Returns the message for the required part. If such part
-     * has not been received yet, returns null
+     * Deletes partial files and records of the transfers that have not been continued for too long
      *
-     * @return the FileMessage of required file part or null if such part was not received
+     * @param transfersDir a folder that keeps partial files and their records
+     */
+    public static void purgeExpired(Path transfersDir) {
+        if (!Files.isDirectory(transfersDir)) return;
+        long expired = System.currentTimeMillis() - EXPIRY_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(transfersDir)) {
+            for (Path file : stream) {
+                if (Files.getLastModifiedTime(file).toMillis() < expired) Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Resolves a state file of the transfer. The id comes from the network, so it must be a plain UUID
      */
-    public FileMessage removeAndIncrement() {
-        FileMessage part = parts.remove(nextPart);
-        if (part != null) nextPart++;
+    static Path stateFile(Path transfersDir, String transferId, String suffix) throws IOException {
+        try {
+            if (transferId == null || !UUID.fromString(transferId).toString().equals(transferId))
+                throw new IOException("Invalid transfer id: " + transferId);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid transfer id: " + transferId);
+        }
+        return transfersDir.resolve(transferId + suffix);
+    }
 
-        return part;
+    /**
+     * @param fileSize expected size of the file or -1 to accept any
+     * @return the persisted offset or 0 if there is no valid record
+     */
+    private static long readRecord(Path recordFile, long fileSize) throws IOException {
+        if (!Files.exists(recordFile)) return 0;
+        ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(recordFile));
+        if (record.remaining() != 2 * Long.BYTES) return 0;
+        long size = record.getLong();
+        long offset = record.getLong();
+        if (fileSize >= 0 && size != fileSize) return 0;
+        return offset >= 0 && offset <= size ? offset : 0;
     }
 
-    public void addPart(FileMessage fm) {
-        parts.put(fm.getPart(), fm);
+    /**
+     * Closes all the files that are still being received, e.g. when connection is lost
+     *
+     * @param fileParts a map of files being received
+     */
+    public static void closeAll(Map<Path, FileParts> fileParts) {
+        for (FileParts parts : fileParts.values()) {
+            try {
+                parts.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        fileParts.clear();
     }
 
 }
@@ -0,0 +1,213 @@
+package com.chentsov.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Walks file trees lazily. Attributes of every entry are read once and handed out with the entry,
+ * only one directory stream per level is open, and a folder is reported as empty right when it is opened,
+ * so the tree is never listed twice. The first file is available as soon as it is found, while
+ * a bounded lookahead keeps discovering the rest and the discovered totals grow for progress reporting.
+ * <p>
+ * Regular files and empty folders are returned, non-empty folders are implied by their content.
+ * Symbolic links to folders are not followed.
+ */
+public final class FileTreeWalker implements Iterator<FileTreeWalker.Entry>, Closeable {
+
+    private static final Logger logger = LogManager.getLogger(FileTreeWalker.class.getSimpleName());
+
+    private final Iterator<Path> roots;
+    private final int lookaheadSize;
+    private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+    private final Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+    private final Deque<Entry> lookahead = new ArrayDeque<>();
+
+    private long discoveredEntries;
+    private long discoveredBytes;
+    private boolean isDiscoveryComplete;
+
+    /**
+     * An entry of the tree with its attributes
+     */
+    public static final class Entry {
+        public final Path path;
+        public final BasicFileAttributes attributes;
+
+        private Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        public boolean isDirectory() {
+            return attributes.isDirectory();
+        }
+
+        public long size() {
+            return attributes.isDirectory() ? 0 : attributes.size();
+        }
+    }
+
+    /**
+     * @param roots         files and folders to be walked
+     * @param lookaheadSize max count of entries discovered ahead of the returned ones
+     */
+    public FileTreeWalker(Collection<Path> roots, int lookaheadSize) {
+        this.roots = new ArrayList<>(roots).iterator();
+        this.lookaheadSize = Math.max(1, lookaheadSize);
+    }
+
+    public FileTreeWalker(Collection<Path> roots) {
+        this(roots, 1);
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill(1);
+        return !lookahead.isEmpty();
+    }
+
+    @Override
+    public Entry next() {
+        fill(lookaheadSize);
+        if (lookahead.isEmpty()) throw new NoSuchElementException();
+        return lookahead.poll();
+    }
+
+    /**
+     * @return count of entries found so far, including the returned ones
+     */
+    public long getDiscoveredEntries() {
+        return discoveredEntries;
+    }
+
+    /**
+     * @return total size of the files found so far, including the returned ones
+     */
+    public long getDiscoveredBytes() {
+        return discoveredBytes;
+    }
+
+    /**
+     * @return true if the whole tree is discovered, so the totals are final
+     */
+    public boolean isDiscoveryComplete() {
+        return isDiscoveryComplete;
+    }
+
+    @Override
+    public void close() {
+        while (!streams.isEmpty()) {
+            closeCurrentDirectory();
+        }
+        isDiscoveryComplete = true;
+    }
+
+    private void fill(int size) {
+        while (lookahead.size() < size && discoverNext()) ;
+    }
+
+    /**
+     * Finds the next entry to be returned
+     *
+     * @return false if there are no more entries
+     */
+    private boolean discoverNext() {
+        while (!isDiscoveryComplete) {
+            Path path;
+            if (!iterators.isEmpty()) {
+                path = nextInCurrentDirectory();
+                if (path == null) {
+                    closeCurrentDirectory();
+                    continue;
+                }
+            } else if (roots.hasNext()) {
+                path = roots.next();
+            } else {
+                isDiscoveryComplete = true;
+                return false;
+            }
+
+            BasicFileAttributes attributes = readAttributes(path);
+            if (attributes == null) continue;
+            if (attributes.isDirectory() && openDirectory(path)) continue;
+
+            lookahead.add(new Entry(path, attributes));
+            discoveredEntries++;
+            discoveredBytes += attributes.isDirectory() ? 0 : attributes.size();
+            return true;
+        }
+        return false;
+    }
+
+    private Path nextInCurrentDirectory() {
+        try {
+            Iterator<Path> iterator = iterators.peek();
+            return iterator.hasNext() ? iterator.next() : null;
+        } catch (DirectoryIteratorException e) {
+            logger.warn("Cannot list a folder: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens a folder to walk its content
+     *
+     * @param path a folder
+     * @return true if the folder has some content and false if it is empty or cannot be read
+     */
+    private boolean openDirectory(Path path) {
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+            Iterator<Path> iterator = stream.iterator();
+            if (!iterator.hasNext()) {
+                stream.close();
+                return false;
+            }
+            streams.push(stream);
+            iterators.push(iterator);
+            return true;
+        } catch (IOException | DirectoryIteratorException e) {
+            logger.warn("Cannot list " + path + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void closeCurrentDirectory() {
+        iterators.pop();
+        try {
+            streams.pop().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads attributes of the entry. A link to a file is read as the file, a link to a folder is skipped
+     *
+     * @param path an entry of the tree
+     * @return the attributes or null if the entry is skipped
+     */
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isSymbolicLink()) return attributes;
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isDirectory() ? null : attributes;
+        } catch (NoSuchFileException e) {
+            //the entry was removed while walking
+            return null;
+        } catch (IOException e) {
+            logger.warn("Cannot read " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.chentsov.common;
+
+import com.chentsov.common.codec.MessageCodec;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A child of a directory in a Merkle tree. A file is hashed by its content, see {@link ChunkManifest#getContentHash()},
+ * and a directory by the names, kinds, sizes and hashes of its children, see {@link #directoryHash(List)}.
+ * Equal hashes of two directories mean equal trees, so two trees are compared by descending only
+ * into the directories whose hashes differ.
+ */
+public final class MerkleEntry {
+
+    public static final Comparator<MerkleEntry> BY_NAME = Comparator.comparing(entry -> entry.name);
+    //two empty strings, the kind and the size, see write(ByteBuf)
+    public static final int MIN_ENCODED_LENGTH = 2 * Integer.BYTES + 1 + Long.BYTES;
+
+    public final String name;
+    public final boolean isDirectory;
+    //size of a file or total size of the files of a directory
+    public final long size;
+    public final String hash;
+
+    public MerkleEntry(String name, boolean isDirectory, long size, String hash) {
+        this.name = name;
+        this.isDirectory = isDirectory;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    /**
+     * Calculates a hash of a directory. Modification times are not hashed, since a copy of a file is modified
+     * when it is received, and the content hash of a file already changes with its content
+     *
+     * @param children children of the directory sorted by name, see {@link #BY_NAME}
+     * @return a hex string of the directory hash
+     */
+    public static String directoryHash(List<MerkleEntry> children) {
+        MessageDigest digest = ChunkManifest.sha256();
+        ByteBuffer header = ByteBuffer.allocate(2 + Long.BYTES);
+        for (MerkleEntry child : children) {
+            digest.update(child.name.getBytes(StandardCharsets.UTF_8));
+            //the name ends with a zero byte, so names and the rest of the entry never mix
+            header.clear();
+            header.put((byte) 0).put((byte) (child.isDirectory ? 1 : 0)).putLong(child.size);
+            digest.update(header.array());
+            digest.update(child.hash.getBytes(StandardCharsets.UTF_8));
+        }
+        return ChunkManifest.toHex(digest.digest(), 0, ChunkManifest.HASH_LENGTH);
+    }
+
+    /**
+     * @param children children of a directory
+     * @return total size of the files of the directory
+     */
+    public static long directorySize(List<MerkleEntry> children) {
+        long size = 0;
+        for (MerkleEntry child : children) {
+            size += child.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return a length of the entry written by {@link #write(ByteBuf)}
+     */
+    public int encodedLength() {
+        return MIN_ENCODED_LENGTH + MessageCodec.utf8Length(name) + MessageCodec.utf8Length(hash);
+    }
+
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, name);
+        out.writeBoolean(isDirectory);
+        out.writeLong(size);
+        MessageCodec.writeString(out, hash);
+    }
+
+    public static MerkleEntry read(ByteBuf in) {
+        return new MerkleEntry(MessageCodec.readString(in), in.readBoolean(), in.readLong(), MessageCodec.readString(in));
+    }
+
+}
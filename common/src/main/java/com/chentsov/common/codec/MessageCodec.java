@@ -0,0 +1,135 @@
+package com.chentsov.common.codec;
+
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A binary wire format shared by the server and the client. Every frame looks like
+ * <pre>
+ * | length: int | tag: byte | fields | payload |
+ * </pre>
+ * where length counts all the bytes after the length field itself. Fields are written by the message,
+ * payload is raw file data that is sent from its own buffer without copying.
+ */
+public final class MessageCodec {
+
+    static final int LENGTH_FIELD_SIZE = 4;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes the length field, the tag and the fields of the message
+     *
+     * @param msg           a message to be encoded
+     * @param allocator     an allocator for the header buffer
+     * @param payloadLength amount of payload bytes that follow the header
+     * @return a buffer that contains the frame header
+     */
+    public static ByteBuf encodeHeader(AbstractMessage msg, ByteBufAllocator allocator, int payloadLength) {
+        MessageType type = MessageType.of(msg.getClass());
+        if (type == null) throw new EncoderException("Unknown message type: " + msg.getClass().getName());
+
+        ByteBuf header = allocator.buffer();
+        try {
+            header.writeInt(0);
+            header.writeByte(type.getTag());
+            msg.write(header);
+            header.setInt(0, header.readableBytes() - LENGTH_FIELD_SIZE + payloadLength);
+            return header;
+        } catch (RuntimeException e) {
+            header.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a message from the frame. The length field must be already stripped.
+     *
+     * @param frame a frame that starts with the tag
+     * @return a decoded message
+     */
+    public static AbstractMessage decode(ByteBuf frame) {
+        byte tag = frame.readByte();
+        MessageType type = MessageType.of(tag);
+        if (type == null) throw new CorruptedFrameException("Unknown message tag: " + tag);
+        return type.read(frame);
+    }
+
+    /**
+     * Writes a String as its UTF-8 length followed by the UTF-8 bytes. Null is written as length -1
+     *
+     * @param out   a buffer to write to
+     * @param value a String to be written
+     */
+    public static void writeString(ByteBuf out, String value) {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * @param value a String or null
+     * @return a count of the UTF-8 bytes written for the String after its length
+     */
+    public static int utf8Length(String value) {
+        return value == null ? 0 : ByteBufUtil.utf8Bytes(value);
+    }
+
+    /**
+     * Reads a String written by {@link #writeString(ByteBuf, String)}
+     *
+     * @param in a buffer to read from
+     * @return a read String or null
+     */
+    public static String readString(ByteBuf in) {
+        int length = in.readInt();
+        if (length < 0) return null;
+        if (length > in.readableBytes()) throw new CorruptedFrameException("String length exceeds frame: " + length);
+        String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Reads a count of the entries that follow. The count comes from the peer, so it is checked against
+     * the bytes left in the frame before anything is allocated for the entries
+     *
+     * @param in             a buffer to read from
+     * @param minEntryLength the least amount of bytes a single entry takes
+     * @return a read count
+     */
+    public static int readCount(ByteBuf in, int minEntryLength) {
+        int count = in.readInt();
+        if (count < 0 || (long) count * minEntryLength > in.readableBytes())
+            throw new CorruptedFrameException("Count exceeds frame: " + count);
+        return count;
+    }
+
+    /**
+     * Reads a constant written as its ordinal byte
+     *
+     * @param in     a buffer to read from
+     * @param values all the constants of the enum
+     * @return a read constant
+     */
+    public static <E extends Enum<E>> E readEnum(ByteBuf in, E[] values) {
+        byte ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= values.length) throw new CorruptedFrameException("Unknown constant: " + ordinal);
+        return values[ordinal];
+    }
+
+}
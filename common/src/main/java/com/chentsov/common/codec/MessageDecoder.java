@@ -0,0 +1,30 @@
+package com.chentsov.common.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Netty decoder of the binary wire format. Splits the stream into length-prefixed frames
+ * and turns every frame into a message.
+ */
+public class MessageDecoder extends LengthFieldBasedFrameDecoder {
+
+    public MessageDecoder(int maxFrameLength) {
+        super(maxFrameLength, 0, MessageCodec.LENGTH_FIELD_SIZE, 0, MessageCodec.LENGTH_FIELD_SIZE);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext context, ByteBuf in) throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(context, in);
+        if (frame == null) return null;
+        try {
+            return MessageCodec.decode(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+}
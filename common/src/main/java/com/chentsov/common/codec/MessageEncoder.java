@@ -0,0 +1,31 @@
+package com.chentsov.common.codec;
+
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Netty encoder of the binary wire format. The header and the payload are passed downstream
+ * as two separate buffers, so file data is never copied into the header. A header-only message
+ * announces payload bytes that the caller writes right after it, e.g. as a FileRegion.
+ */
+public class MessageEncoder extends MessageToMessageEncoder<AbstractMessage> {
+
+    @Override
+    protected void encode(ChannelHandlerContext context, AbstractMessage msg, List<Object> out) {
+        ByteBuf payload = msg.payload();
+        try {
+            out.add(MessageCodec.encodeHeader(msg, context.alloc(), msg.payloadLength()));
+        } catch (RuntimeException e) {
+            if (payload != null) payload.release();
+            throw e;
+        }
+        if (payload != null) out.add(payload);
+    }
+
+}
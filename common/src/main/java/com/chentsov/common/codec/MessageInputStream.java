@@ -0,0 +1,48 @@
+package com.chentsov.common.codec;
+
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.Unpooled;
+
+import java.io.*;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A blocking counterpart of {@link MessageDecoder} for plain socket streams
+ */
+public class MessageInputStream implements Closeable {
+
+    private final DataInputStream in;
+    private final int maxFrameLength;
+
+    public MessageInputStream(InputStream in, int maxFrameLength) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Reads the next message, blocking until the whole frame is received
+     *
+     * @return a read message
+     * @throws IOException in case of I/O errors or a corrupted frame
+     */
+    public AbstractMessage readMessage() throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > maxFrameLength)
+            throw new StreamCorruptedException("Frame length is out of bounds: " + length);
+
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        try {
+            return MessageCodec.decode(Unpooled.wrappedBuffer(frame));
+        } catch (RuntimeException e) {
+            throw new StreamCorruptedException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
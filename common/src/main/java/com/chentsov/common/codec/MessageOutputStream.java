@@ -0,0 +1,53 @@
+package com.chentsov.common.codec;
+
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.io.*;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A blocking counterpart of {@link MessageEncoder} for plain socket streams
+ */
+public class MessageOutputStream implements Closeable, Flushable {
+
+    private final OutputStream out;
+
+    public MessageOutputStream(OutputStream out) {
+        this.out = new BufferedOutputStream(out);
+    }
+
+    /**
+     * Writes a message. The payload goes straight from its buffer to the stream
+     *
+     * @param msg a message to be written
+     * @throws IOException in case of I/O errors
+     */
+    public void writeMessage(AbstractMessage msg) throws IOException {
+        ByteBuf payload = msg.payload();
+        try {
+            ByteBuf header = MessageCodec.encodeHeader(msg, UnpooledByteBufAllocator.DEFAULT, msg.payloadLength());
+            try {
+                header.readBytes(out, header.readableBytes());
+            } finally {
+                header.release();
+            }
+            if (payload != null) payload.readBytes(out, payload.readableBytes());
+        } finally {
+            if (payload != null) payload.release();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -1,11 +1,39 @@
 package com.chentsov.common.messages;
 
-        import java.io.Serializable;
+import io.netty.buffer.ByteBuf;
 
 /**
  * @author Evgenii Chentsov
  * <p>
  * A base class that represents an abstract message
  */
-public abstract class AbstractMessage implements Serializable {
+public abstract class AbstractMessage {
+
+    /**
+     * Writes message fields into the buffer. Raw file data is not written here, see {@link #payload()}
+     *
+     * @param out a buffer to write fields to
+     */
+    public abstract void write(ByteBuf out);
+
+    /**
+     * Returns raw bytes that follow the message fields on the wire. The bytes are never copied
+     * into the header buffer, so a payload is sent straight from its own buffer.
+     *
+     * @return a payload buffer or null if the message has no payload
+     */
+    public ByteBuf payload() {
+        return null;
+    }
+
+    /**
+     * Returns the amount of payload bytes announced in the frame header. Usually it is the size of
+     * {@link #payload()}, but a header-only message may announce bytes that are written to the channel separately.
+     *
+     * @return the payload length
+     */
+    public int payloadLength() {
+        return 0;
+    }
+
 }
@@ -0,0 +1,109 @@
+package com.chentsov.common.messages;
+
+import com.chentsov.common.messages.requests.*;
+import com.chentsov.common.messages.responses.ArchiveChunk;
+import com.chentsov.common.messages.responses.AuthResponse;
+import com.chentsov.common.messages.responses.DeltaMessage;
+import com.chentsov.common.messages.responses.DeltaResult;
+import com.chentsov.common.messages.responses.FileBatchMessage;
+import com.chentsov.common.messages.responses.FileChangeEvent;
+import com.chentsov.common.messages.responses.FileListDelta;
+import com.chentsov.common.messages.responses.FileListResponse;
+import com.chentsov.common.messages.responses.FileMessage;
+import com.chentsov.common.messages.responses.MerkleResponse;
+import com.chentsov.common.messages.responses.MissingChunks;
+import com.chentsov.common.messages.responses.NeededFiles;
+import com.chentsov.common.messages.responses.ResumeResponse;
+import com.chentsov.common.messages.responses.SignatureResponse;
+import io.netty.buffer.ByteBuf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Type tags of the messages sent over the wire. A tag is the first byte of every frame
+ * and selects the method that reads the rest of the frame.
+ */
+public enum MessageType {
+
+    AUTH_REQUEST(1, AuthRequest.class, AuthRequest::read),
+    AUTH_RESPONSE(2, AuthResponse.class, AuthResponse::read),
+    FILE_LIST_REQUEST(3, FileListRequest.class, FileListRequest::read),
+    FILE_LIST_RESPONSE(4, FileListResponse.class, FileListResponse::read),
+    FILE_REQUEST(5, FileRequest.class, FileRequest::read),
+    FILE_MESSAGE(6, FileMessage.class, FileMessage::read),
+    DELETE_FILE_REQUEST(7, DeleteFileRequest.class, DeleteFileRequest::read),
+    RENAME_FILE_REQUEST(8, RenameFileRequest.class, RenameFileRequest::read),
+    LOGOUT_MESSAGE(9, LogoutMessage.class, LogoutMessage::read),
+    FILE_LIST_DELTA(10, FileListDelta.class, FileListDelta::read),
+    FILE_CHANGE_EVENT(11, FileChangeEvent.class, FileChangeEvent::read),
+    FILE_BATCH_MESSAGE(12, FileBatchMessage.class, FileBatchMessage::read),
+    ARCHIVE_CHUNK(13, ArchiveChunk.class, ArchiveChunk::read),
+    RESUME_REQUEST(14, ResumeRequest.class, ResumeRequest::read),
+    RESUME_RESPONSE(15, ResumeResponse.class, ResumeResponse::read),
+    MANIFEST_REQUEST(16, ManifestRequest.class, ManifestRequest::read),
+    MISSING_CHUNKS(17, MissingChunks.class, MissingChunks::read),
+    PREFLIGHT_REQUEST(18, PreflightRequest.class, PreflightRequest::read),
+    NEEDED_FILES(19, NeededFiles.class, NeededFiles::read),
+    SIGNATURE_REQUEST(20, SignatureRequest.class, SignatureRequest::read),
+    SIGNATURE_RESPONSE(21, SignatureResponse.class, SignatureResponse::read),
+    DELTA_REQUEST(22, DeltaRequest.class, DeltaRequest::read),
+    DELTA_MESSAGE(23, DeltaMessage.class, DeltaMessage::read),
+    MERKLE_REQUEST(24, MerkleRequest.class, MerkleRequest::read),
+    MERKLE_RESPONSE(25, MerkleResponse.class, MerkleResponse::read),
+    DELTA_RESULT(26, DeltaResult.class, DeltaResult::read);
+
+    private static final Map<Class<? extends AbstractMessage>, MessageType> byClass = new HashMap<>();
+    private static final MessageType[] byTag = new MessageType[Byte.MAX_VALUE + 1];
+
+    static {
+        for (MessageType type : values()) {
+            byClass.put(type.messageClass, type);
+            byTag[type.tag] = type;
+        }
+    }
+
+    private final byte tag;
+    private final Class<? extends AbstractMessage> messageClass;
+    private final Function<ByteBuf, ? extends AbstractMessage> reader;
+
+    MessageType(int tag, Class<? extends AbstractMessage> messageClass, Function<ByteBuf, ? extends AbstractMessage> reader) {
+        this.tag = (byte) tag;
+        this.messageClass = messageClass;
+        this.reader = reader;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    /**
+     * Reads a message of this type from the frame. The tag must be already consumed.
+     *
+     * @param in a frame positioned right after the tag
+     * @return a read message
+     */
+    public AbstractMessage read(ByteBuf in) {
+        return reader.apply(in);
+    }
+
+    /**
+     * @param messageClass a class of the message
+     * @return the type of the message or null if the class is not registered
+     */
+    public static MessageType of(Class<? extends AbstractMessage> messageClass) {
+        return byClass.get(messageClass);
+    }
+
+    /**
+     * @param tag a tag read from the wire
+     * @return the type with the given tag or null if the tag is unknown
+     */
+    public static MessageType of(byte tag) {
+        return tag < 0 ? null : byTag[tag];
+    }
+
+}
@@ -1,22 +1,61 @@
 package com.chentsov.common.messages.requests;
 
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 
 /**
  * @author Evgenii Chentsov
  * <p>
- * A message that represents authorization request
+ * A message that represents authorization request. A client that has already logged in
+ * may present the session token instead of the password. The client also reports the largest file part
+ * it accepts and the measured round trip time, so the server can pick part sizes for the link.
+ * A data connection only carries ranges of a large file and receives no change notifications.
  */
 public final class AuthRequest extends AbstractMessage {
 
     public final String login;
     public final String password;
     public final boolean isNewUser;
+    public final String sessionToken;
+    public final int maxChunkSize;
+    public final long rttMicros;
+    public final boolean isDataConnection;
 
-    public AuthRequest(String login, String password, boolean isNewUser) {
+    public AuthRequest(String login, String password, boolean isNewUser, long rttMicros) {
+        this(login, password, isNewUser, null, ChunkSizer.MAX_CHUNK_SIZE, rttMicros, false);
+    }
+
+    public AuthRequest(String login, String sessionToken, long rttMicros, boolean isDataConnection) {
+        this(login, null, false, sessionToken, ChunkSizer.MAX_CHUNK_SIZE, rttMicros, isDataConnection);
+    }
+
+    private AuthRequest(String login, String password, boolean isNewUser, String sessionToken,
+                        int maxChunkSize, long rttMicros, boolean isDataConnection) {
         this.login = login;
         this.password = password;
         this.isNewUser = isNewUser;
+        this.sessionToken = sessionToken;
+        this.maxChunkSize = maxChunkSize;
+        this.rttMicros = rttMicros;
+        this.isDataConnection = isDataConnection;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, login);
+        MessageCodec.writeString(out, password);
+        out.writeBoolean(isNewUser);
+        MessageCodec.writeString(out, sessionToken);
+        out.writeInt(maxChunkSize);
+        out.writeLong(rttMicros);
+        out.writeBoolean(isDataConnection);
+    }
+
+    public static AuthRequest read(ByteBuf in) {
+        return new AuthRequest(MessageCodec.readString(in), MessageCodec.readString(in), in.readBoolean(),
+                MessageCodec.readString(in), in.readInt(), in.readLong(), in.readBoolean());
     }
 
 }
@@ -1,8 +1,11 @@
 package com.chentsov.common.messages.requests;
 
 import com.chentsov.common.FileItem;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -19,4 +22,21 @@ public final class DeleteFileRequest extends AbstractMessage {
         this.items = Collections.unmodifiableList(items);
     }
 
+    @Override
+    public void write(ByteBuf out) {
+        out.writeInt(items.size());
+        for (FileItem item : items) {
+            item.write(out);
+        }
+    }
+
+    public static DeleteFileRequest read(ByteBuf in) {
+        int size = MessageCodec.readCount(in, FileItem.MIN_ENCODED_LENGTH);
+        List<FileItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(FileItem.read(in));
+        }
+        return new DeleteFileRequest(items);
+    }
+
 }
@@ -0,0 +1,43 @@
+package com.chentsov.common.messages.requests;
+
+import com.chentsov.common.BlockSignatures;
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that requests a file as a delta against the local copy of the file, the signatures
+ * of the copy are sent along, see {@link com.chentsov.common.BlockSignatures}
+ */
+public final class DeltaRequest extends AbstractMessage {
+
+    public final String transferId;
+    //a path of the requested file
+    public final String stringPath;
+    //a local folder that holds the copy
+    public final String destination;
+    public final BlockSignatures signatures;
+
+    public DeltaRequest(String transferId, String stringPath, String destination, BlockSignatures signatures) {
+        this.transferId = transferId;
+        this.stringPath = stringPath;
+        this.destination = destination;
+        this.signatures = signatures;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        MessageCodec.writeString(out, stringPath);
+        MessageCodec.writeString(out, destination);
+        signatures.write(out);
+    }
+
+    public static DeltaRequest read(ByteBuf in) {
+        return new DeltaRequest(MessageCodec.readString(in), MessageCodec.readString(in), MessageCodec.readString(in),
+                BlockSignatures.read(in));
+    }
+
+}
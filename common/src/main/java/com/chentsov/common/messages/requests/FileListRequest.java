@@ -1,17 +1,80 @@
 package com.chentsov.common.messages.requests;
 
+import com.chentsov.common.FileItem;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Comparator;
 
 /**
  * @author Evgenii Chentsov
  * <p>
- * A message that represents cloud file list request.
+ * A message that represents cloud file list request. The listing is streamed back in pages
+ * of pageSize items sorted by sortKey, starting from the item at cursor. If the client already has
+ * a listing of the directory, it passes the version of it and receives only the changes.
  */
 public final class FileListRequest extends AbstractMessage {
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * Orders of the listing. The parent folder item always goes first and equal items are ordered by name,
+     * so the order is stable and a cursor points to the same item between requests
+     */
+    public enum SortKey {
+        NAME(Comparator.comparing(FileItem::getName, String.CASE_INSENSITIVE_ORDER)),
+        SIZE(Comparator.comparingLong(FileItem::getSize)),
+        DATE(Comparator.comparingLong(item -> item.getDate() == null ? 0 : item.getDate().getTime()));
+
+        private final Comparator<FileItem> comparator;
+
+        SortKey(Comparator<FileItem> comparator) {
+            this.comparator = Comparator.comparing(FileItem::isParentDir).reversed()
+                    .thenComparing(comparator)
+                    .thenComparing(FileItem::getName);
+        }
+
+        public Comparator<FileItem> comparator() {
+            return comparator;
+        }
+    }
+
     public final String currentCloudPath;
+    public final int cursor;
+    public final int pageSize;
+    public final SortKey sortKey;
+    //a version of the listing the client has or 0 if there is none
+    public final long version;
 
     public FileListRequest(String currentCloudPath) {
+        this(currentCloudPath, 0);
+    }
+
+    public FileListRequest(String currentCloudPath, long version) {
+        this(currentCloudPath, 0, DEFAULT_PAGE_SIZE, SortKey.NAME, version);
+    }
+
+    public FileListRequest(String currentCloudPath, int cursor, int pageSize, SortKey sortKey, long version) {
         this.currentCloudPath = currentCloudPath;
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+        this.sortKey = sortKey;
+        this.version = version;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, currentCloudPath);
+        out.writeInt(cursor);
+        out.writeInt(pageSize);
+        out.writeByte(sortKey.ordinal());
+        out.writeLong(version);
+    }
+
+    public static FileListRequest read(ByteBuf in) {
+        return new FileListRequest(MessageCodec.readString(in), in.readInt(), in.readInt(),
+                MessageCodec.readEnum(in, SortKey.values()), in.readLong());
     }
 
 }
@@ -1,19 +1,31 @@
 package com.chentsov.common.messages.requests;
 
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 /**
  * @author Evgenii Chentsov
  * <p>
- * A message that represents a cloud file request
+ * A message that represents a cloud file request. If the archive option is set, the files are streamed
+ * as a single compressed archive instead of a message per file. A request that holds a transfer id
+ * continues an interrupted download of a single file from the given offset. A range request asks for
+ * the given bytes of a single file, so a file may be downloaded over several connections at once.
  */
 public final class FileRequest extends AbstractMessage {
 
     public final String destinationPath;
     private final List<String> stringPaths;
+    public final boolean archive;
+    //an interrupted download to be continued or null
+    public final String transferId;
+    public final long offset;
+    //length of the requested range or -1 for the rest of the file
+    public final long length;
 
     public List<String> getStringPaths() {
         return stringPaths;
@@ -24,8 +36,52 @@ public final class FileRequest extends AbstractMessage {
     }
 
     public FileRequest(List<String> stringPaths, String destinationPath) {
+        this(stringPaths, destinationPath, false);
+    }
+
+    public FileRequest(List<String> stringPaths, String destinationPath, boolean archive) {
+        this(stringPaths, destinationPath, archive, null, 0, -1);
+    }
+
+    public FileRequest(String stringPath, String destinationPath, String transferId, long offset) {
+        this(Collections.singletonList(stringPath), destinationPath, false, transferId, offset, -1);
+    }
+
+    public FileRequest(String stringPath, String destinationPath, long offset, long length) {
+        this(Collections.singletonList(stringPath), destinationPath, false, null, offset, length);
+    }
+
+    private FileRequest(List<String> stringPaths, String destinationPath, boolean archive, String transferId,
+                        long offset, long length) {
         this.stringPaths = Collections.unmodifiableList(stringPaths);
         this.destinationPath = destinationPath;
+        this.archive = archive;
+        this.transferId = transferId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        out.writeInt(stringPaths.size());
+        for (String stringPath : stringPaths) {
+            MessageCodec.writeString(out, stringPath);
+        }
+        MessageCodec.writeString(out, destinationPath);
+        out.writeBoolean(archive);
+        MessageCodec.writeString(out, transferId);
+        out.writeLong(offset);
+        out.writeLong(length);
+    }
+
+    public static FileRequest read(ByteBuf in) {
+        int size = MessageCodec.readCount(in, Integer.BYTES);
+        List<String> stringPaths = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stringPaths.add(MessageCodec.readString(in));
+        }
+        return new FileRequest(stringPaths, MessageCodec.readString(in), in.readBoolean(), MessageCodec.readString(in),
+                in.readLong(), in.readLong());
     }
 
 }
@@ -1,9 +1,19 @@
 package com.chentsov.common.messages.requests;
 
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 
 /**
  * @author Evgenii Chentsov
  */
 public class LogoutMessage extends AbstractMessage {
+
+    @Override
+    public void write(ByteBuf out) {
+    }
+
+    public static LogoutMessage read(ByteBuf in) {
+        return new LogoutMessage();
+    }
+
 }
@@ -0,0 +1,41 @@
+package com.chentsov.common.messages.requests;
+
+import com.chentsov.common.ChunkManifest;
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that offers a large file as a list of content-defined chunks. The server assembles the file
+ * from the chunks it already stores and answers with the chunks to be uploaded, see {@link ChunkManifest}.
+ */
+public final class ManifestRequest extends AbstractMessage {
+
+    public final String destination;
+    public final String relativePath;
+    public final String transferId;
+    public final ChunkManifest manifest;
+
+    public ManifestRequest(String destination, String relativePath, String transferId, ChunkManifest manifest) {
+        this.destination = destination;
+        this.relativePath = relativePath;
+        this.transferId = transferId;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, destination);
+        MessageCodec.writeString(out, relativePath);
+        MessageCodec.writeString(out, transferId);
+        manifest.write(out);
+    }
+
+    public static ManifestRequest read(ByteBuf in) {
+        return new ManifestRequest(MessageCodec.readString(in), MessageCodec.readString(in), MessageCodec.readString(in),
+                ChunkManifest.read(in));
+    }
+
+}
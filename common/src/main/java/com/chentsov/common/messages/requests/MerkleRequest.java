@@ -0,0 +1,46 @@
+package com.chentsov.common.messages.requests;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that asks for the Merkle hashes of the children of several cloud directories at once,
+ * see {@link com.chentsov.common.MerkleEntry}. A comparison of two trees asks for a whole level
+ * of the differing directories in a single request.
+ */
+public final class MerkleRequest extends AbstractMessage {
+
+    public final String id;
+    public final List<String> paths;
+
+    public MerkleRequest(String id, List<String> paths) {
+        this.id = id;
+        this.paths = paths;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, id);
+        out.writeInt(paths.size());
+        for (String path : paths) {
+            MessageCodec.writeString(out, path);
+        }
+    }
+
+    public static MerkleRequest read(ByteBuf in) {
+        String id = MessageCodec.readString(in);
+        int count = MessageCodec.readCount(in, Integer.BYTES);
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(MessageCodec.readString(in));
+        }
+        return new MerkleRequest(id, paths);
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.chentsov.common.messages.requests;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that lists the files of an upload before they are sent. The server answers with the files
+ * it does not have yet, see {@link com.chentsov.common.messages.responses.NeededFiles}, so unchanged files
+ * of a repeated upload are skipped. A large selection is listed in several pages.
+ */
+public final class PreflightRequest extends AbstractMessage {
+
+    //bytes an entry takes in a message besides its path
+    public static final int ENTRY_OVERHEAD = 2 * Integer.BYTES + Long.BYTES + 64;
+
+    public final String id;
+    public final String destination;
+    public final List<Entry> entries;
+
+    /**
+     * A file of the upload. A content hash is a hash of the chunk hashes, see {@link com.chentsov.common.ChunkManifest}.
+     * Modification times are not compared, since a stored copy is modified when it is received
+     */
+    public static final class Entry {
+        public final String relativePath;
+        public final long size;
+        public final String contentHash;
+
+        public Entry(String relativePath, long size, String contentHash) {
+            this.relativePath = relativePath;
+            this.size = size;
+            this.contentHash = contentHash;
+        }
+    }
+
+    public PreflightRequest(String id, String destination, List<Entry> entries) {
+        this.id = id;
+        this.destination = destination;
+        this.entries = entries;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, id);
+        MessageCodec.writeString(out, destination);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            MessageCodec.writeString(out, entry.relativePath);
+            out.writeLong(entry.size);
+            MessageCodec.writeString(out, entry.contentHash);
+        }
+    }
+
+    public static PreflightRequest read(ByteBuf in) {
+        String id = MessageCodec.readString(in);
+        String destination = MessageCodec.readString(in);
+        int count = MessageCodec.readCount(in, 2 * Integer.BYTES + Long.BYTES);
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(MessageCodec.readString(in), in.readLong(), MessageCodec.readString(in)));
+        }
+        return new PreflightRequest(id, destination, entries);
+    }
+
+}
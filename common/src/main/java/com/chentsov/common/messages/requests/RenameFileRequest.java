@@ -1,7 +1,9 @@
 package com.chentsov.common.messages.requests;
 
 import com.chentsov.common.FileItem;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 
 /**
  * @author Evgenii Chentsov
@@ -15,4 +17,14 @@ public class RenameFileRequest extends AbstractMessage {
         this.newName = newName;
     }
 
+    @Override
+    public void write(ByteBuf out) {
+        item.write(out);
+        MessageCodec.writeString(out, newName);
+    }
+
+    public static RenameFileRequest read(ByteBuf in) {
+        return new RenameFileRequest(FileItem.read(in), MessageCodec.readString(in));
+    }
+
 }
@@ -0,0 +1,29 @@
+package com.chentsov.common.messages.requests;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that asks the receiver of an interrupted upload for the offset the upload may continue from
+ */
+public final class ResumeRequest extends AbstractMessage {
+
+    public final String transferId;
+
+    public ResumeRequest(String transferId) {
+        this.transferId = transferId;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+    }
+
+    public static ResumeRequest read(ByteBuf in) {
+        return new ResumeRequest(MessageCodec.readString(in));
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.chentsov.common.messages.requests;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that asks the receiver of an upload for the block signatures of its copy of the file,
+ * so only a delta of the new version is sent, see {@link com.chentsov.common.BlockSignatures}
+ */
+public final class SignatureRequest extends AbstractMessage {
+
+    public final String transferId;
+    //a path of the copy on the receiver
+    public final String stringPath;
+
+    public SignatureRequest(String transferId, String stringPath) {
+        this.transferId = transferId;
+        this.stringPath = stringPath;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        MessageCodec.writeString(out, stringPath);
+    }
+
+    public static SignatureRequest read(ByteBuf in) {
+        return new SignatureRequest(MessageCodec.readString(in), MessageCodec.readString(in));
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that contains a piece of a zip archive streamed by the server. The pieces of a single archive
+ * are sent one after another, the last one completes the archive.
+ */
+public class ArchiveChunk extends AbstractMessage {
+
+    //a local folder the archive is extracted to
+    public final String destination;
+    public final boolean last;
+    private final byte[] data;
+
+    public ArchiveChunk(String destination, boolean last, byte[] data) {
+        this.destination = destination;
+        this.last = last;
+        this.data = data;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, destination);
+        out.writeBoolean(last);
+    }
+
+    @Override
+    public ByteBuf payload() {
+        return Unpooled.wrappedBuffer(data);
+    }
+
+    @Override
+    public int payloadLength() {
+        return data.length;
+    }
+
+    public static ArchiveChunk read(ByteBuf in) {
+        String destination = MessageCodec.readString(in);
+        boolean last = in.readBoolean();
+        byte[] data = new byte[in.readableBytes()];
+        in.readBytes(data);
+        return new ArchiveChunk(destination, last, data);
+    }
+}
@@ -1,7 +1,9 @@
 package com.chentsov.common.messages.responses;
 
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
-import com.sun.deploy.util.StringUtils;
+import io.netty.buffer.ByteBuf;
 
 /**
  * @author Evgenii Chentsov
@@ -12,14 +14,58 @@ public final class AuthResponse extends AbstractMessage {
 
     public final boolean success;
     public final String pathToStorage;
+    //signed token that lets the client log in again without the password, null if auth failed
+    public final String sessionToken;
+    //file part bounds negotiated for the connection and the part size to start with
+    public final int minChunkSize;
+    public final int maxChunkSize;
+    public final int chunkSize;
 
     public AuthResponse(boolean success) {
-        this.success = success;
-        pathToStorage = "";
+        this(success, "");
     }
 
     public AuthResponse(boolean success, String pathToStorage) {
+        this(success, pathToStorage, null);
+    }
+
+    public AuthResponse(boolean success, String pathToStorage, String sessionToken) {
+        this(success, pathToStorage, sessionToken, ChunkSizer.MIN_CHUNK_SIZE, ChunkSizer.MAX_CHUNK_SIZE,
+                ChunkSizer.INITIAL_CHUNK_SIZE);
+    }
+
+    public AuthResponse(boolean success, String pathToStorage, String sessionToken,
+                        int minChunkSize, int maxChunkSize, int chunkSize) {
         this.success = success;
         this.pathToStorage = pathToStorage;
+        this.sessionToken = sessionToken;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates a sizer for the parts sent by the client within the negotiated bounds
+     *
+     * @param rttMicros a round trip time measured by the client
+     * @return a new ChunkSizer
+     */
+    public ChunkSizer chunkSizer(long rttMicros) {
+        return new ChunkSizer(minChunkSize, maxChunkSize, chunkSize, rttMicros);
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        out.writeBoolean(success);
+        MessageCodec.writeString(out, pathToStorage);
+        MessageCodec.writeString(out, sessionToken);
+        out.writeInt(minChunkSize);
+        out.writeInt(maxChunkSize);
+        out.writeInt(chunkSize);
+    }
+
+    public static AuthResponse read(ByteBuf in) {
+        return new AuthResponse(in.readBoolean(), MessageCodec.readString(in), MessageCodec.readString(in),
+                in.readInt(), in.readInt(), in.readInt());
     }
 }
@@ -0,0 +1,85 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that contains the next instructions of a delta, see {@link com.chentsov.common.DeltaEncoder}.
+ * The messages of a delta are sent one after another. Every message declares the size of the new version
+ * of the file, so the receiver never writes past it, and the last one holds the hash, so the receiver checks
+ * the rebuilt file before it replaces the current one.
+ */
+public final class DeltaMessage extends AbstractMessage {
+
+    public final String transferId;
+    public final String destination;
+    public final String relativePath;
+    public final int blockSize;
+    //the size of the new version and its hash, the hash is set in the last message only
+    public final long fileSize;
+    public final byte[] fileHash;
+    private final byte[] data;
+
+    public DeltaMessage(String transferId, String destination, String relativePath, int blockSize, long fileSize,
+                        byte[] fileHash, byte[] data) {
+        this.transferId = transferId;
+        this.destination = destination;
+        this.relativePath = relativePath;
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.fileHash = fileHash;
+        this.data = data;
+    }
+
+    public boolean isLast() {
+        return fileHash != null;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        MessageCodec.writeString(out, destination);
+        MessageCodec.writeString(out, relativePath);
+        out.writeInt(blockSize);
+        out.writeLong(fileSize);
+        out.writeInt(fileHash == null ? -1 : fileHash.length);
+        if (fileHash != null) out.writeBytes(fileHash);
+    }
+
+    @Override
+    public ByteBuf payload() {
+        return Unpooled.wrappedBuffer(data);
+    }
+
+    @Override
+    public int payloadLength() {
+        return data.length;
+    }
+
+    public static DeltaMessage read(ByteBuf in) {
+        String transferId = MessageCodec.readString(in);
+        String destination = MessageCodec.readString(in);
+        String relativePath = MessageCodec.readString(in);
+        int blockSize = in.readInt();
+        long fileSize = in.readLong();
+        int hashLength = in.readInt();
+        if (hashLength > in.readableBytes()) throw new IllegalArgumentException("Invalid hash length: " + hashLength);
+        byte[] fileHash = null;
+        if (hashLength >= 0) {
+            fileHash = new byte[hashLength];
+            in.readBytes(fileHash);
+        }
+        byte[] data = new byte[in.readableBytes()];
+        in.readBytes(data);
+        return new DeltaMessage(transferId, destination, relativePath, blockSize, fileSize, fileHash, data);
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that tells if an uploaded delta has been applied. A delta is not applied if the rebuilt file
+ * does not match, e.g. the copy has been overwritten after its signatures were sent, the file is sent as it is then.
+ */
+public final class DeltaResult extends AbstractMessage {
+
+    public final String transferId;
+    public final boolean isApplied;
+
+    public DeltaResult(String transferId, boolean isApplied) {
+        this.transferId = transferId;
+        this.isApplied = isApplied;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        out.writeBoolean(isApplied);
+    }
+
+    public static DeltaResult read(ByteBuf in) {
+        return new DeltaResult(MessageCodec.readString(in), in.readBoolean());
+    }
+
+}
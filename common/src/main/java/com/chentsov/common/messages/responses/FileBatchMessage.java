@@ -0,0 +1,195 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that packs many small files into a single frame. The fields hold a table of relative paths
+ * with offsets and lengths, the payload holds the contents of all the files one after another.
+ * An empty folder is an entry with a negative length.
+ */
+public class FileBatchMessage extends AbstractMessage {
+
+    private final String destination;
+    private final List<String> relativePaths;
+    private final List<int[]> ranges;
+    private final byte[] data;
+    private final int length;
+
+    private FileBatchMessage(String destination, List<String> relativePaths, List<int[]> ranges, byte[] data, int length) {
+        this.destination = destination;
+        this.relativePaths = relativePaths;
+        this.ranges = ranges;
+        this.data = data;
+        this.length = length;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public int size() {
+        return relativePaths.size();
+    }
+
+    public String getRelativePath(int index) {
+        return relativePaths.get(index);
+    }
+
+    /**
+     * @param index an index of the entry
+     * @return true if the entry is an empty folder
+     */
+    public boolean isFolder(int index) {
+        return ranges.get(index)[1] < 0;
+    }
+
+    /**
+     * @param index an index of the entry
+     * @return a buffer that shares the content of the file with the message
+     */
+    public ByteBuf getData(int index) {
+        int[] range = ranges.get(index);
+        return Unpooled.wrappedBuffer(data, range[0], Math.max(0, range[1]));
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, destination);
+        out.writeInt(relativePaths.size());
+        for (int i = 0; i < relativePaths.size(); i++) {
+            MessageCodec.writeString(out, relativePaths.get(i));
+            out.writeInt(ranges.get(i)[0]);
+            out.writeInt(ranges.get(i)[1]);
+        }
+    }
+
+    @Override
+    public ByteBuf payload() {
+        return Unpooled.wrappedBuffer(data, 0, length);
+    }
+
+    @Override
+    public int payloadLength() {
+        return length;
+    }
+
+    public static FileBatchMessage read(ByteBuf in) {
+        String destination = MessageCodec.readString(in);
+        //a relative path and an offset with a length
+        int count = MessageCodec.readCount(in, 3 * Integer.BYTES);
+        List<String> relativePaths = new ArrayList<>(count);
+        List<int[]> ranges = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            relativePaths.add(MessageCodec.readString(in));
+            ranges.add(new int[]{in.readInt(), in.readInt()});
+        }
+        byte[] data = new byte[in.readableBytes()];
+        in.readBytes(data);
+        for (int[] range : ranges) {
+            if (range[0] < 0 || (long) range[0] + Math.max(0, range[1]) > data.length)
+                throw new IllegalArgumentException("Batch entry is out of the payload");
+        }
+        return new FileBatchMessage(destination, relativePaths, ranges, data, data.length);
+    }
+
+    /**
+     * Collects small files until the batch is full. Files are read straight into a single array,
+     * and the built message takes the array over, so the content is never copied
+     */
+    public static final class Builder {
+        private final String destination;
+        private final int maxSize;
+        private final List<String> relativePaths = new ArrayList<>();
+        private final List<int[]> ranges = new ArrayList<>();
+        private byte[] data;
+        private int length;
+
+        /**
+         * @param destination a path to the target folder
+         * @param maxSize     max total size of the files in a batch
+         */
+        public Builder(String destination, int maxSize) {
+            this.destination = destination;
+            this.maxSize = maxSize;
+            this.data = new byte[Math.min(maxSize, 64 * 1024)];
+        }
+
+        /**
+         * @param size a size of the next file
+         * @return true if the file fits into the batch
+         */
+        public boolean fits(int size) {
+            return length + size <= maxSize;
+        }
+
+        public boolean isEmpty() {
+            return relativePaths.isEmpty();
+        }
+
+        public int size() {
+            return relativePaths.size();
+        }
+
+        /**
+         * Reads a file into the batch. The caller checks that it fits, see {@link #fits(int)}
+         *
+         * @param relativePath a path to the file relative to the source directory
+         * @param file         a file to be read
+         * @param size         a size of the file
+         * @throws IOException in case of I/O errors
+         */
+        public void addFile(String relativePath, Path file, int size) throws IOException {
+            if (length + size > data.length) {
+                byte[] grown = new byte[Math.max(length + size, Math.min(maxSize, data.length * 2))];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            try (InputStream stream = Files.newInputStream(file)) {
+                int read = 0;
+                while (read < size) {
+                    int count = stream.read(data, length + read, size - read);
+                    if (count < 0) throw new EOFException("File is truncated while reading: " + file);
+                    read += count;
+                }
+            }
+            relativePaths.add(relativePath);
+            ranges.add(new int[]{length, size});
+            length += size;
+        }
+
+        public void addFolder(String relativePath) {
+            relativePaths.add(relativePath);
+            ranges.add(new int[]{length, -1});
+        }
+
+        /**
+         * Creates a message of the collected files and resets the builder
+         *
+         * @return a new message
+         */
+        public FileBatchMessage build() {
+            FileBatchMessage message = new FileBatchMessage(destination, new ArrayList<>(relativePaths),
+                    new ArrayList<>(ranges), data, length);
+            relativePaths.clear();
+            ranges.clear();
+            //the message may still be sent asynchronously, so the next batch needs its own array
+            data = new byte[data.length];
+            length = 0;
+            return message;
+        }
+    }
+
+}
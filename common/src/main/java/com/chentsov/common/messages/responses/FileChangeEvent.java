@@ -0,0 +1,66 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.FileItem;
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Date;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message pushed by the server to the other sessions of a user when a cloud file is changed,
+ * so every client keeps its listing up to date without polling.
+ */
+public class FileChangeEvent extends AbstractMessage {
+
+    public enum Kind {
+        //a file is created or its content is changed
+        CHANGED,
+        DELETED
+    }
+
+    public final String path;
+    public final Kind kind;
+    public final long size;
+    public final long lastModified;
+    public final boolean isDir;
+
+    public FileChangeEvent(String path, Kind kind, long size, long lastModified, boolean isDir) {
+        this.path = path;
+        this.kind = kind;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.isDir = isDir;
+    }
+
+    /**
+     * @param path a path of the deleted file
+     * @return an event of the deleted file
+     */
+    public static FileChangeEvent deleted(String path) {
+        return new FileChangeEvent(path, Kind.DELETED, 0, -1, false);
+    }
+
+    /**
+     * @return an item of the changed file
+     */
+    public FileItem toFileItem() {
+        return FileItem.of(path, size, lastModified < 0 ? null : new Date(lastModified), isDir);
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, path);
+        out.writeByte(kind.ordinal());
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeBoolean(isDir);
+    }
+
+    public static FileChangeEvent read(ByteBuf in) {
+        return new FileChangeEvent(MessageCodec.readString(in), MessageCodec.readEnum(in, Kind.values()),
+                in.readLong(), in.readLong(), in.readBoolean());
+    }
+}
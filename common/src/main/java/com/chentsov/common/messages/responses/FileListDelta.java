@@ -0,0 +1,65 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.FileItem;
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that represents changes of a cloud directory listing between two versions.
+ * Changed items are added or replace the items with the same path, removed paths are dropped.
+ * The delta may be applied only to the listing of fromVersion.
+ */
+public class FileListDelta extends AbstractMessage {
+    public final String path;
+    public final long fromVersion;
+    public final long version;
+    public final List<FileItem> changed;
+    public final List<String> removed;
+
+    public FileListDelta(String path, long fromVersion, long version, List<FileItem> changed, List<String> removed) {
+        this.path = path;
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.changed = Collections.unmodifiableList(changed);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, path);
+        out.writeLong(fromVersion);
+        out.writeLong(version);
+        out.writeInt(changed.size());
+        for (FileItem item : changed) {
+            item.write(out);
+        }
+        out.writeInt(removed.size());
+        for (String stringPath : removed) {
+            MessageCodec.writeString(out, stringPath);
+        }
+    }
+
+    public static FileListDelta read(ByteBuf in) {
+        String path = MessageCodec.readString(in);
+        long fromVersion = in.readLong();
+        long version = in.readLong();
+        int changedSize = MessageCodec.readCount(in, FileItem.MIN_ENCODED_LENGTH);
+        List<FileItem> changed = new ArrayList<>(changedSize);
+        for (int i = 0; i < changedSize; i++) {
+            changed.add(FileItem.read(in));
+        }
+        int removedSize = MessageCodec.readCount(in, Integer.BYTES);
+        List<String> removed = new ArrayList<>(removedSize);
+        for (int i = 0; i < removedSize; i++) {
+            removed.add(MessageCodec.readString(in));
+        }
+        return new FileListDelta(path, fromVersion, version, changed, removed);
+    }
+}
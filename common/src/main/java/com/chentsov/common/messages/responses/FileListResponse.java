@@ -1,20 +1,65 @@
 package com.chentsov.common.messages.responses;
 
 import com.chentsov.common.FileItem;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 /**
  * @author Evgenii Chentsov
  * <p>
- * A message that represents response from the server containing cloud file list
+ * A message that represents response from the server containing a page of cloud file list.
+ * A page starting at offset 0 replaces the current list, the following pages are appended to it.
+ * All the pages belong to the same version of the directory listing.
  */
 public class FileListResponse extends AbstractMessage {
+    public final String path;
+    public final long version;
+    public final int offset;
+    public final int total;
     public final List<FileItem> cloudFilesList;
 
-    public FileListResponse(List<FileItem> cloudFilesList) {
+    public FileListResponse(String path, long version, int offset, int total, List<FileItem> cloudFilesList) {
+        this.path = path;
+        this.version = version;
+        this.offset = offset;
+        this.total = total;
         this.cloudFilesList = Collections.unmodifiableList(cloudFilesList);
     }
+
+    /**
+     * @return true if this is the last page of the listing
+     */
+    public boolean isLast() {
+        return offset + cloudFilesList.size() >= total;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, path);
+        out.writeLong(version);
+        out.writeInt(offset);
+        out.writeInt(total);
+        out.writeInt(cloudFilesList.size());
+        for (FileItem item : cloudFilesList) {
+            item.write(out);
+        }
+    }
+
+    public static FileListResponse read(ByteBuf in) {
+        String path = MessageCodec.readString(in);
+        long version = in.readLong();
+        int offset = in.readInt();
+        int total = in.readInt();
+        int size = MessageCodec.readCount(in, FileItem.MIN_ENCODED_LENGTH);
+        List<FileItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(FileItem.read(in));
+        }
+        return new FileListResponse(path, version, offset, total, items);
+    }
 }
@@ -1,7 +1,12 @@
 package com.chentsov.common.messages.responses;
 
+import com.chentsov.common.ChunkSizer;
 import com.chentsov.common.FileParts;
+import com.chentsov.common.FileTreeWalker;
+import com.chentsov.common.codec.MessageCodec;
 import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import javafx.scene.control.ProgressBar;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -10,12 +15,13 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
 /**
  * @author Evgenii Chentsov
@@ -25,33 +31,123 @@ import java.util.stream.Collectors;
 public class FileMessage extends AbstractMessage {
 
     private static final Logger logger = LogManager.getLogger(FileMessage.class.getSimpleName());
-    private static final int MAX_FILE_SIZE = 1024 * 1024 * 5; // 5 mb
+    //files up to this size are packed into batches of up to MAX_BATCH_SIZE bytes
+    private static final int MAX_BATCH_FILE_SIZE = 1024 * 64; // 64 kb
+    private static final int MAX_BATCH_SIZE = 1024 * 1024; // 1 mb
+    private static final int MAX_BATCH_ENTRIES = 4096;
+    //entries discovered ahead of the sent ones, so the progress total is known early without walking the tree twice
+    private static final int SEND_LOOKAHEAD = 4096;
 
     //final destination path is destination + relativePath
     private final String destination;
     private final String relativePath;
     private byte[] data;
-    //in case of several parts starts from 1 to (totalParts)
-    private int part;
-    //in case of several parts shows total amount of file parts
-    private final int totalParts;
+    //length of the data that follows a header-only message (when data is null)
+    private int dataLength;
+    //position of the data in the file, parts may have different sizes
+    private final long offset;
+    //size of the whole file or FOLDER for an empty folder
+    private final long fileSize;
+    //identifies the transfer of a file sent in parts, so it can be continued after a connection loss
+    private String transferId;
+
+    private static final long FOLDER = -1;
 
     /**
      * Creates a FileMessage instance
      *
      * @param relativePath path to file relative to the source directory
      * @param destination  path to the target folder (where files will be stored).
-     * @param totalParts   amount of parts related to concrete file
+     * @param offset       position of the part in the file
+     * @param fileSize     size of the whole file
      */
-    private FileMessage(String relativePath, String destination, int totalParts) {
+    private FileMessage(String relativePath, String destination, long offset, long fileSize) {
         this.destination = destination;
         this.relativePath = relativePath;
-        this.totalParts = totalParts;
+        this.offset = offset;
+        this.fileSize = fileSize;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, destination);
+        MessageCodec.writeString(out, relativePath);
+        MessageCodec.writeString(out, transferId);
+        out.writeLong(offset);
+        out.writeLong(fileSize);
+    }
+
+    @Override
+    public ByteBuf payload() {
+        return data == null ? null : Unpooled.wrappedBuffer(data);
+    }
+
+    @Override
+    public int payloadLength() {
+        return data == null ? dataLength : data.length;
+    }
+
+    /**
+     * Creates a header-only message for a file part. The caller must write exactly
+     * {@code dataLength} bytes of the part to the channel right after the header.
+     *
+     * @param relativePath path to file relative to the source directory
+     * @param destination  path to the target folder
+     * @param transferId   id of the transfer, see {@link #transferId(String, String, long, long)}
+     * @param offset       position of the part in the file
+     * @param fileSize     size of the whole file
+     * @param dataLength   size of the part
+     * @return a header-only FileMessage
+     */
+    public static FileMessage header(String relativePath, String destination, String transferId,
+                                     long offset, long fileSize, int dataLength) {
+        FileMessage message = new FileMessage(relativePath, destination, offset, fileSize);
+        message.transferId = transferId;
+        message.dataLength = dataLength;
+        return message;
+    }
+
+    /**
+     * Creates a message that represents an empty folder
+     *
+     * @param relativePath path to the folder relative to the source directory
+     * @param destination  path to the target folder
+     * @return a FileMessage for the folder
+     */
+    public static FileMessage emptyFolder(String relativePath, String destination) {
+        FileMessage message = new FileMessage(relativePath, destination, 0, FOLDER);
+        message.data = new byte[0];
+        return message;
     }
 
-    private void setDataPart(byte[] partData, int dataPartNumber) {
-        data = partData;
-        part = dataPartNumber;
+    public static FileMessage read(ByteBuf in) {
+        String destination = MessageCodec.readString(in);
+        String relativePath = MessageCodec.readString(in);
+        String transferId = MessageCodec.readString(in);
+        FileMessage message = new FileMessage(relativePath, destination, in.readLong(), in.readLong());
+        message.transferId = transferId;
+        message.data = new byte[in.readableBytes()];
+        in.readBytes(message.data);
+        return message;
+    }
+
+    /**
+     * Calculates an id of the file transfer. The id is the same as long as the file is sent to the same place
+     * and is not modified, so an interrupted transfer is continued only with the same data
+     *
+     * @param destination  path to the target folder
+     * @param relativePath path to file relative to the source directory
+     * @param fileSize     size of the file
+     * @param lastModified modification time of the file
+     * @return a transfer id
+     */
+    public static String transferId(String destination, String relativePath, long fileSize, long lastModified) {
+        String key = destination + '\0' + relativePath + '\0' + fileSize + '\0' + lastModified;
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    public String getTransferId() {
+        return transferId;
     }
 
     public String getDestination() {
@@ -62,200 +158,359 @@ public class FileMessage extends AbstractMessage {
         return data;
     }
 
-    public int getPart() {
-        return part;
+    public long getOffset() {
+        return offset;
     }
 
-    public static int getMaxFileSize() {
-        return MAX_FILE_SIZE;
+    public long getFileSize() {
+        return fileSize;
     }
 
-    private int getTotalParts() {
-        return totalParts;
+    public boolean isFolder() {
+        return fileSize == FOLDER;
+    }
+
+    /**
+     * @return true if the message holds a part of a file, false for a whole file or a folder
+     */
+    public boolean isPart() {
+        return !isFolder() && !(offset == 0 && getData().length == fileSize);
     }
 
-    private String getRelativePath() {
+    public String getRelativePath() {
         return relativePath;
     }
 
 
     /**
-     * Sends a file to storage. If the file is large, it is divided into several separate messages
+     * Sends files to storage. The selection is walked lazily with {@link FileTreeWalker}, so the first file
+     * is sent while the rest of the tree is still being discovered, and attributes of every entry are read once.
+     * Small files and empty folders are packed into {@link FileBatchMessage}s, a large file is divided
+     * into parts sized by the given {@link ChunkSizer}. The method keeps no shared state, so sends to different
+     * connections run in parallel; the consumer is responsible for keeping messages of one connection in order.
      *
-     * @param filePaths a list of files to be sent
-     * @param consumer  a consumer to process prepared FileMessage
+     * @param roots    selected files and folders to be sent
+     * @param consumer a consumer to process prepared messages
+     * @param sizer    picks the size of every part of a large file
      */
-    public static synchronized void send(List<Path> filePaths, String source, String destination,
-                                         Consumer<FileMessage> consumer, ProgressBar progressBar) {
-        try {
-            int allFilesRequired = getAllFilesPartsCount(filePaths);
-            int allFilesCompleted = 0;
-            //if several files are selected, create a FileMessage for each one
-            for (Path filePath : filePaths) {
-                if (Files.isDirectory(filePath) && checkPathIsNotEmptyDir(filePath)) continue;
-                String relativePath = filePath.toString().substring(source.length());
-
-                logger.info("Sending " + filePath.toString());
-
-                if (Files.isDirectory(filePath)) {
-                    FileMessage message = new FileMessage(relativePath, destination, 1);
-                    message.setDataPart(new byte[0], 1);
-                    consumer.accept(message);
-                    logger.info("Sent empty folder: " + filePath.toString());
+    public static void send(List<Path> roots, String source, String destination,
+                            Consumer<AbstractMessage> consumer, ProgressBar progressBar, ChunkSizer sizer) {
+        send(roots, source, destination, consumer, progressBar, sizer, null);
+    }
+
+    /**
+     * Sends files to storage, see {@link #send(List, String, String, Consumer, ProgressBar, ChunkSizer)}.
+     * Large files are offered to the range sender first, e.g. to be sent over several connections at once
+     *
+     * @param rangeSender sends a large file by itself or null
+     */
+    public static void send(List<Path> roots, String source, String destination, Consumer<AbstractMessage> consumer,
+                            ProgressBar progressBar, ChunkSizer sizer, RangeSender rangeSender) {
+        send(roots, source, destination, consumer, progressBar, sizer, rangeSender, null);
+    }
+
+    /**
+     * Sends files to storage, see {@link #send(List, String, String, Consumer, ProgressBar, ChunkSizer, RangeSender)}.
+     * Files the receiver already has are skipped, folders are always sent
+     *
+     * @param isNeeded tells if the receiver needs a file or null to send all the files
+     */
+    public static void send(List<Path> roots, String source, String destination, Consumer<AbstractMessage> consumer,
+                            ProgressBar progressBar, ChunkSizer sizer, RangeSender rangeSender, Predicate<Path> isNeeded) {
+        long start = System.currentTimeMillis();
+        int filesSent = 0;
+        Progress progress = new Progress(progressBar);
+        try (FileTreeWalker walker = new FileTreeWalker(roots, SEND_LOOKAHEAD)) {
+            FileBatchMessage.Builder batch = new FileBatchMessage.Builder(destination, MAX_BATCH_SIZE);
+            while (walker.hasNext()) {
+                FileTreeWalker.Entry entry = walker.next();
+                progress.discovered(walker);
+                String relativePath = entry.path.toString().substring(source.length());
+                long size = entry.size();
+                if (!entry.isDirectory() && isNeeded != null && !isNeeded.test(entry.path)) {
+                    progress.add(size + 1);
                     continue;
                 }
 
-                final long actualFileSize = Files.size(filePath);
-                allFilesCompleted = sendSingle(destination, consumer, progressBar, allFilesRequired, allFilesCompleted, filePath, relativePath, (int) actualFileSize);
+                if (!entry.isDirectory() && size > MAX_BATCH_FILE_SIZE) {
+                    logger.info("Sending " + entry.path.toString());
+                    String transferId = transferId(destination, relativePath, size,
+                            entry.attributes.lastModifiedTime().toMillis());
+                    if (rangeSender != null && rangeSender.send(entry.path, relativePath, destination, transferId, size))
+                        progress.add(size + 1);
+                    else sendParts(destination, consumer, sizer, progress, entry.path, relativePath, transferId, size, 0, size);
+                    filesSent++;
+                    continue;
+                }
+
+                if (!batch.fits((int) size) || batch.size() == MAX_BATCH_ENTRIES) sendBatch(batch, consumer, progress);
+                if (entry.isDirectory()) batch.addFolder(relativePath);
+                else batch.addFile(relativePath, entry.path, (int) size);
+                progress.pending(entry);
+                filesSent++;
+                if (filesSent == 1) logger.info("First file is ready in " + (System.currentTimeMillis() - start) + " ms");
             }
+            sendBatch(batch, consumer, progress);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.info("Sent " + filesSent + " files in " + elapsed + " ms, " + (filesSent * 1000L / elapsed) + " files/s");
+    }
+
+    private static void sendBatch(FileBatchMessage.Builder batch, Consumer<AbstractMessage> consumer, Progress progress) {
+        if (batch.isEmpty()) return;
+        logger.info("Sending a batch of " + batch.size() + " files");
+        consumer.accept(batch.build());
+        progress.commitPending();
+    }
+
+    /**
+     * Tracks the sent share of the discovered files. Every file weighs its size but at least one byte,
+     * so trees of empty files progress too. The total grows while the tree is being discovered
+     */
+    private static final class Progress {
+        private final ProgressBar progressBar;
+        private long total;
+        private long completed;
+        private long pending;
+
+        private Progress(ProgressBar progressBar) {
+            this.progressBar = progressBar;
+        }
+
+        private void discovered(FileTreeWalker walker) {
+            total = walker.getDiscoveredBytes() + walker.getDiscoveredEntries();
+        }
+
+        private void pending(FileTreeWalker.Entry entry) {
+            pending += entry.size() + 1;
+        }
+
+        private void commitPending() {
+            add(pending);
+            pending = 0;
+        }
+
+        private void add(long weight) {
+            completed += weight;
+            if (progressBar != null && total > 0) progressBar.setProgress(((double) completed) / total);
+        }
+    }
+
+    /**
+     * Continues an interrupted transfer of a large file. If the file has been modified since,
+     * it is sent again from the start under a new transfer id
+     *
+     * @param filePath     a file to be sent
+     * @param relativePath path to file relative to the source directory
+     * @param destination  path to the target folder
+     * @param transferId   id of the interrupted transfer
+     * @param offset       an offset the receiver has committed
+     * @param consumer     a consumer to process prepared messages
+     * @param sizer        picks the size of every part
+     */
+    public static void resume(Path filePath, String relativePath, String destination, String transferId, long offset,
+                              Consumer<AbstractMessage> consumer, ChunkSizer sizer) {
+        try {
+            long size = Files.size(filePath);
+            String actualId = transferId(destination, relativePath, size, Files.getLastModifiedTime(filePath).toMillis());
+            if (!actualId.equals(transferId) || offset > size) offset = 0;
+            logger.info("Resuming " + filePath + " from " + offset + " of " + size);
+            sendParts(destination, consumer, sizer, new Progress(null), filePath, relativePath, actualId, size, offset, size);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static int sendSingle(String destination,
-                                  Consumer<FileMessage> consumer,
-                                  ProgressBar progressBar,
-                                  int allFilesRequired,
-                                  int allFilesCompleted,
+    /**
+     * Sends a byte range of a large file. Ranges of the same file may be sent over different connections,
+     * the receiver writes every part at its offset and assembles the file when all the ranges are received
+     *
+     * @param filePath     a file to be sent
+     * @param relativePath path to file relative to the source directory
+     * @param destination  path to the target folder
+     * @param transferId   id of the transfer, the same for all the ranges
+     * @param fileSize     size of the whole file
+     * @param from         the first byte of the range
+     * @param to           the end of the range, exclusive
+     * @param consumer     a consumer to process prepared messages
+     * @param sizer        picks the size of every part
+     * @throws IOException in case of I/O errors
+     */
+    public static void sendRange(Path filePath, String relativePath, String destination, String transferId, long fileSize,
+                                 long from, long to, Consumer<AbstractMessage> consumer, ChunkSizer sizer) throws IOException {
+        logger.info("Sending range " + from + "-" + to + " of " + filePath);
+        sendParts(destination, consumer, sizer, new Progress(null), filePath, relativePath, transferId, fileSize, from, to);
+    }
+
+    /**
+     * Sends a large file by other means than the main connection
+     */
+    public interface RangeSender {
+
+        /**
+         * @return false if the file has not been sent and must be sent over the main connection
+         */
+        boolean send(Path filePath, String relativePath, String destination, String transferId, long fileSize);
+    }
+
+    private static void sendParts(String destination,
+                                  Consumer<AbstractMessage> consumer,
+                                  ChunkSizer sizer,
+                                  Progress progress,
                                   Path filePath,
                                   String relativePath,
-                                  int actualFileSize) throws IOException {
-        try (BufferedInputStream stream = new BufferedInputStream(new FileInputStream(filePath.toString()))) {
-            boolean strictlyEqual = actualFileSize % MAX_FILE_SIZE == 0;
-            int totalParts = actualFileSize / MAX_FILE_SIZE;
-            if (!strictlyEqual) totalParts++;
-            //selecting initial data array size
-            byte[] part = totalParts > 1 ? new byte[MAX_FILE_SIZE] : new byte[actualFileSize];
-            int bytesRead;
-            int currentPart = 1;
+                                  String transferId,
+                                  long actualFileSize,
+                                  long offset,
+                                  long end) throws IOException {
+        try (FileInputStream input = new FileInputStream(filePath.toString());
+             DataInputStream stream = new DataInputStream(new BufferedInputStream(input))) {
+            input.getChannel().position(offset);
 
             /*
             !!!PLEASE READ THIS CAREFULLY!!!
             A tricky part!
-            For the small file (1 part) we utilize a single part[] array. If there are more parts, we apply a method
-            that does not send garbage data over network. Let us suppose that a file contains of N parts. Then, we send
-            (N-1) parts with the array length of [maxFileSize], and the last part is truncated so no garbage is
-            sent. The price is not that big - just a single creation of a new byte array for the final message.
+            The wire codec sends the payload straight from the data array without copying it, and an asynchronous
+            consumer (Netty channel) may still hold the array after accept() returns. So every part gets its own
+            array of the exact part size. The size is picked by the ChunkSizer before every part and the time
+            the consumer takes to accept the part is fed back to it, so parts grow on fast links and shrink on slow ones.
              */
-            FileMessage fm = new FileMessage(relativePath, destination, totalParts);
-            while ((bytesRead = stream.read(part)) > 0) {
-                //preparing final data part
-                if (bytesRead < part.length) part = Arrays.copyOfRange(part, 0, bytesRead);
-                fm.setDataPart(part, currentPart);
-                logger.info("Sending data part N " + fm.getPart() + " of " + fm.getTotalParts() + ", size is " +
-                        fm.getData().length);
-                currentPart++;
+            do {
+                byte[] part = new byte[(int) Math.min(sizer.next(), end - offset)];
+                stream.readFully(part);
+
+                FileMessage fm = new FileMessage(relativePath, destination, offset, actualFileSize);
+                fm.transferId = transferId;
+                fm.data = part;
+                logger.info("Sending data part at " + offset + " of " + actualFileSize + ", size is " + part.length);
+                long started = System.nanoTime();
                 consumer.accept(fm);
+                sizer.record(part.length, System.nanoTime() - started);
 
-                if (progressBar != null) {
-                    progressBar.setProgress(((double) ++allFilesCompleted) / allFilesRequired);
-                }
-                logger.info("message sent");
-            }
+                progress.add(part.length + (offset == 0 ? 1 : 0));
+                offset += part.length;
+            } while (offset < end);
         }
-        return allFilesCompleted;
     }
 
     /**
-     * Receives a FileMessage. If the file consists of several parts, method waits for all
-     * the parts and then merges them
+     * Receives a FileMessage. If the file consists of several parts, every part is written at its offset
+     * and the operation runs when all the parts are on disk
      *
-     * @param fileParts a Map instance that stores non-written file parts
-     * @param operation an operation that run when the file is successfully written
+     * @param fileParts    a Map instance that stores files being received
+     * @param transfersDir a folder that keeps partially received files, see {@link FileParts}
+     * @param operation    an operation that run when the file is successfully written
      * @throws IOException when i/o errors occur
      */
-    public static void receive(FileMessage message, Map<Path, FileParts> fileParts, Runnable operation) throws IOException {
+    public static void receive(FileMessage message, Map<Path, FileParts> fileParts, Path transfersDir,
+                               Runnable operation) throws IOException {
         Path destination = Paths.get(message.destination + File.separator + message.getRelativePath());
-        if (message.getTotalParts() <= 1) {
+        if (!message.isPart()) {
             processSmallFile(message, operation, destination);
             return;
         }
-        processLargeFile(message, fileParts, operation, destination);
+        processLargeFile(message, fileParts, transfersDir, operation, destination);
     }
 
-    private static void processLargeFile(FileMessage message, Map<Path, FileParts> fileParts, Runnable operation, Path destination) throws IOException {
-        logger.info("Receiving large file: " + destination + ", part N " + message.getPart() + " of " + message.getTotalParts()
-                + ", size is " + message.getData().length);
-        if (!fileParts.containsKey(destination)) {
-            fileParts.put(destination, new FileParts());
-            if (!Files.exists(destination.getParent())) Files.createDirectories(destination.getParent());
-            Files.deleteIfExists(destination);
-            Files.createFile(destination);
+    /**
+     * Unpacks a batch of small files. Folders are created in a single pass before any file is written,
+     * then every file is written and the operation runs for it
+     *
+     * @param batch     a received batch
+     * @param operation an operation that runs for every written file or folder
+     * @throws IOException when i/o errors occur
+     */
+    public static void receive(FileBatchMessage batch, Consumer<Path> operation) throws IOException {
+        logger.info("Receiving a batch of " + batch.size() + " files");
+        Path[] destinations = new Path[batch.size()];
+        Set<Path> folders = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            destinations[i] = Paths.get(batch.getDestination() + File.separator + batch.getRelativePath(i));
+            folders.add(batch.isFolder(i) ? destinations[i] : destinations[i].getParent());
+        }
+        for (Path folder : folders) {
+            Files.createDirectories(folder);
         }
 
+        for (int i = 0; i < batch.size(); i++) {
+            if (!batch.isFolder(i)) {
+                ByteBuffer data = batch.getData(i).nioBuffer();
+                try (FileChannel channel = FileChannel.open(destinations[i], StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (data.hasRemaining()) channel.write(data);
+                }
+            }
+            operation.accept(destinations[i]);
+        }
+    }
+
+    private static void processLargeFile(FileMessage message, Map<Path, FileParts> fileParts, Path transfersDir,
+                                         Runnable operation, Path destination) throws IOException {
+        logger.info("Receiving large file: " + destination + ", part at " + message.offset + " of " + message.fileSize
+                + ", size is " + message.getData().length);
+        FileParts parts = openParts(fileParts, destination, message.fileSize, transfersDir, message.transferId);
+
             /*
             !!!PLEASE READ THIS CAREFULLY #2!!!
             A tricky part!
-            FileParts instance contains a HashMap<Integer, FileMessage>, where the key is the part number and
-            the value is the corresponding FileMessage that represents a file part. Let us imagine that receiver gets
-            file parts in the following order: 2nd, 1st, 3rd. Then:
-            1. We wait for the first part.
-            2. FilePart gets 2nd part and puts it into internal HashMap. It is not the part we're waiting for,
-            so continue waiting further;
-            3. FilePart get 1st part. It is the needed part so we write it to the folder. Now we need ++1 = 2nd part.
-            4. We immediately start searching for the second part in HashMap. If found - we write it down and search
-            for the next part / return null otherwise.
-
-             As a result, we neither create any RandomAccessFile instances nor occupy RAM heavily.
+            FileParts keeps the partial file open while the file is being received. Every part is
+            written at its offset as soon as it arrives, no matter what order or size the parts come in,
+            and a map of byte ranges remembers what is already on disk. So nothing but the current part
+            occupies RAM, and the file is not reopened for every part. The partial file replaces
+            the destination only when complete.
              */
 
-        FileParts parts = fileParts.get(destination);
-        parts.addPart(message);
-
-        FileMessage currentPart;
-        //while instance of FileParts contains next part we write it down,
-        //otherwise we wait for the required part and store unwritten parts in RAM
-        while ((currentPart = parts.removeAndIncrement()) != null) {
-            Files.write(destination, currentPart.getData(), StandardOpenOption.APPEND);
+        try {
+            parts.write(message.offset, message.getData());
+        } catch (IOException e) {
+            fileParts.remove(destination, parts);
+            parts.close();
+            throw e;
         }
 
-        if (parts.getNextPart() > message.getTotalParts()) {
-            logger.info("File successfully assembled: " + message.getDestination());
-            fileParts.clear();
+        //only one of the connections that write the file completes it
+        if (parts.isComplete() && fileParts.remove(destination, parts)) {
+            logger.info("File successfully assembled: " + destination);
+            parts.complete();
             operation.run();
         }
     }
 
-    private static void processSmallFile(FileMessage message, Runnable operation, Path destination) throws IOException {
-        logger.info("Receiving small file or folder: " + message.getDestination());
-        if (message.getData().length == 0) Files.createDirectories(destination);
-        else {
-            Files.createDirectories(destination.getParent());
-            Files.write(destination, message.getData(), StandardOpenOption.CREATE);
-        }
-        operation.run();
-    }
-
     /**
-     * Calculates all parts amount to be sent to
+     * Returns the file being received or starts receiving it. Ranges of one file may be received
+     * by several connections at once, so the file is opened once
      *
-     * @param filePaths a list of paths to the file
-     * @return amount of parts to be sent
+     * @param fileParts    a Map instance that stores files being received
+     * @param destination  a path to the destination file
+     * @param fileSize     size of the whole file
+     * @param transfersDir a folder that keeps partially received files
+     * @param transferId   an id of the transfer
+     * @return the file being received
      * @throws IOException in case of I/O errors
      */
-    private static int getAllFilesPartsCount(List<Path> filePaths) throws IOException {
-        int allFilesParts = 0;
-        for (Path path : filePaths) {
-            if (checkPathIsNotEmptyDir(path)) allFilesParts += Files.size(path) / MAX_FILE_SIZE + 1;
+    public static FileParts openParts(Map<Path, FileParts> fileParts, Path destination, long fileSize,
+                                      Path transfersDir, String transferId) throws IOException {
+        synchronized (fileParts) {
+            FileParts parts = fileParts.get(destination);
+            if (parts == null) {
+                if (!Files.exists(destination.getParent())) Files.createDirectories(destination.getParent());
+                parts = new FileParts(destination, fileSize, transfersDir, transferId);
+                fileParts.put(destination, parts);
+            }
+            return parts;
         }
-
-        return allFilesParts;
     }
 
-    /**
-     * Checks that current path is not empty directory
-     *
-     * @param path is a path to the file
-     * @return true if current file is not an empty dir and false otherwise
-     * @throws IOException in case of I/O errors
-     */
-    private static boolean checkPathIsNotEmptyDir(Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-            List<Path> filePaths = Files.list(path).collect(Collectors.toList());
-            return filePaths.size() != 0;
+    private static void processSmallFile(FileMessage message, Runnable operation, Path destination) throws IOException {
+        logger.info("Receiving small file or folder: " + message.getDestination());
+        if (message.isFolder()) Files.createDirectories(destination);
+        else {
+            Files.createDirectories(destination.getParent());
+            Files.write(destination, message.getData());
         }
-        return true;
+        operation.run();
     }
 
 }
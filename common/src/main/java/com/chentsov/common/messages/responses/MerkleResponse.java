@@ -0,0 +1,96 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.MerkleEntry;
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that holds the Merkle hashes of the requested directories and of their children,
+ * in the order of the request, see {@link com.chentsov.common.messages.requests.MerkleRequest}.
+ * A large answer is split into several responses with the same id, the children of a directory may go on
+ * in the next response, see {@link Directory#isContinued}.
+ */
+public final class MerkleResponse extends AbstractMessage {
+
+    public final String id;
+    public final List<Directory> directories;
+    //true if this is the last response of the request
+    public final boolean isLast;
+
+    /**
+     * A requested directory. A path that is not a directory has no hash and no children
+     */
+    public static final class Directory {
+        public final String path;
+        public final String hash;
+        public final List<MerkleEntry> children;
+        //true if the rest of the children are sent in the next response
+        public final boolean isContinued;
+
+        public Directory(String path, String hash, List<MerkleEntry> children) {
+            this(path, hash, children, false);
+        }
+
+        public Directory(String path, String hash, List<MerkleEntry> children, boolean isContinued) {
+            this.path = path;
+            this.hash = hash;
+            this.children = children;
+            this.isContinued = isContinued;
+        }
+
+        /**
+         * @return a length of the directory encoded without its children
+         */
+        public int encodedLength() {
+            return 3 * Integer.BYTES + 1 + MessageCodec.utf8Length(path) + MessageCodec.utf8Length(hash);
+        }
+    }
+
+    public MerkleResponse(String id, List<Directory> directories, boolean isLast) {
+        this.id = id;
+        this.directories = directories;
+        this.isLast = isLast;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, id);
+        out.writeInt(directories.size());
+        for (Directory directory : directories) {
+            MessageCodec.writeString(out, directory.path);
+            MessageCodec.writeString(out, directory.hash);
+            out.writeBoolean(directory.isContinued);
+            out.writeInt(directory.children.size());
+            for (MerkleEntry child : directory.children) {
+                child.write(out);
+            }
+        }
+        out.writeBoolean(isLast);
+    }
+
+    public static MerkleResponse read(ByteBuf in) {
+        String id = MessageCodec.readString(in);
+        //a path, a hash, a continuation flag and a count of children
+        int count = MessageCodec.readCount(in, 3 * Integer.BYTES + 1);
+        List<Directory> directories = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String path = MessageCodec.readString(in);
+            String hash = MessageCodec.readString(in);
+            boolean isContinued = in.readBoolean();
+            int childCount = MessageCodec.readCount(in, MerkleEntry.MIN_ENCODED_LENGTH);
+            List<MerkleEntry> children = new ArrayList<>(childCount);
+            for (int j = 0; j < childCount; j++) {
+                children.add(MerkleEntry.read(in));
+            }
+            directories.add(new Directory(path, hash, children, isContinued));
+        }
+        return new MerkleResponse(id, directories, in.readBoolean());
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that lists the chunks of an offered file the server does not store. The chunks are uploaded
+ * as parts of the transfer at their offsets, the rest of the file is already assembled by the server.
+ */
+public final class MissingChunks extends AbstractMessage {
+
+    public final String transferId;
+    //indices of the chunks in the manifest, in ascending order
+    public final int[] indices;
+
+    public MissingChunks(String transferId, int[] indices) {
+        this.transferId = transferId;
+        this.indices = indices;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        out.writeInt(indices.length);
+        for (int index : indices) {
+            out.writeInt(index);
+        }
+    }
+
+    public static MissingChunks read(ByteBuf in) {
+        String transferId = MessageCodec.readString(in);
+        int count = MessageCodec.readCount(in, Integer.BYTES);
+        int[] indices = new int[count];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = in.readInt();
+        }
+        return new MissingChunks(transferId, indices);
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that lists the files of a pre-flight page the server does not have, see
+ * {@link com.chentsov.common.messages.requests.PreflightRequest}. The rest of the files are skipped by the upload.
+ */
+public final class NeededFiles extends AbstractMessage {
+
+    public final String id;
+    //indices of the entries in the page, in ascending order
+    public final int[] indices;
+
+    public NeededFiles(String id, int[] indices) {
+        this.id = id;
+        this.indices = indices;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, id);
+        out.writeInt(indices.length);
+        for (int index : indices) {
+            out.writeInt(index);
+        }
+    }
+
+    public static NeededFiles read(ByteBuf in) {
+        String id = MessageCodec.readString(in);
+        int count = MessageCodec.readCount(in, Integer.BYTES);
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = in.readInt();
+        }
+        return new NeededFiles(id, indices);
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that holds the offset an interrupted upload continues from. Everything before the offset
+ * is already on the receiver's disk, 0 means the upload starts over.
+ */
+public final class ResumeResponse extends AbstractMessage {
+
+    public final String transferId;
+    public final long offset;
+
+    public ResumeResponse(String transferId, long offset) {
+        this.transferId = transferId;
+        this.offset = offset;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        out.writeLong(offset);
+    }
+
+    public static ResumeResponse read(ByteBuf in) {
+        return new ResumeResponse(MessageCodec.readString(in), in.readLong());
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.chentsov.common.messages.responses;
+
+import com.chentsov.common.BlockSignatures;
+import com.chentsov.common.codec.MessageCodec;
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A message that holds the block signatures of the copy of an uploaded file. There are no signatures
+ * if the receiver has no copy or the copy is too large, the file is sent as it is then.
+ */
+public final class SignatureResponse extends AbstractMessage {
+
+    public final String transferId;
+    public final BlockSignatures signatures;
+
+    public SignatureResponse(String transferId, BlockSignatures signatures) {
+        this.transferId = transferId;
+        this.signatures = signatures;
+    }
+
+    @Override
+    public void write(ByteBuf out) {
+        MessageCodec.writeString(out, transferId);
+        out.writeBoolean(signatures != null);
+        if (signatures != null) signatures.write(out);
+    }
+
+    public static SignatureResponse read(ByteBuf in) {
+        String transferId = MessageCodec.readString(in);
+        return new SignatureResponse(transferId, in.readBoolean() ? BlockSignatures.read(in) : null);
+    }
+
+}
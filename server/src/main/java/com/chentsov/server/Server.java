@@ -1,24 +1,52 @@
 package com.chentsov.server;
 
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.codec.MessageDecoder;
+import com.chentsov.common.codec.MessageEncoder;
 import com.chentsov.server.dbService.DBService;
 import com.chentsov.server.handlers.AuthHandler;
+import com.chentsov.server.storage.ChunkStore;
+import com.chentsov.server.storage.ListingCache;
+import com.chentsov.server.util.EventLoopLatencyMonitor;
+import com.chentsov.server.util.FileRegionSizeEstimator;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.serialization.ClassResolvers;
-import io.netty.handler.codec.serialization.ObjectDecoder;
-import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
 
     private static final int PORT = 8189;
-    private static final int MAX_OBJ_SIZE = 1024 * 1024 * 100; // 100Mb
+    private static final int MAX_OBJ_SIZE = ChunkSizer.MAX_CHUNK_SIZE + ChunkSizer.FRAME_OVERHEAD;
+    //file streaming stops reading from disk when outbound buffer exceeds the high mark and resumes below the low one
+    private static final int WRITE_BUFFER_LOW = Integer.getInteger("geekcloud.writeBufferLow", 1024 * 1024); // 1Mb
+    private static final int WRITE_BUFFER_HIGH = Integer.getInteger("geekcloud.writeBufferHigh", 1024 * 1024 * 4); // 4Mb
+    //threads for blocking file system work, so event loops only move bytes
+    private static final int DISK_IO_THREADS = Integer.getInteger("geekcloud.diskIoThreads", 16);
+    //a hard limit of a single disk thread queue, every channel also stops reading while its own messages wait there
+    private static final int DISK_IO_QUEUE_SIZE = Integer.getInteger("geekcloud.diskIoQueueSize", 8192);
+    //password hashing is CPU bound, so the pool is limited to the cores and logins over the queue limit are rejected
+    private static final int AUTH_THREADS = Integer.getInteger("geekcloud.authThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int AUTH_QUEUE_SIZE = Integer.getInteger("geekcloud.authQueueSize", 64);
     private final DBService dbService = DBService.getInstance();
+    private final ListingCache listingCache = ListingCache.getInstance();
 
     public Server() {
     }
@@ -26,6 +54,17 @@ public class Server {
     public void run() throws Exception {
         EventLoopGroup mainGroup = new NioEventLoopGroup();
         EventLoopGroup workerGroup = new NioEventLoopGroup();
+        //every channel is pinned to a single executor of the group, so its messages are still processed in order.
+        //A full queue rejects the task, which closes the channel that has overflowed it
+        EventExecutorGroup diskIoGroup = new DefaultEventExecutorGroup(DISK_IO_THREADS, new DefaultThreadFactory("disk-io"),
+                DISK_IO_QUEUE_SIZE, RejectedExecutionHandlers.reject());
+        ExecutorService authPool = new ThreadPoolExecutor(AUTH_THREADS, AUTH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(AUTH_QUEUE_SIZE), new DefaultThreadFactory("auth"));
+        EventLoopLatencyMonitor.start(workerGroup, "worker");
+        //changes made to the storage bypassing the server invalidate cached listings too, if the storage can be watched
+        listingCache.watch(Paths.get(AuthHandler.ROOT_PATH));
+        //the chunk store lives in memory, so large files are offered for deduplication again
+        ChunkStore.getInstance().indexTree(Paths.get(AuthHandler.ROOT_PATH));
 
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap();
@@ -33,21 +72,27 @@ public class Server {
                     .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         protected void initChannel(SocketChannel socketChannel) {
-                            socketChannel.pipeline().addLast(
-                                    new ObjectDecoder(MAX_OBJ_SIZE, ClassResolvers.cacheDisabled(null)),
-                                    new ObjectEncoder(),
-                                    new AuthHandler()
-                            );
+                            socketChannel.pipeline()
+                                    .addLast(new MessageDecoder(MAX_OBJ_SIZE), new MessageEncoder())
+                                    //chunked input reads files, so it runs on the same disk executor as the MainHandler
+                                    .addLast(diskIoGroup, new ChunkedWriteHandler())
+                                    .addLast(new AuthHandler(diskIoGroup, authPool));
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
                     .option(ChannelOption.TCP_NODELAY, true)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(WRITE_BUFFER_LOW, WRITE_BUFFER_HIGH))
+                    .childOption(ChannelOption.MESSAGE_SIZE_ESTIMATOR, FileRegionSizeEstimator.INSTANCE);
             ChannelFuture future = serverBootstrap.bind(PORT).sync();
             future.channel().closeFuture().sync();
         } finally {
             mainGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            diskIoGroup.shutdownGracefully();
+            authPool.shutdown();
+            listingCache.close();
             dbService.close();
         }
     }
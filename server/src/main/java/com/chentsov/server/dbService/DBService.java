@@ -9,9 +9,10 @@ import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.service.ServiceRegistry;
 
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Evgenii Chentsov
@@ -20,10 +21,18 @@ import java.util.List;
  */
 public class DBService {
 
-    private static final String hibernate_show_sql = "true";
+    private static final String hibernate_show_sql = System.getProperty("geekcloud.showSql", "false");
     private static final String hibernate_hbm2ddl_auto = "update";
+    //connection pool bounds
+    private static final String c3p0_min_size = System.getProperty("geekcloud.dbPoolMin", "2");
+    private static final String c3p0_max_size = System.getProperty("geekcloud.dbPoolMax", "16");
+
+    //user cache bounds
+    private static final int user_cache_size = Integer.getInteger("geekcloud.userCacheSize", 10_000);
+    private static final long user_cache_ttl = Long.getLong("geekcloud.userCacheTtlMs", TimeUnit.MINUTES.toMillis(10));
 
     private final SessionFactory sessionFactory;                // Hibernate session factory
+    private final UserCache userCache;                          // users that logged in recently
     private static DBService dbService;
 
     /**
@@ -32,6 +41,8 @@ public class DBService {
     private DBService() {
         Configuration configuration = getH2Configuration();
         sessionFactory = createSessionFactory(configuration);
+        userCache = new UserCache(user_cache_size, user_cache_ttl, this::load);
+        userCache.register();
     }
 
     public static synchronized DBService getInstance() {
@@ -55,6 +66,12 @@ public class DBService {
         configuration.setProperty("hibernate.connection.password", "starcounter");
         configuration.setProperty("hibernate.show_sql", hibernate_show_sql);
         configuration.setProperty("hibernate.hbm2ddl.auto", hibernate_hbm2ddl_auto);
+        configuration.setProperty("hibernate.connection.provider_class",
+                "org.hibernate.c3p0.internal.C3P0ConnectionProvider");
+        configuration.setProperty("hibernate.c3p0.min_size", c3p0_min_size);
+        configuration.setProperty("hibernate.c3p0.max_size", c3p0_max_size);
+        configuration.setProperty("hibernate.c3p0.timeout", "300");
+        configuration.setProperty("hibernate.c3p0.max_statements", "50");
         return configuration;
     }
 
@@ -72,45 +89,75 @@ public class DBService {
     }
 
     /**
-     * gets a response from DB about account according to proposed username
+     * gets info about account according to proposed username. Recently used accounts are served
+     * from the cache, others are loaded from DB
      *
-     * @param username a username to get user info from DB
-     * @return a list of users
+     * @param username a username to get user info
+     * @return the account or null if there is no such account or the DB failed
      */
-    public List<UsersDataSet> get(String username) {
+    public UsersDataSet get(String username) {
+        return userCache.get(username);
+    }
+
+    /**
+     * Drops the cached account. Must be called whenever the account is changed in DB
+     *
+     * @param username a username
+     */
+    public void invalidate(String username) {
+        userCache.invalidate(username);
+    }
+
+    private UsersDataSet load(String username) {
+        Session session = null;
         try {
-            Session session = sessionFactory.openSession();
+            session = sessionFactory.openSession();
             DAO dao = new UsersDAO(session);
-            List<UsersDataSet> dataSet = dao.get(username);
-            session.close();
-            return dataSet;
+            return dao.get(username);
         } catch (HibernateException e) {
             e.printStackTrace();
+            return null;
+        } finally {
+            if (session != null) session.close();
         }
-
-        return null;
     }
 
     /**
-     * Adds a new account into DB
+     * Adds a new account into DB. An occupied username is detected by the unique constraint
+     * of the insert itself, so no lookup is made beforehand
      *
      * @param username a username
      * @param password a password
      * @return true if account creation is successful and false otherwise
      */
     public boolean addUser(String username, String password, String salt) {
-        if (hasUser(username)) return false;
+        Session session = null;
+        Transaction transaction = null;
         try {
-            Session session = sessionFactory.openSession();
-            Transaction transaction = session.beginTransaction();
+            session = sessionFactory.openSession();
+            transaction = session.beginTransaction();
             DAO dao = new UsersDAO(session);
             dao.addUser(username, password, salt);
             transaction.commit();
-            session.close();
+            userCache.invalidate(username);
             return true;
+        } catch (ConstraintViolationException e) {
+            rollback(transaction);
+            return false;
         } catch (HibernateException e) {
             e.printStackTrace();
+            rollback(transaction);
             return false;
+        } finally {
+            if (session != null) session.close();
+        }
+    }
+
+    private static void rollback(Transaction transaction) {
+        try {
+            if (transaction != null && transaction.isActive()) transaction.rollback();
+        } catch (HibernateException e) {
+            e.printStackTrace();
         }
     }
 
@@ -121,8 +168,7 @@ public class DBService {
      * @return true if account already exists and false otherwise
      */
     public boolean hasUser(String username) {
-        List<UsersDataSet> uds = get(username);
-        return uds.size() > 0;
+        return get(username) != null;
     }
 
     public void close() {
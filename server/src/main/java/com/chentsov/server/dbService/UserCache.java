@@ -0,0 +1,152 @@
+package com.chentsov.server.dbService;
+
+import com.chentsov.server.dbService.dataset.UsersDataSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A read-through cache of user records keyed by username. The cache holds at most {@code maxSize}
+ * records and evicts the least recently used one, a record older than {@code ttlMs} is loaded again.
+ * Unknown usernames are not cached, so they cannot push real users out.
+ */
+class UserCache implements UserCacheMXBean {
+
+    private static final Logger logger = LogManager.getLogger(UserCache.class.getSimpleName());
+
+    private final int maxSize;
+    private final long ttlMs;
+    private final Function<String, UsersDataSet> loader;
+    private final Map<String, CachedUser> entries;
+    //incremented on every invalidation, so a record loaded concurrently with a change is not cached
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long missNanos;
+    private long evictions;
+
+    /**
+     * @param maxSize maximum amount of cached records
+     * @param ttlMs   time to live of a record
+     * @param loader  a function that loads a record from DB, may return null
+     */
+    UserCache(int maxSize, long ttlMs, Function<String, UsersDataSet> loader) {
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.loader = loader;
+        this.entries = new LinkedHashMap<String, CachedUser>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+                if (size() <= UserCache.this.maxSize) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a cached record or loads it. The loading is done outside of the lock,
+     * so a slow DB call does not block hits for other users
+     *
+     * @param username a username
+     * @return a user record or null if there is no such user
+     */
+    UsersDataSet get(String username) {
+        long loadGeneration;
+        synchronized (this) {
+            CachedUser entry = entries.get(username);
+            if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                hits++;
+                return entry.user;
+            }
+            loadGeneration = generation;
+        }
+
+        long start = System.nanoTime();
+        UsersDataSet user = loader.apply(username);
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (this) {
+            misses++;
+            missNanos += elapsed;
+            if (generation != loadGeneration) return user;
+            if (user != null) entries.put(username, new CachedUser(user, System.currentTimeMillis() + ttlMs));
+            else entries.remove(username);
+        }
+        return user;
+    }
+
+    /**
+     * Drops the record, e.g. when the account is created or its password is changed
+     *
+     * @param username a username
+     */
+    synchronized void invalidate(String username) {
+        generation++;
+        entries.remove(username);
+    }
+
+    /**
+     * Registers the cache statistics in the platform MBean server
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("com.chentsov.server:type=UserCache"));
+        } catch (JMException e) {
+            logger.warn("Cannot register user cache MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized double getAverageMissLatencyMillis() {
+        return misses == 0 ? 0 : missNanos / 1e6 / misses;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    private static final class CachedUser {
+
+        private final UsersDataSet user;
+        private final long expiresAt;
+
+        private CachedUser(UsersDataSet user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.chentsov.server.dbService;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Statistics of the user cache exported over JMX
+ */
+public interface UserCacheMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    double getAverageMissLatencyMillis();
+
+    long getEvictionCount();
+
+    int getSize();
+
+}
@@ -3,8 +3,6 @@ package com.chentsov.server.dbService.dao;
 import com.chentsov.server.dbService.dataset.UsersDataSet;
 import org.hibernate.HibernateException;
 
-import java.util.List;
-
 /**
  * @author Evgenii Chentsov
  * <p>
@@ -15,7 +13,7 @@ public interface DAO {
     @SuppressWarnings("unused")
     UsersDataSet get(long id) throws HibernateException;
 
-    List<UsersDataSet> get(String username) throws HibernateException;
+    UsersDataSet get(String username) throws HibernateException;
 
     void addUser(String username, String password, String salt) throws HibernateException;
 
@@ -1,12 +1,8 @@
 package com.chentsov.server.dbService.dao;
 
 import com.chentsov.server.dbService.dataset.UsersDataSet;
-import org.hibernate.Criteria;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.hibernate.criterion.Restrictions;
-
-import java.util.List;
 
 /**
  * @author Evgenii Chentsov
@@ -26,14 +22,18 @@ public class UsersDAO implements DAO {
         return (UsersDataSet) session.get(UsersDataSet.class, id);
     }
 
+    /**
+     * Looks the user up by the unique username index with a single statement
+     *
+     * @param username a username
+     * @return the user or null if there is no such user
+     */
     @Override
-    @SuppressWarnings("unchecked")
-    public List<UsersDataSet> get(String username) throws HibernateException {
-        Criteria criteria = session.createCriteria(UsersDataSet.class);
-
-        return (List<UsersDataSet>) criteria
-                .add(Restrictions.eq("username", username))
-                .list();
+    public UsersDataSet get(String username) throws HibernateException {
+        return (UsersDataSet) session.getNamedQuery(UsersDataSet.BY_USERNAME)
+                .setString("username", username)
+                .setReadOnly(true)
+                .uniqueResult();
     }
 
     @Override
@@ -10,9 +10,12 @@ import java.io.Serializable;
  */
 
 @Entity
-@Table(name = "users")
+@NamedQuery(name = UsersDataSet.BY_USERNAME, query = "from UsersDataSet where username = :username")
+@Table(name = "users", uniqueConstraints = @UniqueConstraint(name = "uk_users_username", columnNames = "username"))
 public class UsersDataSet implements Serializable {
 
+    public static final String BY_USERNAME = "UsersDataSet.byUsername";
+
     @Id
     @Column(name = "id")
     @GeneratedValue(strategy = GenerationType.IDENTITY)
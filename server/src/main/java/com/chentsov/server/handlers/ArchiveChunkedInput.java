@@ -0,0 +1,142 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.FileTreeWalker;
+import com.chentsov.common.messages.responses.ArchiveChunk;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Streams files to the client as a single zip archive through {@link ChunkedWriteHandler}. The archive
+ * is compressed on the fly: files are read and deflated only until the next chunk is full, so neither
+ * temporary files nor the whole archive are kept on the server. The fastest compression level is used,
+ * since it already shrinks trees of small text files a lot at a low CPU cost.
+ */
+final class ArchiveChunkedInput implements ChunkedInput<ArchiveChunk> {
+
+    private static final Logger logger = LogManager.getLogger(ArchiveChunkedInput.class.getSimpleName());
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final FileTreeWalker filePaths;
+    private final Path source;
+    private final String destination;
+    private final ChunkBuffer buffer = new ChunkBuffer();
+    private final ZipOutputStream zip = new ZipOutputStream(buffer);
+    private final byte[] readBuffer = new byte[CHUNK_SIZE];
+
+    private InputStream currentFile;
+    private boolean isFinished;
+    private boolean isOver;
+    private long progress;
+
+    /**
+     * @param filePaths   a walker over the files to be archived, it is closed with the input
+     * @param source      a folder that entry names are calculated from
+     * @param destination a client folder to extract the archive to
+     */
+    ArchiveChunkedInput(FileTreeWalker filePaths, String source, String destination) {
+        this.filePaths = filePaths;
+        this.source = Paths.get(source);
+        this.destination = destination;
+        zip.setLevel(Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return isOver;
+    }
+
+    @Override
+    public void close() throws Exception {
+        filePaths.close();
+        if (currentFile != null) currentFile.close();
+        zip.close();
+    }
+
+    @Deprecated
+    @Override
+    public ArchiveChunk readChunk(ChannelHandlerContext context) throws Exception {
+        return readChunk(context.alloc());
+    }
+
+    @Override
+    public ArchiveChunk readChunk(ByteBufAllocator allocator) throws Exception {
+        if (isOver) return null;
+        while (buffer.size() < CHUNK_SIZE && !isFinished) {
+            if (currentFile != null) {
+                int read = currentFile.read(readBuffer);
+                if (read < 0) {
+                    currentFile.close();
+                    currentFile = null;
+                    zip.closeEntry();
+                } else {
+                    zip.write(readBuffer, 0, read);
+                    progress += read;
+                }
+            } else if (filePaths.hasNext()) {
+                putNextEntry(filePaths.next());
+            } else {
+                zip.finish();
+                isFinished = true;
+            }
+        }
+
+        isOver = isFinished;
+        return new ArchiveChunk(destination, isOver, buffer.take());
+    }
+
+    private void putNextEntry(FileTreeWalker.Entry entry) throws IOException {
+        Path filePath = entry.path;
+        String name = source.relativize(filePath).toString().replace('\\', '/');
+        if (name.isEmpty()) return;
+        if (entry.isDirectory()) {
+            zip.putNextEntry(new ZipEntry(name + "/"));
+            zip.closeEntry();
+            return;
+        }
+        logger.info("Archiving " + filePath);
+        zip.putNextEntry(new ZipEntry(name));
+        currentFile = Files.newInputStream(filePath);
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+
+    /**
+     * An output stream that hands over its content and starts over
+     */
+    private static final class ChunkBuffer extends ByteArrayOutputStream {
+        private ChunkBuffer() {
+            super(CHUNK_SIZE + CHUNK_SIZE / 2);
+        }
+
+        private byte[] take() {
+            byte[] data = toByteArray();
+            reset();
+            return data;
+        }
+    }
+
+}
@@ -1,20 +1,26 @@
 package com.chentsov.server.handlers;
 
+import com.chentsov.common.ChunkSizer;
 import com.chentsov.common.messages.requests.AuthRequest;
 import com.chentsov.common.messages.responses.AuthResponse;
 import com.chentsov.server.dbService.DBService;
 import com.chentsov.server.dbService.dataset.UsersDataSet;
 import com.chentsov.server.util.HashHelper;
+import com.chentsov.server.util.SessionTokens;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutorGroup;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.chentsov.server.util.HashHelper.getPasswordHash;
 
@@ -25,17 +31,34 @@ public class AuthHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger logger = LogManager.getLogger(AuthHandler.class.getSimpleName());
 
-    private static final String ROOT_PATH = "server/cloud_storage/";
+    public static final String ROOT_PATH = "server/cloud_storage/";
+    //a client that sends more than this while being authorized is disconnected
+    private static final int MAX_HELD_MESSAGES = Integer.getInteger("geekcloud.maxHeldDuringAuth", 256);
     private final DBService dbService = DBService.getInstance();
+    private final EventExecutorGroup diskIoGroup;
+    private final ExecutorService authPool;
+    //messages decoded after an auth request while it is being processed, accessed from the event loop only
+    private final Queue<Object> held = new ArrayDeque<>();
+    private boolean isAuthorizing;
 
-    public AuthHandler() {
+    /**
+     * @param diskIoGroup an executor group that runs the MainHandler, so blocking file system calls
+     *                    do not stall other connections of the event loop
+     * @param authPool    a bounded pool that hashes passwords. It must reject tasks when its queue is full
+     */
+    public AuthHandler(EventExecutorGroup diskIoGroup, ExecutorService authPool) {
+        this.diskIoGroup = diskIoGroup;
+        this.authPool = authPool;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext context, Object msg) throws Exception {
+        if (msg == null) return;
+        if (isAuthorizing) {
+            hold(context, msg);
+            return;
+        }
         try {
-            if (msg == null) return;
-
             if (msg instanceof AuthRequest) {
                 processAuth(context, (AuthRequest) msg);
                 return;
@@ -46,20 +69,102 @@ public class AuthHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Keeps a message until the auth in progress completes. Pausing the reading does not stop the frames
+     * already decoded from the same read, and they must reach the MainHandler that is added by the auth
+     */
+    private void hold(ChannelHandlerContext context, Object msg) {
+        if (held.size() >= MAX_HELD_MESSAGES) {
+            logger.warn("Too many messages during auth, closing " + context.channel());
+            ReferenceCountUtil.release(msg);
+            context.close();
+            return;
+        }
+        held.add(msg);
+    }
+
+    /**
+     * Passes the held messages on in their order and resumes reading. Runs on the event loop
+     */
+    private void authCompleted(ChannelHandlerContext context) {
+        isAuthorizing = false;
+        //a held auth request starts the next auth, the rest of the messages wait for it
+        while (!isAuthorizing && !held.isEmpty()) {
+            try {
+                channelRead(context, held.poll());
+            } catch (Exception e) {
+                context.fireExceptionCaught(e);
+            }
+        }
+        if (!isAuthorizing) context.channel().config().setAutoRead(true);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext context) throws Exception {
+        while (!held.isEmpty()) {
+            ReferenceCountUtil.release(held.poll());
+        }
+        super.channelInactive(context);
+    }
+
+    /**
+     * Hands the auth request to the auth pool, so password hashing never blocks the event loop.
+     * Reading from the channel is paused until the response is sent, the messages decoded meanwhile are held
+     * and passed on after the auth, see {@link #hold(ChannelHandlerContext, Object)}. If the pool queue is full,
+     * the request is rejected at once.
+     *
+     * @param context a ChannelHandlerContext of the client channel
+     * @param msg     received auth request
+     */
     private void processAuth(ChannelHandlerContext context, AuthRequest msg) throws IOException {
         logger.info("Auth request received from " + msg.login);
-        String pathToStorage = ROOT_PATH + msg.login;
-        Files.createDirectories(Paths.get(pathToStorage));
+        if (msg.sessionToken != null) {
+            resumeSession(context, msg);
+            return;
+        }
+        context.channel().config().setAutoRead(false);
+        isAuthorizing = true;
+        try {
+            authPool.execute(() -> {
+                try {
+                    authorize(context, msg);
+                } catch (Exception e) {
+                    logger.error("Auth failed for " + msg.login, e);
+                    context.writeAndFlush(new AuthResponse(false));
+                } finally {
+                    context.executor().execute(() -> authCompleted(context));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Auth queue is full, rejecting " + msg.login);
+            context.writeAndFlush(new AuthResponse(false));
+            authCompleted(context);
+        }
+    }
 
+    /**
+     * Logs the user in by the session token. Checking the signature takes microseconds,
+     * so it is done right on the event loop
+     *
+     * @param context a ChannelHandlerContext of the client channel
+     * @param msg     received auth request that holds a session token
+     * @throws IOException in case of I/O errors
+     */
+    private void resumeSession(ChannelHandlerContext context, AuthRequest msg) throws IOException {
+        logger.info("Resuming session of user: " + msg.login);
+        if (!SessionTokens.verify(msg.login, msg.sessionToken)) {
+            logger.info("Session token rejected: " + msg.login);
+            context.writeAndFlush(new AuthResponse(false));
+            return;
+        }
+        completeLogin(context, msg);
+    }
+
+    private void authorize(ChannelHandlerContext context, AuthRequest msg) throws IOException {
         if (!msg.isNewUser) {
             logger.info("Authorizing user: " + msg.login);
-            boolean isAuthorized = checkCredentials(msg.login, msg.password);
-            context.writeAndFlush(new AuthResponse(isAuthorized, pathToStorage));
-            //if auth is successful, add the main request processor
-            if (isAuthorized) {
-                context.pipeline().addLast(new MainHandler(pathToStorage));
-                logger.info("Auth complete: " + msg.login);
-            }
+            if (checkCredentials(msg.login, msg.password)) completeLogin(context, msg);
+            else context.writeAndFlush(new AuthResponse(false, ROOT_PATH + msg.login));
         } else {
             logger.info("Creating new user: " + msg.login);
             String salt = HashHelper.generateSalt();
@@ -68,6 +173,31 @@ public class AuthHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Sends a successful response with a fresh session token and adds the main request processor.
+     * File part bounds are negotiated here: the largest part is the smaller of what both sides accept.
+     *
+     * @param context a ChannelHandlerContext of the client channel
+     * @param msg     an auth request of the authorized user
+     * @throws IOException in case of I/O errors
+     */
+    private void completeLogin(ChannelHandlerContext context, AuthRequest msg) throws IOException {
+        String login = msg.login;
+        String pathToStorage = ROOT_PATH + login;
+        Files.createDirectories(Paths.get(pathToStorage));
+        int maxChunkSize = Math.min(ChunkSizer.MAX_CHUNK_SIZE, msg.maxChunkSize);
+        ChunkSizer sizer = new ChunkSizer(ChunkSizer.MIN_CHUNK_SIZE, maxChunkSize, ChunkSizer.INITIAL_CHUNK_SIZE,
+                msg.rttMicros);
+        context.writeAndFlush(new AuthResponse(true, pathToStorage, SessionTokens.issue(login),
+                sizer.getMinChunkSize(), sizer.getMaxChunkSize(), sizer.next()));
+        //a channel that is already authorized keeps its processor
+        if (context.pipeline().get(MainHandler.class) == null) {
+            context.pipeline().addLast(new InboundThrottle())
+                    .addLast(diskIoGroup, new MainHandler(login, pathToStorage, sizer, msg.isDataConnection));
+        }
+        logger.info("Auth complete: " + login);
+    }
+
     /**
      * Checks if presented credentials exist and correct
      *
@@ -76,10 +206,9 @@ public class AuthHandler extends ChannelInboundHandlerAdapter {
      * @return true if credentials are correct and false otherwise
      */
     private boolean checkCredentials(String username, String password) {
-        List<UsersDataSet> resultSet = dbService.get(username);
-        if (resultSet.size() != 1) return false;
+        UsersDataSet data = dbService.get(username);
+        if (data == null) return false;
 
-        UsersDataSet data = resultSet.get(0);
         return data.getPassword().equals(getPasswordHash(password, data.getSalt()));
     }
 
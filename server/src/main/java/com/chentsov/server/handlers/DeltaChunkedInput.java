@@ -0,0 +1,92 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.DeltaEncoder;
+import com.chentsov.common.messages.responses.DeltaMessage;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Streams a file to the client as a delta against the copy the client has, see {@link DeltaEncoder},
+ * through {@link ChunkedWriteHandler}. The delta is encoded only while the channel is writable.
+ */
+final class DeltaChunkedInput implements ChunkedInput<DeltaMessage> {
+
+    private static final Logger logger = LogManager.getLogger(DeltaChunkedInput.class.getSimpleName());
+
+    private final DeltaEncoder encoder;
+    private final String transferId;
+    private final String destination;
+    private final String relativePath;
+    private final int blockSize;
+    private final long fileSize;
+    private final ChunkSizer sizer;
+    private boolean isOver;
+    private long progress;
+
+    /**
+     * @param encoder      an encoder of the requested file, it is closed with the input
+     * @param transferId   an id of the transfer
+     * @param destination  a client folder that holds the copy
+     * @param relativePath a path of the copy relative to the folder
+     * @param blockSize    a block size of the copy signatures
+     * @param fileSize     size of the requested file declared to the client
+     * @param sizer        picks the size of every message
+     */
+    DeltaChunkedInput(DeltaEncoder encoder, String transferId, String destination, String relativePath, int blockSize,
+                      long fileSize, ChunkSizer sizer) {
+        this.encoder = encoder;
+        this.transferId = transferId;
+        this.destination = destination;
+        this.relativePath = relativePath;
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.sizer = sizer;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return isOver;
+    }
+
+    @Override
+    public void close() throws Exception {
+        encoder.close();
+    }
+
+    @Deprecated
+    @Override
+    public DeltaMessage readChunk(ChannelHandlerContext context) throws Exception {
+        return readChunk(context.alloc());
+    }
+
+    @Override
+    public DeltaMessage readChunk(ByteBufAllocator allocator) throws Exception {
+        if (isOver) return null;
+        byte[] data = encoder.next(sizer.next());
+        progress += data.length;
+        if (!encoder.isDone()) return new DeltaMessage(transferId, destination, relativePath, blockSize, fileSize, null, data);
+
+        isOver = true;
+        logger.info("Sent a delta of " + relativePath + ": " + progress + " bytes for " + encoder.getFileSize()
+                + ", " + encoder.getCopiedBytes() + " bytes copied from the client copy");
+        return new DeltaMessage(transferId, destination, relativePath, blockSize, fileSize, encoder.getFileHash(), data);
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.FileTreeWalker;
+import com.chentsov.common.messages.responses.FileMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.compression.ZlibEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Streams files to the client through {@link ChunkedWriteHandler}. Every file part is a header-only
+ * FileMessage followed by the part bytes. The handler asks for the next chunk only while the channel
+ * is writable, so the files are read from disk no faster than the client receives them. The size of
+ * every part is picked by a {@link ChunkSizer} from the time the previous part took to be pulled through.
+ * An interrupted download is continued from the offset the client has committed, if the file is unchanged.
+ * A range request sends the given bytes of a file only.
+ * <p>
+ * Part bytes are sent as a zero-copy DefaultFileRegion (sendfile) unless a byte transforming handler
+ * is active in the pipeline; then they are read from disk in small buffers.
+ */
+final class FileChunkedInput implements ChunkedInput<Object> {
+
+    private static final Logger logger = LogManager.getLogger(FileChunkedInput.class.getSimpleName());
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private final FileTreeWalker filePaths;
+    private final String source;
+    private final String destination;
+    private final boolean zeroCopy;
+    private final ChunkSizer sizer;
+    //an interrupted download to be continued or null
+    private final String resumeId;
+    private final long resumeOffset;
+    private final long rangeLength;
+
+    //the file being sent, null when the input is over
+    private Path currentFile;
+    private String relativePath;
+    private String transferId;
+    private boolean isFolder;
+    private long fileSize;
+    //the end of the bytes to be sent, the file size unless a range is requested
+    private long fileEnd;
+    private boolean isFileSent;
+    private long position;
+    private long partBytesLeft;
+    private FileChannel fileChannel;
+
+    private long progress;
+    //the previous part and the time its header was pulled, to measure the throughput
+    private long lastPartSize;
+    private long lastPartStarted;
+
+    /**
+     * @param context      a ChannelHandlerContext of the client channel
+     * @param filePaths    a walker over the files to be sent, it is closed with the input
+     * @param source       a folder that relative paths are calculated from
+     * @param destination  a client folder to store the files to
+     * @param sizer        picks the size of every part
+     * @param resumeId     an id of the interrupted transfer or null
+     * @param resumeOffset an offset the client has committed or the start of the requested range
+     * @param rangeLength  a length of the requested range or -1 for the rest of the file
+     * @throws IOException in case of I/O errors
+     */
+    FileChunkedInput(ChannelHandlerContext context, FileTreeWalker filePaths, String source, String destination,
+                     ChunkSizer sizer, String resumeId, long resumeOffset, long rangeLength) throws IOException {
+        this.filePaths = filePaths;
+        this.source = source;
+        this.destination = destination;
+        this.sizer = sizer;
+        this.resumeId = resumeId;
+        this.resumeOffset = resumeOffset;
+        this.rangeLength = rangeLength;
+        this.zeroCopy = isZeroCopyAvailable(context.pipeline());
+        moveToNextFile();
+    }
+
+    /**
+     * Checks whether file regions can be written to the pipeline. Handlers that transform bytes
+     * (encryption, compression) cannot process a FileRegion, so chunked reads must be used instead.
+     *
+     * @param pipeline a pipeline of the channel
+     * @return true if the data may be sent with FileRegion
+     */
+    private static boolean isZeroCopyAvailable(ChannelPipeline pipeline) {
+        return pipeline.get(SslHandler.class) == null && pipeline.get(ZlibEncoder.class) == null;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return currentFile == null;
+    }
+
+    @Override
+    public void close() throws Exception {
+        filePaths.close();
+        closeFileChannel();
+    }
+
+    @Deprecated
+    @Override
+    public Object readChunk(ChannelHandlerContext context) throws Exception {
+        return readChunk(context.alloc());
+    }
+
+    @Override
+    public Object readChunk(ByteBufAllocator allocator) throws Exception {
+        if (currentFile == null) return null;
+
+        Object chunk;
+        if (isFolder) {
+            chunk = FileMessage.emptyFolder(relativePath, destination);
+            logger.info("Sending empty folder: " + currentFile);
+            isFileSent = true;
+        } else if (partBytesLeft > 0) {
+            chunk = readPartData(allocator);
+        } else {
+            long now = System.nanoTime();
+            if (lastPartSize > 0) sizer.record(lastPartSize, now - lastPartStarted);
+            partBytesLeft = Math.min(sizer.next(), fileEnd - position);
+            lastPartSize = partBytesLeft;
+            lastPartStarted = now;
+            chunk = FileMessage.header(relativePath, destination, transferId, position, fileSize, (int) partBytesLeft);
+            isFileSent = position + partBytesLeft == fileEnd;
+        }
+
+        if (partBytesLeft == 0 && isFileSent) moveToNextFile();
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+
+    /**
+     * Reads the rest of the current part or its next piece
+     *
+     * @param allocator an allocator for the read buffer
+     * @return a FileRegion or a ByteBuf with the part data
+     * @throws IOException in case of I/O errors
+     */
+    private Object readPartData(ByteBufAllocator allocator) throws IOException {
+        if (zeroCopy) {
+            //the region opens the file lazily and closes it when transferred
+            Object region = new DefaultFileRegion(new File(currentFile.toString()), position, partBytesLeft);
+            advance(partBytesLeft);
+            return region;
+        }
+
+        if (fileChannel == null) fileChannel = FileChannel.open(currentFile, StandardOpenOption.READ);
+        int length = (int) Math.min(READ_CHUNK_SIZE, partBytesLeft);
+        ByteBuf buffer = allocator.buffer(length);
+        try {
+            while (buffer.writerIndex() < length) {
+                int read = buffer.writeBytes(fileChannel, position + buffer.writerIndex(), length - buffer.writerIndex());
+                if (read < 0) throw new IOException("File was truncated while being sent: " + currentFile);
+            }
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        advance(length);
+        return buffer;
+    }
+
+    private void advance(long bytes) {
+        position += bytes;
+        partBytesLeft -= bytes;
+        progress += bytes;
+    }
+
+    /**
+     * Selects the next file that has something to be sent. The walker returns only files and empty folders,
+     * with their attributes already read; an empty file is sent as a single header without data.
+     *
+     * @throws IOException in case of I/O errors
+     */
+    private void moveToNextFile() throws IOException {
+        closeFileChannel();
+        currentFile = null;
+        if (filePaths.hasNext()) {
+            FileTreeWalker.Entry entry = filePaths.next();
+            logger.info("Sending " + entry.path);
+            currentFile = entry.path;
+            relativePath = entry.path.toString().substring(source.length());
+            isFolder = entry.isDirectory();
+            fileSize = entry.size();
+            transferId = FileMessage.transferId(destination, relativePath, fileSize,
+                    entry.attributes.lastModifiedTime().toMillis());
+            isFileSent = false;
+            //a range is requested without an id, a resumed transfer continues only if the file is unchanged
+            boolean isOffsetValid = resumeId == null || transferId.equals(resumeId);
+            position = isOffsetValid ? Math.min(Math.max(resumeOffset, 0), fileSize) : 0;
+            fileEnd = isOffsetValid && rangeLength >= 0 ? Math.min(position + rangeLength, fileSize) : fileSize;
+            if (position > 0 || fileEnd < fileSize) logger.info("Sending range " + position + "-" + fileEnd);
+            partBytesLeft = 0;
+        }
+    }
+
+    private void closeFileChannel() throws IOException {
+        if (fileChannel == null) return;
+        fileChannel.close();
+        fileChannel = null;
+    }
+
+}
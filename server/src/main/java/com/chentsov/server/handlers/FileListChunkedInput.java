@@ -0,0 +1,100 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.FileItem;
+import com.chentsov.common.messages.responses.FileListResponse;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Streams a directory listing to the client page by page through {@link ChunkedWriteHandler}.
+ * Pages are encoded only while the channel is writable, so a huge directory neither produces
+ * a single huge frame nor fills the outbound buffer. A stream is cancelled when the client asks
+ * for another listing before the current one is over.
+ */
+final class FileListChunkedInput implements ChunkedInput<FileListResponse> {
+
+    private final String path;
+    private final long version;
+    private final List<FileItem> items;
+    private final int pageSize;
+    private int offset;
+    //at least one page is sent, so an empty directory is still listed
+    private boolean isOver;
+    private volatile boolean cancelled;
+
+    /**
+     * @param path     a directory path that is sent back with every page
+     * @param version  a version of the listing
+     * @param items    a sorted immutable listing of the directory
+     * @param cursor   an index of the first item to be sent
+     * @param pageSize max count of items in a page
+     */
+    FileListChunkedInput(String path, long version, List<FileItem> items, int cursor, int pageSize) {
+        this.path = path;
+        this.version = version;
+        this.items = items;
+        this.pageSize = pageSize;
+        this.offset = Math.max(0, Math.min(cursor, items.size()));
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the whole listing is passed to the channel, so the client is going to have this version
+     */
+    boolean isComplete() {
+        return isOver && !cancelled;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return cancelled || isOver;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Deprecated
+    @Override
+    public FileListResponse readChunk(ChannelHandlerContext context) {
+        return readChunk(context.alloc());
+    }
+
+    @Override
+    public FileListResponse readChunk(ByteBufAllocator allocator) {
+        if (isEndOfInput()) return null;
+        int end = Math.min(items.size(), offset + pageSize);
+        FileListResponse page = new FileListResponse(path, version, offset, items.size(), items.subList(offset, end));
+        offset = end;
+        isOver = end >= items.size();
+        return page;
+    }
+
+    @Override
+    public long length() {
+        return items.size();
+    }
+
+    @Override
+    public long progress() {
+        return offset;
+    }
+
+}
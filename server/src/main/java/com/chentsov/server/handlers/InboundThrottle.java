@@ -0,0 +1,57 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.messages.AbstractMessage;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Inbound backpressure of a single channel. Decoded messages wait in the queue of the disk executor
+ * until the {@link MainHandler} processes them, so a fast upload onto a slow disk would queue file parts
+ * without limit. The throttle runs on the event loop, counts the bytes handed over to the executor
+ * and stops reading from the socket above the high mark, the MainHandler reports every processed
+ * message and reading resumes below the low mark. TCP flow control then slows the sender down.
+ */
+final class InboundThrottle extends ChannelInboundHandlerAdapter {
+
+    private static final long HIGH_MARK = Long.getLong("geekcloud.maxPendingInbound", 32 * 1024 * 1024); // 32 mb
+    private static final long LOW_MARK = HIGH_MARK / 2;
+    //control messages have no payload but still take a place in the queue
+    private static final int MESSAGE_WEIGHT = 4 * 1024;
+
+    private final AtomicLong pending = new AtomicLong();
+
+    @Override
+    public void channelRead(ChannelHandlerContext context, Object msg) {
+        if (pending.addAndGet(weight(msg)) >= HIGH_MARK) {
+            context.channel().config().setAutoRead(false);
+            //the executor may have drained the queue before reading was stopped
+            resumeIfDrained(context.channel());
+        }
+        context.fireChannelRead(msg);
+    }
+
+    /**
+     * Reports a processed message. Called from the executor of the MainHandler
+     *
+     * @param channel a channel the message was read from
+     * @param msg     a processed message
+     */
+    void processed(Channel channel, Object msg) {
+        pending.addAndGet(-weight(msg));
+        resumeIfDrained(channel);
+    }
+
+    private void resumeIfDrained(Channel channel) {
+        if (pending.get() < LOW_MARK && !channel.config().isAutoRead()) channel.config().setAutoRead(true);
+    }
+
+    private static long weight(Object msg) {
+        return msg instanceof AbstractMessage ? ((AbstractMessage) msg).payloadLength() + MESSAGE_WEIGHT : MESSAGE_WEIGHT;
+    }
+
+}
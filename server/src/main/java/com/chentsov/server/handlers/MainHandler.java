@@ -1,20 +1,43 @@
 package com.chentsov.server.handlers;
 
 
+import com.chentsov.common.BlockSignatures;
+import com.chentsov.common.ChunkManifest;
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.DeltaEncoder;
+import com.chentsov.common.DeltaFile;
 import com.chentsov.common.FileItem;
 import com.chentsov.common.FileParts;
+import com.chentsov.common.FileTreeWalker;
+import com.chentsov.common.MerkleEntry;
 import com.chentsov.common.messages.requests.*;
+import com.chentsov.common.messages.responses.DeltaMessage;
+import com.chentsov.common.messages.responses.DeltaResult;
+import com.chentsov.common.messages.responses.FileBatchMessage;
+import com.chentsov.common.messages.responses.FileChangeEvent;
+import com.chentsov.common.messages.responses.FileListDelta;
 import com.chentsov.common.messages.responses.FileMessage;
-import com.chentsov.common.messages.responses.FileListResponse;
+import com.chentsov.common.messages.responses.MerkleResponse;
+import com.chentsov.common.messages.responses.MissingChunks;
+import com.chentsov.common.messages.responses.NeededFiles;
+import com.chentsov.common.messages.responses.ResumeResponse;
+import com.chentsov.common.messages.responses.SignatureResponse;
+import com.chentsov.server.storage.ChunkStore;
+import com.chentsov.server.storage.DirectoryListing;
+import com.chentsov.server.storage.ListingCache;
+import com.chentsov.server.storage.MerkleTree;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -25,12 +48,60 @@ public final class MainHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger logger = LogManager.getLogger(MainHandler.class.getSimpleName());
 
-    private final List<FileItem> cloudFileList = new ArrayList<>();
-    private final Map<Path, FileParts> fileParts = new ConcurrentHashMap<>();
+    //a limit for a single page, so a frame never exceeds the decoder limit of the client
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("geekcloud.maxListingPageSize", 5000);
+    //partially received files of every user are kept here until complete, see FileParts
+    private static final String TRANSFERS_PATH = System.getProperty("geekcloud.transfersPath", "server/transfers/");
+
+    private final ListingCache listingCache = ListingCache.getInstance();
+    private final ChunkStore chunkStore = ChunkStore.getInstance();
+    private final MerkleTree merkleTree = MerkleTree.getInstance();
+    //files being received by all the channels, data connections of a parallel upload write ranges of the same file
+    private static final Map<Path, FileParts> fileParts = new ConcurrentHashMap<>();
+    //count of the channels that write every file being received. Counts belong to the receiving instance,
+    //so a completed file does not pass its writers on to the next upload of the same path
+    private static final Map<FileParts, Integer> fileWriters = new ConcurrentHashMap<>();
+    //files being received this channel writes to
+    private final Map<Path, FileParts> writtenFiles = new HashMap<>();
+    //files being rebuilt from a delta by all the channels. A file is received either in parts or as a delta at a time
+    private static final Set<Path> deltaDestinations = ConcurrentHashMap.newKeySet();
+    //files this channel rebuilds from a delta by transfer ids
+    private final Map<String, DeltaFile> deltaFiles = new HashMap<>();
+    private final SessionRegistry sessionRegistry = SessionRegistry.getInstance();
+    private final String login;
     private final String pathToStorage;
+    private final Path transfersPath;
+    //sizes the file parts sent to the client, negotiated at login
+    private final ChunkSizer chunkSizer;
+    //a data connection carries ranges of large files only, listings and notifications go to the main one
+    private final boolean isDataConnection;
+    //a listing being streamed to the client or the last listing the client has received completely
+    private FileListChunkedInput listingStream;
+    private String listedPath;
+    private long listedVersion;
+    private RefreshDebouncer refreshDebouncer;
+    //changes made by the other sessions of the user, coalesced per directory
+    private RefreshDebouncer changePushes;
+    private EventExecutor executor;
+    private InboundThrottle inboundThrottle;
 
-    MainHandler(String pathToStorage) {
+    MainHandler(String login, String pathToStorage, ChunkSizer chunkSizer, boolean isDataConnection) {
+        this.login = login;
         this.pathToStorage = pathToStorage;
+        this.transfersPath = Paths.get(TRANSFERS_PATH, login);
+        this.chunkSizer = chunkSizer;
+        this.isDataConnection = isDataConnection;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext context) {
+        executor = context.executor();
+        refreshDebouncer = new RefreshDebouncer(executor, context.channel(), (path, changes) -> refreshFileList(context, path));
+        changePushes = new RefreshDebouncer(executor, context.channel(), (path, changes) -> pushChanges(context, path, changes));
+        inboundThrottle = context.pipeline().get(InboundThrottle.class);
+        if (isDataConnection) return;
+        sessionRegistry.register(login, context.channel());
+        FileParts.purgeExpired(transfersPath);
     }
 
     @Override
@@ -42,12 +113,20 @@ public final class MainHandler extends ChannelInboundHandlerAdapter {
             //todo: can use Visitor pattern here (+ double dispatch) to get rid of long instanceof check
             if (msg instanceof FileRequest) processFileRequest(handlerContext, (FileRequest) msg);
             else if (msg instanceof FileMessage) processFileMessage(handlerContext, (FileMessage) msg);
+            else if (msg instanceof FileBatchMessage) processFileBatch(handlerContext, (FileBatchMessage) msg);
             else if (msg instanceof DeleteFileRequest) deleteFile(handlerContext, (DeleteFileRequest) msg);
             else if (msg instanceof RenameFileRequest) renameFile(handlerContext, (RenameFileRequest) msg);
-            else if (msg instanceof FileListRequest) refreshFileList(handlerContext,
-                    ((FileListRequest) msg).currentCloudPath);
+            else if (msg instanceof FileListRequest) refreshFileList(handlerContext, (FileListRequest) msg);
+            else if (msg instanceof ResumeRequest) processResumeRequest(handlerContext, (ResumeRequest) msg);
+            else if (msg instanceof ManifestRequest) processManifestRequest(handlerContext, (ManifestRequest) msg);
+            else if (msg instanceof PreflightRequest) processPreflightRequest(handlerContext, (PreflightRequest) msg);
+            else if (msg instanceof SignatureRequest) processSignatureRequest(handlerContext, (SignatureRequest) msg);
+            else if (msg instanceof DeltaMessage) processDeltaMessage(handlerContext, (DeltaMessage) msg);
+            else if (msg instanceof DeltaRequest) processDeltaRequest(handlerContext, (DeltaRequest) msg);
+            else if (msg instanceof MerkleRequest) processMerkleRequest(handlerContext, (MerkleRequest) msg);
             else if (msg instanceof LogoutMessage) performLogOut(handlerContext, (LogoutMessage) msg);
         } finally {
+            if (inboundThrottle != null) inboundThrottle.processed(handlerContext.channel(), msg);
             ReferenceCountUtil.release(msg);
         }
     }
@@ -58,39 +137,169 @@ public final class MainHandler extends ChannelInboundHandlerAdapter {
         context.flush();
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext context) throws Exception {
+        releaseWrittenFiles();
+        for (String transferId : new ArrayList<>(deltaFiles.keySet())) {
+            closeDeltaFile(transferId);
+        }
+        refreshDebouncer.cancelAll();
+        changePushes.cancelAll();
+        sessionRegistry.unregister(login, context.channel());
+        super.channelInactive(context);
+    }
+
     @Override
     @SuppressWarnings("all")
     public void exceptionCaught(ChannelHandlerContext context, Throwable cause) throws Exception {
         context.close();
     }
 
+    /**
+     * Remembers that this channel writes the file being received, so the file is not closed while the channel
+     * is alive. Called before and after every write: once the file is completed or has failed, it is released
+     *
+     * @param destination a file being received
+     */
+    private void retainWrittenFile(Path destination) {
+        FileParts retained = writtenFiles.get(destination);
+        FileParts parts;
+        synchronized (fileParts) {
+            parts = fileParts.get(destination);
+            if (parts == retained) return;
+            if (parts != null) fileWriters.merge(parts, 1, Integer::sum);
+        }
+        if (retained != null) releaseWrittenFile(destination);
+        if (parts != null) writtenFiles.put(destination, parts);
+    }
+
+    /**
+     * Stops writing the file. If no other channel writes it and it is still being received, it is closed.
+     * The committed offset is persisted on close, so an interrupted upload can be resumed
+     *
+     * @param destination a file being received
+     */
+    private void releaseWrittenFile(Path destination) {
+        FileParts parts = writtenFiles.remove(destination);
+        if (parts == null) return;
+        boolean isLastWriter;
+        synchronized (fileParts) {
+            isLastWriter = fileWriters.computeIfPresent(parts, (instance, count) -> count == 1 ? null : count - 1) == null
+                    && fileParts.remove(destination, parts);
+        }
+        if (!isLastWriter) return;
+        try {
+            parts.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the file being received in parts or starts receiving it
+     *
+     * @throws IOException if a delta of the file is being received
+     */
+    private FileParts openParts(Path destination, long fileSize, String transferId) throws IOException {
+        synchronized (fileParts) {
+            if (deltaDestinations.contains(destination))
+                throw new IOException("A delta of the file is being received: " + destination);
+            return FileMessage.openParts(fileParts, destination, fileSize, transfersPath, transferId);
+        }
+    }
+
+    private void releaseWrittenFiles() {
+        for (Path destination : new ArrayList<>(writtenFiles.keySet())) {
+            releaseWrittenFile(destination);
+        }
+    }
+
+    /**
+     * Sends the listing after a change made by this client. If the client has the complete listing
+     * of the directory, only the changes are sent
+     *
+     * @param context    a ChannelHandlerContext that sends data to client
+     * @param stringPath a changed directory
+     */
     private void refreshFileList(ChannelHandlerContext context, String stringPath) {
-        String currentCloudPath = stringPath.isEmpty() ? pathToStorage : stringPath;
+        long version = 0;
+        if (listingStream != null && listingStream.isComplete()) {
+            listedPath = listingStream.getPath();
+            listedVersion = listingStream.getVersion();
+            listingStream = null;
+        }
+        if (listingStream == null && listedPath != null && Paths.get(listedPath).equals(Paths.get(stringPath)))
+            version = listedVersion;
+        refreshFileList(context, new FileListRequest(stringPath, version));
+    }
+
+    /**
+     * Sends the requested directory listing. A client that passes a known version of the listing receives
+     * a single {@link FileListDelta}, otherwise the listing is streamed in pages, see {@link FileListChunkedInput}.
+     * A listing that is still being sent is cancelled, since the client only shows the latest one
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a FileListRequest instance that holds the directory, cursor, page size, order and version
+     */
+    private void refreshFileList(ChannelHandlerContext context, FileListRequest request) {
+        String currentCloudPath = request.currentCloudPath.isEmpty() ? pathToStorage : request.currentCloudPath;
         boolean isRoot = Paths.get(currentCloudPath).equals(Paths.get(pathToStorage));
-        FileItem.refreshFileList(cloudFileList, isRoot ? pathToStorage : currentCloudPath, isRoot);
+        DirectoryListing listing = listingCache.get(isRoot ? pathToStorage : currentCloudPath, isRoot);
+        refreshDebouncer.cancel(currentCloudPath);
+        int pageSize = Math.max(1, Math.min(request.pageSize, MAX_PAGE_SIZE));
+
+        if (listingStream != null) listingStream.cancel();
+        listingStream = null;
+        listedPath = null;
+
+        Set<String> changes = request.version == 0 || request.cursor != 0 ? null : listing.changesSince(request.version);
+        //a delta larger than a page is not cheaper than the listing itself
+        if (changes != null && changes.size() <= pageSize) {
+            List<FileItem> changed = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (String path : changes) {
+                FileItem item = listing.find(path);
+                if (item != null) changed.add(item);
+                else removed.add(path);
+            }
+            listedPath = currentCloudPath;
+            listedVersion = listing.getVersion();
+            logger.info("Sending client list delta, " + changes.size() + " items");
+            context.writeAndFlush(new FileListDelta(currentCloudPath, request.version, listing.getVersion(), changed, removed));
+            return;
+        }
 
-        FileListResponse response = new FileListResponse(cloudFileList);
-        logger.info("Sending refreshed client list");
-        context.writeAndFlush(response);
+        //the listing is an immutable snapshot, so it is safe to be encoded after this method returns
+        List<FileItem> cloudFileList = listing.sorted(request.sortKey);
+        listingStream = new FileListChunkedInput(currentCloudPath, listing.getVersion(), cloudFileList, request.cursor, pageSize);
+        logger.info("Sending refreshed client list, " + cloudFileList.size() + " items");
+        context.writeAndFlush(listingStream);
     }
 
     /**
-     * Processes a file request
+     * Processes a file request. Files are streamed with respect to the channel writability,
+     * see {@link FileChunkedInput}, or as a single compressed archive, see {@link ArchiveChunkedInput}
      *
      * @param context ChannelHandlerContext that sends data to client
      * @param request  FileRequest instance that holds info about requested file
      */
     private void processFileRequest(ChannelHandlerContext context, FileRequest request) {
-        List<Path> filePaths = new ArrayList<>();
+        //the tree is walked while being sent, so the first file goes out before the rest is discovered
+        List<Path> roots = request.getStringPaths().stream().map(Paths::get).collect(Collectors.toList());
+        FileTreeWalker walker = new FileTreeWalker(roots);
+
+        if (request.archive) {
+            context.writeAndFlush(new ArchiveChunkedInput(walker, pathToStorage, request.getDestinationPath()));
+            return;
+        }
         try {
-            for (String stringPath : request.getStringPaths()) {
-                filePaths.addAll(Files.walk(Paths.get(stringPath)).collect(Collectors.toList()));
-            }
+            FileChunkedInput input = new FileChunkedInput(context, walker, pathToStorage, request.getDestinationPath(),
+                    chunkSizer, request.transferId, request.offset, request.length);
+            context.writeAndFlush(input);
         } catch (IOException e) {
+            walker.close();
             e.printStackTrace();
         }
-
-        FileMessage.send(filePaths, pathToStorage, request.getDestinationPath(), context::writeAndFlush, null);
     }
 
     /**
@@ -103,7 +312,278 @@ public final class MainHandler extends ChannelInboundHandlerAdapter {
     private void processFileMessage(ChannelHandlerContext context, FileMessage msg) throws IOException {
         Path filePath = Paths.get(pathToStorage + File.separator + msg.getDestination());
         logger.info("Receiving file message: " + filePath);
-        FileMessage.receive(msg, fileParts, () -> refreshFileList(context, msg.getDestination()));
+        Path destination = Paths.get(msg.getDestination() + File.separator + msg.getRelativePath());
+        if (msg.getTransferId() != null && msg.isPart()) {
+            openParts(destination, msg.getFileSize(), msg.getTransferId());
+            retainWrittenFile(destination);
+        }
+        try {
+            FileMessage.receive(msg, fileParts, transfersPath,
+                    () -> fileReceived(context, msg.getDestination(), msg.getRelativePath(), msg.getFileSize()));
+        } finally {
+            if (msg.getTransferId() != null) retainWrittenFile(destination);
+        }
+    }
+
+    /**
+     * Takes a received file into account
+     *
+     * @param context      a ChannelHandlerContext that maintains current pipeline
+     * @param destination  a folder the file is received to
+     * @param relativePath a path of the file relative to the folder
+     * @param fileSize     size of the file
+     */
+    private void fileReceived(ChannelHandlerContext context, String destination, String relativePath, long fileSize) {
+        Path path = Paths.get(destination, relativePath);
+        listingCache.invalidate(path);
+        //files of a bulk upload complete one after another, so their listings are coalesced
+        if (!isDataConnection) refreshDebouncer.schedule(destination);
+        notifyOtherSessions(context, path);
+        //the chunks of the file are offered to the next uploads
+        if (chunkStore.accepts(fileSize)) chunkStore.indexLater(path);
+    }
+
+    /**
+     * Asks the client for the chunks of an offered file the store does not hold and assembles the file
+     * from the held ones meanwhile, see {@link ChunkStore}.
+     * A new version of a file shares most of its chunks with the previous one, so the existing destination
+     * is indexed first
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a ManifestRequest that holds the chunks of the file
+     * @throws IOException in case of i/o operations
+     */
+    private void processManifestRequest(ChannelHandlerContext context, ManifestRequest request) throws IOException {
+        Path destination = Paths.get(request.destination + File.separator + request.relativePath);
+        ChunkManifest manifest = request.manifest;
+        if (Files.isRegularFile(destination) && chunkStore.accepts(Files.size(destination))) {
+            try {
+                chunkStore.index(destination);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        FileParts parts = openParts(destination, manifest.getFileSize(), request.transferId);
+        retainWrittenFile(destination);
+        //the client sends the missing chunks while the held ones are copied
+        int[] missing = chunkStore.missing(manifest, Paths.get(pathToStorage));
+        logger.info("Upload " + request.transferId + " needs " + missing.length + " of " + manifest.size() + " chunks");
+        context.writeAndFlush(new MissingChunks(request.transferId, missing));
+
+        long reused = 0;
+        try {
+            for (int i = 0, next = 0; i < manifest.size(); i++) {
+                if (next < missing.length && missing[next] == i) {
+                    next++;
+                    continue;
+                }
+                byte[] data = chunkStore.read(manifest.getHash(i), Paths.get(pathToStorage));
+                //the client is not going to send the chunk, so the upload fails and is started again
+                if (data == null || data.length != manifest.getLength(i))
+                    throw new IOException("Stored chunk " + manifest.getHash(i) + " has changed");
+                parts.write(manifest.getOffset(i), data);
+                reused += data.length;
+            }
+        } catch (IOException e) {
+            fileParts.remove(destination, parts);
+            parts.close();
+            releaseWrittenFile(destination);
+            throw e;
+        }
+        chunkStore.recordOffer(manifest.getFileSize(), reused);
+
+        if (parts.isComplete() && fileParts.remove(destination, parts)) {
+            logger.info("File successfully assembled: " + destination);
+            releaseWrittenFile(destination);
+            parts.complete();
+            fileReceived(context, request.destination, request.relativePath, manifest.getFileSize());
+        }
+    }
+
+    /**
+     * Tells the client where an interrupted upload continues from
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a ResumeRequest that holds the transfer id
+     */
+    private void processResumeRequest(ChannelHandlerContext context, ResumeRequest request) {
+        long offset = FileParts.committedOffset(transfersPath, request.transferId);
+        logger.info("Upload " + request.transferId + " resumes from " + offset);
+        context.writeAndFlush(new ResumeResponse(request.transferId, offset));
+    }
+
+    /**
+     * Tells the client which files of an upload are to be sent. A file is skipped if the stored copy has the same size
+     * and content hash. The {@link ChunkStore} keeps the hashes of stored files, so an unchanged tree is read once
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a PreflightRequest that holds a page of the upload
+     */
+    private void processPreflightRequest(ChannelHandlerContext context, PreflightRequest request) {
+        int[] needed = new int[request.entries.size()];
+        int count = 0;
+        for (int i = 0; i < request.entries.size(); i++) {
+            PreflightRequest.Entry entry = request.entries.get(i);
+            if (!isStored(Paths.get(request.destination + File.separator + entry.relativePath), entry)) needed[count++] = i;
+        }
+        logger.info("Upload to " + request.destination + " needs " + count + " of " + request.entries.size() + " files");
+        context.writeAndFlush(new NeededFiles(request.id, Arrays.copyOf(needed, count)));
+    }
+
+    private boolean isStored(Path path, PreflightRequest.Entry entry) {
+        try {
+            return Files.isRegularFile(path) && Files.size(path) == entry.size
+                    && chunkStore.contentHash(path).equals(entry.contentHash);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends the block signatures of the stored copy of an uploaded file, so the client sends a delta only
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a SignatureRequest that holds the path of the copy
+     */
+    private void processSignatureRequest(ChannelHandlerContext context, SignatureRequest request) {
+        Path path = Paths.get(request.stringPath);
+        BlockSignatures signatures = null;
+        try {
+            if (Files.isRegularFile(path) && BlockSignatures.accepts(Files.size(path))) signatures = BlockSignatures.of(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        context.writeAndFlush(new SignatureResponse(request.transferId, signatures));
+    }
+
+    /**
+     * Rebuilds an uploaded file from a delta against the stored copy. The copy is replaced when the last
+     * part of the delta is received and the rebuilt file matches the hash the client has sent.
+     * The client is told the result either way, see {@link DeltaResult}
+     *
+     * @param context a ChannelHandlerContext that maintains current pipeline
+     * @param msg     received part of the delta
+     * @throws IOException in case of i/o operations
+     */
+    private void processDeltaMessage(ChannelHandlerContext context, DeltaMessage msg) throws IOException {
+        Path destination = Paths.get(msg.destination + File.separator + msg.relativePath);
+        DeltaFile deltaFile = deltaFiles.get(msg.transferId);
+        if (deltaFile == null) {
+            synchronized (fileParts) {
+                if (fileParts.containsKey(destination) || !deltaDestinations.add(destination))
+                    throw new IOException("File is being received already: " + destination);
+            }
+            try {
+                deltaFile = new DeltaFile(destination, msg.blockSize, msg.fileSize, transfersPath, msg.transferId);
+            } catch (IOException e) {
+                deltaDestinations.remove(destination);
+                throw e;
+            }
+            deltaFiles.put(msg.transferId, deltaFile);
+        }
+        try {
+            deltaFile.apply(msg.getData());
+        } catch (IOException e) {
+            closeDeltaFile(msg.transferId);
+            throw e;
+        }
+        if (!msg.isLast()) return;
+
+        deltaFiles.remove(msg.transferId);
+        boolean isComplete;
+        try {
+            isComplete = deltaFile.complete(msg.fileHash);
+        } finally {
+            deltaDestinations.remove(destination);
+        }
+        //the client sends the whole file if the delta is not applied
+        context.writeAndFlush(new DeltaResult(msg.transferId, isComplete));
+        if (isComplete) {
+            logger.info("File successfully rebuilt from a delta: " + destination);
+            fileReceived(context, msg.destination, msg.relativePath, msg.fileSize);
+        } else {
+            logger.error("Rebuilt file does not match, the stored copy is kept: " + destination);
+        }
+    }
+
+    private void closeDeltaFile(String transferId) throws IOException {
+        DeltaFile deltaFile = deltaFiles.remove(transferId);
+        if (deltaFile == null) return;
+        try {
+            deltaFile.close();
+        } finally {
+            deltaDestinations.remove(deltaFile.getDestination());
+        }
+    }
+
+    /**
+     * Sends a file as a delta against the copy the client has. If the file is not a regular file,
+     * it is sent as usual
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a DeltaRequest that holds the signatures of the client copy
+     * @throws IOException in case of i/o operations
+     */
+    private void processDeltaRequest(ChannelHandlerContext context, DeltaRequest request) throws IOException {
+        Path path = Paths.get(request.stringPath);
+        if (!Files.isRegularFile(path)) {
+            processFileRequest(context, new FileRequest(Collections.singletonList(request.stringPath), request.destination));
+            return;
+        }
+        long fileSize = Files.size(path);
+        DeltaEncoder encoder = new DeltaEncoder(path, request.signatures);
+        context.writeAndFlush(new DeltaChunkedInput(encoder, request.transferId, request.destination,
+                path.getFileName().toString(), request.signatures.getBlockSize(), fileSize, chunkSizer));
+    }
+
+    /**
+     * Sends the Merkle hashes of the requested directories and of their children, so the client descends
+     * only into the subtrees that differ from its own. The {@link MerkleTree} keeps the hashes of unchanged directories.
+     * The answer is sent in responses of a limited size, see {@link MerkleChunkedInput}
+     *
+     * @param context a ChannelHandlerContext that sends data to client
+     * @param request a MerkleRequest that holds a level of the compared directories
+     */
+    private void processMerkleRequest(ChannelHandlerContext context, MerkleRequest request) {
+        List<CompletableFuture<MerkleResponse.Directory>> answers = new ArrayList<>(request.paths.size());
+        for (String stringPath : request.paths) {
+            Path path = Paths.get(stringPath);
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                answers.add(CompletableFuture.completedFuture(
+                        new MerkleResponse.Directory(stringPath, null, Collections.emptyList())));
+                continue;
+            }
+            answers.add(merkleTree.childrenLater(path).handle((children, e) -> {
+                if (e != null) {
+                    e.printStackTrace();
+                    return new MerkleResponse.Directory(stringPath, null, Collections.emptyList());
+                }
+                return new MerkleResponse.Directory(stringPath, MerkleEntry.directoryHash(children), children);
+            }));
+        }
+        //the hashes are calculated by the MerkleTree threads, the answer is sent by the last of them
+        CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            List<MerkleResponse.Directory> directories = answers.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+            context.writeAndFlush(new MerkleChunkedInput(request.id, directories));
+        });
+    }
+
+    /**
+     * Receives a batch of small files from the client.
+     *
+     * @param context a ChannelHandlerContext that maintains current pipeline
+     * @param batch   received batch
+     * @throws IOException in case of i/o operations
+     */
+    private void processFileBatch(ChannelHandlerContext context, FileBatchMessage batch) throws IOException {
+        FileMessage.receive(batch, path -> {
+            listingCache.invalidate(path);
+            refreshDebouncer.schedule(batch.getDestination());
+            notifyOtherSessions(context, path);
+        });
     }
 
     private void deleteFile(ChannelHandlerContext context, DeleteFileRequest request) {
@@ -112,6 +592,9 @@ public final class MainHandler extends ChannelInboundHandlerAdapter {
         String parent = items.get(0).getFile().getParent();
         for (FileItem item : items) {
             item.remove();
+            chunkStore.remove(item.getPath());
+            listingCache.invalidate(item.getPath());
+            notifyOtherSessions(context, item.getPath());
         }
         refreshFileList(context, parent);
     }
@@ -124,10 +607,63 @@ public final class MainHandler extends ChannelInboundHandlerAdapter {
      */
     private void renameFile(ChannelHandlerContext context, RenameFileRequest request) {
         FileItem fileItem = request.item;
+        Path oldPath = fileItem.getPath();
         fileItem.rename(request.newName);
+        chunkStore.move(oldPath, fileItem.getPath());
+        listingCache.invalidate(oldPath);
+        listingCache.invalidate(fileItem.getPath());
+        notifyOtherSessions(context, oldPath);
+        notifyOtherSessions(context, fileItem.getPath());
         refreshFileList(context, fileItem.getFile().getParent());
     }
 
+    /**
+     * Tells the other sessions of the user about a changed file
+     *
+     * @param context a ChannelHandlerContext of the session that made the change
+     * @param path    a changed file
+     */
+    private void notifyOtherSessions(ChannelHandlerContext context, Path path) {
+        sessionRegistry.pushToOthers(login, context.channel(), path);
+    }
+
+    /**
+     * Schedules a push of a file changed by another session of the user. May be called from any thread
+     *
+     * @param path a changed file
+     */
+    void changedByOtherSession(Path path) {
+        executor.execute(() -> {
+            Path parent = path.getParent();
+            if (parent == null) changePushes.schedule(path.toString());
+            else changePushes.schedule(parent.toString(), path);
+        });
+    }
+
+    /**
+     * Pushes the current state of the changed files of a directory, so a file changed several times
+     * is sent once
+     *
+     * @param context   a ChannelHandlerContext that sends data to client
+     * @param directory a changed directory
+     * @param changes   changed files of the directory, or null if the directory itself is pushed
+     */
+    private void pushChanges(ChannelHandlerContext context, String directory, Set<Path> changes) {
+        if (changes == null) changes = Collections.singleton(Paths.get(directory));
+        for (Path path : changes) {
+            FileChangeEvent event;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                event = new FileChangeEvent(path.toString(), FileChangeEvent.Kind.CHANGED, attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), attributes.isDirectory());
+            } catch (IOException e) {
+                event = FileChangeEvent.deleted(path.toString());
+            }
+            context.write(event);
+        }
+        context.flush();
+    }
+
     private void performLogOut(ChannelHandlerContext context, LogoutMessage message) {
         context.writeAndFlush(message);
     }
@@ -0,0 +1,96 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.MerkleEntry;
+import com.chentsov.common.messages.responses.MerkleResponse;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Streams the answer to a MerkleRequest through {@link ChunkedWriteHandler} as responses of a limited size.
+ * A level of a huge tree does not fit a single frame, so the children of a directory may be split
+ * between responses, the client joins them back by the request id.
+ */
+final class MerkleChunkedInput implements ChunkedInput<MerkleResponse> {
+
+    //far below the frame limit of the client, so the responses are never rejected
+    private static final int MAX_RESPONSE_BYTES = Integer.getInteger("geekcloud.merkleResponseBytes", 1024 * 1024); // 1 mb
+
+    private final String id;
+    private final List<MerkleResponse.Directory> directories;
+    private int directoryIndex;
+    private int childIndex;
+    //at least one response is sent, so an empty request is still answered
+    private boolean isOver;
+
+    /**
+     * @param id          an id of the request
+     * @param directories the answer in the order of the request
+     */
+    MerkleChunkedInput(String id, List<MerkleResponse.Directory> directories) {
+        this.id = id;
+        this.directories = directories;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return isOver;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Deprecated
+    @Override
+    public MerkleResponse readChunk(ChannelHandlerContext context) {
+        return readChunk(context.alloc());
+    }
+
+    @Override
+    public MerkleResponse readChunk(ByteBufAllocator allocator) {
+        if (isOver) return null;
+        List<MerkleResponse.Directory> page = new ArrayList<>();
+        int bytes = 0;
+        while (directoryIndex < directories.size()) {
+            MerkleResponse.Directory directory = directories.get(directoryIndex);
+            bytes += directory.encodedLength();
+            //every response takes a directory or a child at least, so the stream always moves on
+            if (bytes > MAX_RESPONSE_BYTES && !page.isEmpty()) break;
+            int from = childIndex;
+            while (childIndex < directory.children.size()) {
+                MerkleEntry child = directory.children.get(childIndex);
+                bytes += child.encodedLength();
+                if (bytes > MAX_RESPONSE_BYTES && (childIndex > from || !page.isEmpty())) break;
+                childIndex++;
+            }
+            boolean isContinued = childIndex < directory.children.size();
+            //none of the children fit, the directory starts the next response
+            if (isContinued && childIndex == from && !page.isEmpty()) break;
+            page.add(new MerkleResponse.Directory(directory.path, directory.hash,
+                    directory.children.subList(from, childIndex), isContinued));
+            if (isContinued) break;
+            directoryIndex++;
+            childIndex = 0;
+        }
+        isOver = directoryIndex >= directories.size();
+        return new MerkleResponse(id, page, isOver);
+    }
+
+    @Override
+    public long length() {
+        return directories.size();
+    }
+
+    @Override
+    public long progress() {
+        return directoryIndex;
+    }
+
+}
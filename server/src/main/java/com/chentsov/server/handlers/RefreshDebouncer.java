@@ -0,0 +1,129 @@
+package com.chentsov.server.handlers;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Coalesces listing refreshes of a single connection per directory. A refresh is made when no more
+ * changes come for the quiet delay, but no later than the max delay after the first change,
+ * so a bulk upload of many files produces a few listings instead of a listing per file.
+ * The changed files of a directory are collected along, too many of them collapse into a change
+ * of the whole directory. Nothing is sent while the channel is not writable, the changes keep
+ * being collected until the client reads what it has already got.
+ * <p>
+ * All the methods must be called from the executor of the handler, so no synchronization is needed.
+ */
+final class RefreshDebouncer {
+
+    private static final long DELAY_MS = Long.getLong("geekcloud.listingRefreshDelayMs", 200);
+    private static final long MAX_DELAY_MS = Long.getLong("geekcloud.listingRefreshMaxDelayMs", 1000);
+    //changed files of a directory kept one by one, more of them make a change of the whole directory
+    private static final int MAX_CHANGES = Integer.getInteger("geekcloud.maxCoalescedChanges", 64);
+
+    private final EventExecutor executor;
+    private final Channel channel;
+    private final BiConsumer<String, Set<Path>> refresh;
+    private final Map<Path, Pending> pending = new HashMap<>();
+
+    /**
+     * @param executor an executor of the handler
+     * @param channel  a channel the refreshes are sent to
+     * @param refresh  an operation that sends the refresh of a directory. It takes the directory and its changed
+     *                 files, or null if the whole directory has changed
+     */
+    RefreshDebouncer(EventExecutor executor, Channel channel, BiConsumer<String, Set<Path>> refresh) {
+        this.executor = executor;
+        this.channel = channel;
+        this.refresh = refresh;
+    }
+
+    /**
+     * Requests a refresh of the directory
+     *
+     * @param stringPath a changed directory
+     */
+    void schedule(String stringPath) {
+        schedule(stringPath, null);
+    }
+
+    /**
+     * Requests a refresh of the directory
+     *
+     * @param stringPath a directory
+     * @param changed    a changed file of the directory, or null if the whole directory has changed
+     */
+    void schedule(String stringPath, Path changed) {
+        Path key = toKey(stringPath);
+        long now = System.nanoTime();
+        Pending current = pending.get(key);
+        if (current == null) {
+            current = new Pending(stringPath, now);
+            pending.put(key, current);
+            executor.schedule(() -> fire(key), DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        current.lastChange = now;
+        current.add(changed);
+    }
+
+    /**
+     * Drops a pending refresh, e.g. when the listing is sent anyway
+     *
+     * @param stringPath a directory
+     */
+    void cancel(String stringPath) {
+        pending.remove(toKey(stringPath));
+    }
+
+    void cancelAll() {
+        pending.clear();
+    }
+
+    private void fire(Path key) {
+        Pending current = pending.get(key);
+        if (current == null) return;
+        long now = System.nanoTime();
+        long due = Math.min(current.lastChange + TimeUnit.MILLISECONDS.toNanos(DELAY_MS), current.deadline);
+        if (now < due) {
+            executor.schedule(() -> fire(key), due - now, TimeUnit.NANOSECONDS);
+            return;
+        }
+        if (!channel.isWritable()) {
+            if (channel.isActive()) executor.schedule(() -> fire(key), DELAY_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        pending.remove(key);
+        refresh.accept(current.stringPath, current.changes);
+    }
+
+    private static Path toKey(String stringPath) {
+        return Paths.get(stringPath).toAbsolutePath().normalize();
+    }
+
+    private static final class Pending {
+        private final String stringPath;
+        private final long deadline;
+        private long lastChange;
+        private Set<Path> changes = new LinkedHashSet<>();
+
+        private Pending(String stringPath, long firstChange) {
+            this.stringPath = stringPath;
+            this.deadline = firstChange + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS);
+            this.lastChange = firstChange;
+        }
+
+        private void add(Path changed) {
+            if (changes == null) return;
+            if (changed == null || (changes.size() >= MAX_CHANGES && !changes.contains(changed))) changes = null;
+            else changes.add(changed);
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.chentsov.server.handlers;
+
+import io.netty.channel.Channel;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Keeps authorized channels of every user, so a change made in one session is pushed
+ * to the other sessions of the same user. Every session coalesces the pushed changes, see {@link RefreshDebouncer}.
+ */
+final class SessionRegistry {
+
+    private static SessionRegistry sessionRegistry;
+
+    private final Map<String, Set<Channel>> sessions = new ConcurrentHashMap<>();
+
+    private SessionRegistry() {
+    }
+
+    static synchronized SessionRegistry getInstance() {
+        if (sessionRegistry == null) sessionRegistry = new SessionRegistry();
+        return sessionRegistry;
+    }
+
+    void register(String login, Channel channel) {
+        sessions.computeIfAbsent(login, k -> ConcurrentHashMap.newKeySet()).add(channel);
+    }
+
+    void unregister(String login, Channel channel) {
+        sessions.computeIfPresent(login, (k, channels) -> {
+            channels.remove(channel);
+            return channels.isEmpty() ? null : channels;
+        });
+    }
+
+    /**
+     * Passes a changed file to all the sessions of the user except the origin one
+     *
+     * @param login  a login of the user
+     * @param origin a channel that made the change
+     * @param path   a changed file
+     */
+    void pushToOthers(String login, Channel origin, Path path) {
+        Set<Channel> channels = sessions.get(login);
+        if (channels == null) return;
+        for (Channel channel : channels) {
+            if (channel == origin || !channel.isActive()) continue;
+            MainHandler handler = channel.pipeline().get(MainHandler.class);
+            if (handler != null) handler.changedByOtherSession(path);
+        }
+    }
+
+}
@@ -0,0 +1,406 @@
+package com.chentsov.server.storage;
+
+import com.chentsov.common.ChunkManifest;
+import com.chentsov.common.ContentChunker;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A content-addressed store of the chunks of stored files, see {@link ContentChunker}. The files stay plain files,
+ * so listings, downloads and renames work on them as they are, and the store maps the hash of every distinct
+ * chunk to the places in the files it is stored at. Every occurrence of a chunk in a file manifest is a reference
+ * to it, and the chunk is dropped with the last manifest that references it.
+ * <p>
+ * Chunks are read back from the files and checked against their hash, so a file changed behind the store
+ * is never used; its manifest is dropped instead.
+ * <p>
+ * The store lives in memory, so it is rebuilt in the background when the server starts, see {@link #indexTree(Path)}.
+ * <p>
+ * Only the content hashes of small files are kept, their chunks are not referenced. The number of the known files
+ * is bounded, the least recently used one is forgotten along with its chunks.
+ */
+public class ChunkStore {
+
+    private static final Logger logger = LogManager.getLogger(ChunkStore.class.getSimpleName());
+    //smaller files are uploaded as they are
+    private static final long MIN_FILE_SIZE = Long.getLong("geekcloud.dedupMinSize", 16 * 1024 * 1024); // 16 mb
+    private static final int MAX_FILES = Integer.getInteger("geekcloud.chunkStoreFiles", 100_000);
+
+    private static ChunkStore chunkStore;
+
+    private final ContentChunker chunker = new ContentChunker();
+    private final Map<Path, Manifest> manifests = new LinkedHashMap<Path, Manifest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Manifest> eldest) {
+            if (size() <= MAX_FILES) return false;
+            paths.remove(eldest.getKey().toString());
+            unreference(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    };
+    //the keys of the manifests sorted by path, so the files of a folder follow each other
+    private final NavigableMap<String, Path> paths = new TreeMap<>();
+    private final Map<String, List<Location>> chunks = new HashMap<>();
+    //received files are indexed one by one in the background
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chunk-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long indexedBytes;
+    private long indexNanos;
+    private long offeredBytes;
+    private long reusedBytes;
+
+    /**
+     * A manifest of a file together with the attributes it was made for. The manifest of a small file is not kept
+     */
+    private static final class Manifest {
+        private final ChunkManifest manifest;
+        private final String contentHash;
+        private final long size;
+        private final long lastModified;
+
+        private Manifest(ChunkManifest manifest, boolean isKept, BasicFileAttributes attributes) {
+            this.manifest = isKept ? manifest : null;
+            this.contentHash = manifest.getContentHash();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean isUpToDate(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * A place a chunk is stored at
+     */
+    private static final class Location {
+        private final Path file;
+        private final long offset;
+        private final int length;
+
+        private Location(Path file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private ChunkStore() {
+    }
+
+    public static synchronized ChunkStore getInstance() {
+        if (chunkStore == null) chunkStore = new ChunkStore();
+        return chunkStore;
+    }
+
+    /**
+     * @param fileSize size of a file
+     * @return true if files of this size are deduplicated
+     */
+    public boolean accepts(long fileSize) {
+        return fileSize >= MIN_FILE_SIZE;
+    }
+
+    /**
+     * @return the chunker both sides split the files with
+     */
+    public ContentChunker getChunker() {
+        return chunker;
+    }
+
+    /**
+     * Splits the file into chunks and references them, unless the file is already indexed and unchanged
+     *
+     * @param file a stored file
+     * @throws IOException in case of I/O errors
+     */
+    public void index(Path file) throws IOException {
+        manifest(file);
+    }
+
+    /**
+     * Calculates a content hash of the file, see {@link ChunkManifest#getContentHash()}. The hash is kept
+     * until the file changes
+     *
+     * @param file a stored file
+     * @return a hex string of the content hash
+     * @throws IOException in case of I/O errors
+     */
+    public String contentHash(Path file) throws IOException {
+        return manifest(file).contentHash;
+    }
+
+    private Manifest manifest(Path file) throws IOException {
+        Path key = toKey(file);
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        synchronized (this) {
+            Manifest indexed = manifests.get(key);
+            if (indexed != null && indexed.isUpToDate(attributes)) return indexed;
+        }
+
+        long start = System.nanoTime();
+        Manifest indexed = new Manifest(chunker.chunk(key), accepts(attributes.size()), attributes);
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            forget(key);
+            reference(key, indexed);
+            indexedBytes += indexed.size;
+            indexNanos += elapsed;
+        }
+        if (accepts(indexed.size)) logger.info("Indexed " + key + ": " + indexed.manifest.size() + " chunks at "
+                + megabytesPerSecond(indexed.size, elapsed) + " mb/s");
+        return indexed;
+    }
+
+    /**
+     * Indexes the file in the background
+     *
+     * @param file a stored file
+     */
+    public void indexLater(Path file) {
+        indexer.execute(() -> {
+            try {
+                index(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Indexes all the large files under the folder in the background, e.g. the whole storage after a restart.
+     * Uploads made meanwhile reuse the files indexed so far
+     *
+     * @param root a folder of the storage
+     */
+    public void indexTree(Path root) {
+        indexer.execute(() -> {
+            long start = System.currentTimeMillis();
+            int[] indexed = new int[1];
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (!attributes.isRegularFile() || !accepts(attributes.size())) return FileVisitResult.CONTINUE;
+                        try {
+                            index(file);
+                            indexed[0]++;
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            logger.info("Indexed " + indexed[0] + " files under " + root + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        });
+    }
+
+    /**
+     * Drops the manifests of the path and everything under it, e.g. when it is deleted or renamed
+     *
+     * @param path a stored file or folder
+     */
+    public synchronized void remove(Path path) {
+        subtree(toKey(path)).forEach(this::forget);
+    }
+
+    /**
+     * Moves the manifests of the path and everything under it to the new path, so a renamed file
+     * is not read again
+     *
+     * @param from an old path of a stored file or folder
+     * @param to   a new path
+     */
+    public synchronized void move(Path from, Path to) {
+        Path fromKey = toKey(from);
+        Path toKey = toKey(to);
+        Map<Path, Manifest> moved = new HashMap<>();
+        for (Path file : subtree(fromKey)) {
+            moved.put(toKey.resolve(fromKey.relativize(file)), manifests.get(file));
+        }
+        remove(from);
+        moved.forEach(this::reference);
+    }
+
+    /**
+     * @param key a key of a file or folder
+     * @return the keys of the manifests of the file or of the files under the folder
+     */
+    private List<Path> subtree(Path key) {
+        //the paths under the folder lie between the two prefixes
+        String prefix = key.toString().endsWith(File.separator) ? key.toString() : key + File.separator;
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (File.separatorChar + 1);
+        List<Path> files = new ArrayList<>(paths.subMap(prefix, end).values());
+        Path file = paths.get(key.toString());
+        if (file != null) files.add(file);
+        return files;
+    }
+
+    private void reference(Path file, Manifest manifest) {
+        manifests.put(file, manifest);
+        paths.put(file.toString(), file);
+        if (manifest.manifest == null) return;
+        for (int i = 0; i < manifest.manifest.size(); i++) {
+            chunks.computeIfAbsent(manifest.manifest.getHash(i), hash -> new ArrayList<>(1))
+                    .add(new Location(file, manifest.manifest.getOffset(i), manifest.manifest.getLength(i)));
+        }
+    }
+
+    private void forget(Path file) {
+        Manifest removed = manifests.remove(file);
+        paths.remove(file.toString());
+        if (removed != null) unreference(file, removed);
+    }
+
+    private void unreference(Path file, Manifest removed) {
+        if (removed.manifest == null) return;
+        for (int i = 0; i < removed.manifest.size(); i++) {
+            String hash = removed.manifest.getHash(i);
+            List<Location> locations = chunks.get(hash);
+            if (locations == null) continue;
+            locations.removeIf(location -> location.file.equals(file));
+            if (locations.isEmpty()) chunks.remove(hash);
+        }
+    }
+
+    /**
+     * Finds the chunks of a manifest the store does not hold, without reading any of them. A chunk counts as held
+     * if a file under the given folder holds it and the file is unchanged since it was indexed, see {@link #read(String, Path)}
+     *
+     * @param manifest a manifest of an offered file
+     * @param scope    a folder of the user
+     * @return indices of the missing chunks in ascending order
+     */
+    public int[] missing(ChunkManifest manifest, Path scope) {
+        Path scopeKey = toKey(scope);
+        //every file is checked once, however many chunks it holds
+        Map<Path, Boolean> unchanged = new HashMap<>();
+        int[] missing = new int[manifest.size()];
+        int count = 0;
+        for (int i = 0; i < manifest.size(); i++) {
+            List<Path> candidates = new ArrayList<>();
+            synchronized (this) {
+                for (Location location : chunks.getOrDefault(manifest.getHash(i), Collections.emptyList())) {
+                    if (location.file.startsWith(scopeKey) && location.length == manifest.getLength(i))
+                        candidates.add(location.file);
+                }
+            }
+            boolean isHeld = false;
+            for (Path file : candidates) {
+                if (isHeld = unchanged.computeIfAbsent(file, this::isUpToDate)) break;
+            }
+            if (!isHeld) missing[count++] = i;
+        }
+        return Arrays.copyOf(missing, count);
+    }
+
+    private boolean isUpToDate(Path file) {
+        Manifest indexed;
+        synchronized (this) {
+            indexed = manifests.get(file);
+        }
+        try {
+            return indexed != null && indexed.isUpToDate(Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a stored chunk. Only the files under the given folder are looked at, so a user never learns
+     * what other users store. A file whose data does not match its manifest anymore is forgotten
+     * and the next place of the chunk is tried
+     *
+     * @param hash  a hash of the chunk
+     * @param scope a folder of the user
+     * @return the chunk or null if no file under the folder holds it
+     */
+    public byte[] read(String hash, Path scope) {
+        Path scopeKey = toKey(scope);
+        while (true) {
+            Location location = null;
+            synchronized (this) {
+                List<Location> locations = chunks.get(hash);
+                if (locations == null) return null;
+                for (Location candidate : locations) {
+                    if (candidate.file.startsWith(scopeKey)) {
+                        location = candidate;
+                        break;
+                    }
+                }
+                if (location == null) return null;
+            }
+            byte[] data = readAt(location);
+            if (data != null && ChunkManifest.hash(data, 0, data.length).equals(hash)) return data;
+            logger.info("Stale manifest dropped: " + location.file);
+            synchronized (this) {
+                forget(location.file);
+            }
+        }
+    }
+
+    private static byte[] readAt(Location location) {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        try (FileChannel channel = FileChannel.open(location.file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Takes an offered file into account and logs the statistics of the store
+     *
+     * @param offered size of the offered file
+     * @param reused  bytes of the file found in the store
+     */
+    public void recordOffer(long offered, long reused) {
+        String stats;
+        synchronized (this) {
+            offeredBytes += offered;
+            reusedBytes += reused;
+            stats = "dedup ratio " + String.format("%.2f", offered == 0 ? 0 : (double) reused / offered)
+                    + " (total " + String.format("%.2f", (double) reusedBytes / Math.max(1, offeredBytes))
+                    + "), " + chunks.size() + " chunks in " + manifests.size() + " files, ingest "
+                    + megabytesPerSecond(indexedBytes, indexNanos) + " mb/s";
+        }
+        logger.info(stats);
+    }
+
+    private static long megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1_000_000_000L / nanos / (1024 * 1024);
+    }
+
+    private static Path toKey(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.chentsov.server.storage;
+
+import com.chentsov.common.FileItem;
+import com.chentsov.common.messages.requests.FileListRequest.SortKey;
+
+import java.util.*;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * An immutable listing of a cloud directory at some version. Every listing remembers the paths changed
+ * by the last versions of the directory, so a client that has already seen one of them receives only
+ * the changed items instead of the whole directory.
+ */
+public final class DirectoryListing {
+
+    private static final int MAX_HISTORY = Integer.getInteger("geekcloud.listingHistorySize", 64);
+
+    private final long version;
+    private final List<FileItem> items;
+    //the oldest version that changes can be calculated from
+    private final long baseVersion;
+    //changes made after the base version, the oldest first
+    private final List<Change> history;
+    private final Map<SortKey, List<FileItem>> sorted = new EnumMap<>(SortKey.class);
+    private Map<String, FileItem> byPath;
+    private volatile boolean stale;
+    private final long loadedAt = System.nanoTime();
+
+    DirectoryListing(long version, List<FileItem> items) {
+        this(version, items, version, Collections.emptyList());
+    }
+
+    private DirectoryListing(long version, List<FileItem> items, long baseVersion, List<Change> history) {
+        this.version = version;
+        this.items = Collections.unmodifiableList(items);
+        this.baseVersion = baseVersion;
+        this.history = history;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    boolean isStale() {
+        return stale;
+    }
+
+    void markStale() {
+        stale = true;
+    }
+
+    /**
+     * @param nanos an age in nanoseconds
+     * @return true if the listing was read from disk longer ago than the age
+     */
+    boolean isOlderThan(long nanos) {
+        return System.nanoTime() - loadedAt > nanos;
+    }
+
+    /**
+     * Returns the items in the given order. Every order is sorted once, so pages of a large directory
+     * are cut from the same list
+     *
+     * @param sortKey an order of the items
+     * @return an unmodifiable list of the directory items
+     */
+    public synchronized List<FileItem> sorted(SortKey sortKey) {
+        return sorted.computeIfAbsent(sortKey, k -> {
+            List<FileItem> view = new ArrayList<>(items);
+            view.sort(k.comparator());
+            return Collections.unmodifiableList(view);
+        });
+    }
+
+    /**
+     * @param stringPath a path of the item
+     * @return the item of this listing or null if there is no such item
+     */
+    public synchronized FileItem find(String stringPath) {
+        if (byPath == null) {
+            byPath = new HashMap<>(items.size() * 2);
+            for (FileItem item : items) {
+                byPath.put(item.getStringPath(), item);
+            }
+        }
+        return byPath.get(stringPath);
+    }
+
+    /**
+     * Collects paths of the items that were added, removed or changed after the given version
+     *
+     * @param since a version of the directory that the client has
+     * @return the changed paths or null if the version is unknown or too old
+     */
+    public Set<String> changesSince(long since) {
+        if (since == version) return Collections.emptySet();
+        boolean isKnown = since == baseVersion;
+        Set<String> paths = new HashSet<>();
+        for (Change change : history) {
+            if (change.version > since) paths.addAll(change.paths);
+            else if (change.version == since) isKnown = true;
+        }
+        return isKnown ? paths : null;
+    }
+
+    /**
+     * Creates a listing that follows this one. A new version is taken only if some items differ
+     *
+     * @param newVersion a version for the new listing
+     * @param newItems   the current items of the directory
+     * @return the next listing of the directory
+     */
+    DirectoryListing next(long newVersion, List<FileItem> newItems) {
+        Set<String> changed = new HashSet<>();
+        Map<String, FileItem> previous = new HashMap<>(items.size() * 2);
+        for (FileItem item : items) {
+            previous.put(item.getStringPath(), item);
+        }
+        for (FileItem item : newItems) {
+            FileItem old = previous.remove(item.getStringPath());
+            if (old == null || !isSame(old, item)) changed.add(item.getStringPath());
+        }
+        changed.addAll(previous.keySet());
+        if (changed.isEmpty()) return new DirectoryListing(version, newItems, baseVersion, history);
+
+        List<Change> newHistory = new ArrayList<>(history);
+        newHistory.add(new Change(newVersion, changed));
+        long newBaseVersion = baseVersion;
+        while (newHistory.size() > MAX_HISTORY) {
+            newBaseVersion = newHistory.remove(0).version;
+        }
+        return new DirectoryListing(newVersion, newItems, newBaseVersion, Collections.unmodifiableList(newHistory));
+    }
+
+    private static boolean isSame(FileItem a, FileItem b) {
+        return a.isDir() == b.isDir() && a.getSize() == b.getSize() && Objects.equals(a.getDate(), b.getDate());
+    }
+
+    /**
+     * Paths changed by a single version of the directory
+     */
+    private static final class Change {
+        private final long version;
+        private final Set<String> paths;
+
+        private Change(long version, Set<String> paths) {
+            this.version = version;
+            this.paths = paths;
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.chentsov.server.storage;
+
+import com.chentsov.common.FileItem;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A cache of cloud directory listings keyed by directory. Every directory belongs to a single user,
+ * so the entries are per user. A listing becomes stale when the server changes the directory itself
+ * ({@link #invalidate(Path)}) or when the WatchService of the storage root reports a change,
+ * so repeated listings are served from memory without any syscalls. If the storage cannot be watched,
+ * e.g. the tree exceeds the inotify watch limit, listings are also read again once they are older than a TTL.
+ * <p>
+ * A stale listing is kept until the directory is read again, then the new listing is compared with it
+ * and gets the next version, see {@link DirectoryListing}.
+ */
+public class ListingCache {
+
+    private static final Logger logger = LogManager.getLogger(ListingCache.class.getSimpleName());
+    private static final int MAX_DIRECTORIES = Integer.getInteger("geekcloud.listingCacheSize", 4096);
+    //catches the changes made bypassing the server while the storage is not watched
+    private static final long UNWATCHED_TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("geekcloud.listingTtlMs", 5000));
+
+    private static ListingCache listingCache;
+
+    private final Map<Path, DirectoryListing> listings = new LinkedHashMap<Path, DirectoryListing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, DirectoryListing> eldest) {
+            return size() > MAX_DIRECTORIES;
+        }
+    };
+    //incremented on every invalidation, so a listing read concurrently with a change is not cached
+    private long generation;
+    //versions are shared by all directories and start from the current time, so they keep growing after restarts
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
+
+    //other caches of the storage that become stale along with the listings
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    private volatile boolean isWatching;
+
+    private ListingCache() {
+    }
+
+    public static synchronized ListingCache getInstance() {
+        if (listingCache == null) listingCache = new ListingCache();
+        return listingCache;
+    }
+
+    /**
+     * Returns the current listing of the directory. The listing is immutable and may be shared between connections
+     *
+     * @param stringPath a directory to be listed
+     * @param isRoot     true if the directory is the root of user storage
+     * @return a listing of the directory
+     */
+    public DirectoryListing get(String stringPath, boolean isRoot) {
+        Path key = toKey(Paths.get(stringPath));
+        long loadGeneration;
+        DirectoryListing cached;
+        synchronized (this) {
+            cached = listings.get(key);
+            loadGeneration = generation;
+        }
+        if (cached != null && !cached.isStale() && (isWatching || !cached.isOlderThan(UNWATCHED_TTL_NANOS))) return cached;
+
+        List<FileItem> files = new ArrayList<>();
+        FileItem.refreshFileList(files, stringPath, isRoot);
+        DirectoryListing listing = cached == null
+                ? new DirectoryListing(versions.incrementAndGet(), files)
+                : cached.next(versions.incrementAndGet(), files);
+        synchronized (this) {
+            if (generation == loadGeneration) listings.put(key, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * Adds a listener that is notified of every invalidation
+     *
+     * @param listener a listener that takes a changed path, or null when the whole storage may have changed
+     */
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Marks listings of the path and all its ancestors stale, since their sizes and modification times change as well
+     *
+     * @param path a changed file or directory
+     */
+    public synchronized void invalidate(Path path) {
+        generation++;
+        for (Path current = toKey(path); current != null; current = current.getParent()) {
+            DirectoryListing listing = listings.get(current);
+            if (listing != null) listing.markStale();
+        }
+        listeners.forEach(listener -> listener.accept(path));
+    }
+
+    private synchronized void invalidateAll() {
+        generation++;
+        listings.clear();
+        listeners.forEach(listener -> listener.accept(null));
+    }
+
+    /**
+     * Starts watching the storage root. Changes made bypassing the server invalidate the cache as well.
+     * If the root cannot be watched, the cache falls back to the TTL and the server keeps running
+     *
+     * @param root a root of the cloud storage
+     * @return true if the root is watched
+     */
+    public synchronized boolean watch(Path root) {
+        if (watcher != null) return true;
+        try {
+            Files.createDirectories(root);
+            watcher = FileSystems.getDefault().newWatchService();
+            registerAll(toKey(root));
+        } catch (IOException e) {
+            logger.warn("Cannot watch " + root + ", listings are refreshed every "
+                    + TimeUnit.NANOSECONDS.toMillis(UNWATCHED_TTL_NANOS) + " ms: " + e.getMessage());
+            close();
+            keys.clear();
+            return false;
+        }
+        isWatching = true;
+
+        Thread thread = new Thread(this::processEvents, "listing-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops watching the storage root
+     */
+    public synchronized void close() {
+        if (watcher == null) return;
+        isWatching = false;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        watcher = null;
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                keys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents() {
+        WatchService watchService = watcher;
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = keys.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        invalidateAll();
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) event.context());
+                    invalidate(child);
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            registerAll(child);
+                        } catch (IOException e) {
+                            //the new subtree is not watched, so the whole cache falls back to the TTL
+                            logger.warn("Cannot watch " + child + ": " + e.getMessage());
+                            isWatching = false;
+                        }
+                    }
+                }
+            }
+            if (!key.reset()) keys.remove(key);
+        }
+    }
+
+    private static Path toKey(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+}
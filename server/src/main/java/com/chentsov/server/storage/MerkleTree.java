@@ -0,0 +1,152 @@
+package com.chentsov.server.storage;
+
+import com.chentsov.common.MerkleEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Merkle hashes of the cloud directories, see {@link MerkleEntry}. The hash of every directory is kept
+ * until something under it changes: a change invalidates the directory and its ancestors only, see
+ * {@link ListingCache#invalidate(Path)}, so the next comparison hashes them again from the kept hashes
+ * of the unchanged subtrees. Content hashes of the files are kept by the {@link ChunkStore}.
+ * <p>
+ * The first comparison of a tree reads every file under it, so the hashes are calculated by a few threads
+ * of their own rather than by the executors of the connections.
+ */
+public class MerkleTree {
+
+    private static final int HASHING_THREADS = Integer.getInteger("geekcloud.merkleThreads", 2);
+
+    private static MerkleTree merkleTree;
+
+    private final ChunkStore chunkStore = ChunkStore.getInstance();
+    //sorted by path, so the nodes of a subtree follow each other
+    private final NavigableMap<String, Node> nodes = new TreeMap<>();
+    private final ExecutorService hashers = Executors.newFixedThreadPool(HASHING_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "merkle-hasher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //incremented on every invalidation, so a node hashed concurrently with a change is not kept
+    private long generation;
+
+    /**
+     * A hash of a directory together with the total size of its files
+     */
+    private static final class Node {
+        private final String hash;
+        private final long size;
+
+        private Node(List<MerkleEntry> children) {
+            this.hash = MerkleEntry.directoryHash(children);
+            this.size = MerkleEntry.directorySize(children);
+        }
+    }
+
+    private MerkleTree() {
+    }
+
+    public static synchronized MerkleTree getInstance() {
+        if (merkleTree == null) {
+            merkleTree = new MerkleTree();
+            ListingCache.getInstance().addListener(merkleTree::invalidate);
+        }
+        return merkleTree;
+    }
+
+    /**
+     * Lists the children of the directory with their hashes in the background, see {@link #children(Path)}
+     *
+     * @param directory a cloud directory
+     * @return children of the directory sorted by name, or an UncheckedIOException in case of I/O errors
+     */
+    public CompletableFuture<List<MerkleEntry>> childrenLater(Path directory) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return children(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, hashers);
+    }
+
+    /**
+     * Lists the children of the directory with their hashes. Hashes of the subdirectories are taken from
+     * the kept ones where possible
+     *
+     * @param directory a cloud directory
+     * @return children of the directory sorted by name
+     * @throws IOException in case of I/O errors
+     */
+    public List<MerkleEntry> children(Path directory) throws IOException {
+        List<MerkleEntry> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(toKey(directory))) {
+            for (Path child : stream) {
+                BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                String name = child.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    Node node = node(child);
+                    children.add(new MerkleEntry(name, true, node.size, node.hash));
+                } else if (attributes.isRegularFile()) {
+                    children.add(new MerkleEntry(name, false, attributes.size(), chunkStore.contentHash(child)));
+                }
+            }
+        }
+        children.sort(MerkleEntry.BY_NAME);
+        return children;
+    }
+
+    private Node node(Path key) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            Node node = nodes.get(key.toString());
+            if (node != null) return node;
+            loadGeneration = generation;
+        }
+        Node node = new Node(children(key));
+        synchronized (this) {
+            if (generation == loadGeneration) nodes.put(key.toString(), node);
+        }
+        return node;
+    }
+
+    /**
+     * Drops the hashes of the path and all its ancestors
+     *
+     * @param path a changed file or directory, null stands for the whole storage
+     */
+    public synchronized void invalidate(Path path) {
+        generation++;
+        if (path == null) {
+            nodes.clear();
+            return;
+        }
+        Path key = toKey(path);
+        //a removed or renamed directory takes its subtree along, the paths under it lie between the two prefixes
+        String prefix = key.toString().endsWith(File.separator) ? key.toString() : key + File.separator;
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (File.separatorChar + 1);
+        nodes.subMap(prefix, end).clear();
+        for (Path current = key; current != null; current = current.getParent()) {
+            nodes.remove(current.toString());
+        }
+    }
+
+    private static Path toKey(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.chentsov.server.util;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Measures how long a task waits in the event loop queue before it runs. A probe task is submitted
+ * to every event loop periodically, and the average and maximum waiting time are logged once per report period.
+ * Blocking calls made on an event loop show up here as a latency growth for every connection on that loop.
+ */
+public final class EventLoopLatencyMonitor {
+
+    private static final Logger logger = LogManager.getLogger(EventLoopLatencyMonitor.class.getSimpleName());
+    private static final long PROBE_PERIOD_MS = 100;
+    private static final int PROBES_PER_REPORT = 100;
+
+    private EventLoopLatencyMonitor() {
+    }
+
+    /**
+     * Starts probing every executor of the group. Probing stops when the group is shut down
+     *
+     * @param group a group of event loops to be monitored
+     * @param name  a group name for the log
+     */
+    public static void start(EventExecutorGroup group, String name) {
+        int index = 0;
+        for (EventExecutor executor : group) {
+            Probe probe = new Probe(executor, name + "-" + index++);
+            executor.scheduleAtFixedRate(probe, PROBE_PERIOD_MS, PROBE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A probe of a single event loop. All the fields are accessed from that loop only
+     */
+    private static final class Probe implements Runnable {
+
+        private final EventExecutor executor;
+        private final String name;
+        private long totalNanos;
+        private long maxNanos;
+        private int count;
+
+        private Probe(EventExecutor executor, String name) {
+            this.executor = executor;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            final long submitted = System.nanoTime();
+            executor.execute(() -> record(System.nanoTime() - submitted));
+        }
+
+        private void record(long latency) {
+            totalNanos += latency;
+            maxNanos = Math.max(maxNanos, latency);
+            if (++count < PROBES_PER_REPORT) return;
+
+            logger.info(String.format("Task latency of %s: avg %.3f ms, max %.3f ms",
+                    name, totalNanos / 1e6 / count, maxNanos / 1e6));
+            totalNanos = 0;
+            maxNanos = 0;
+            count = 0;
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.chentsov.server.util;
+
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.FileRegion;
+import io.netty.channel.MessageSizeEstimator;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Counts a FileRegion in the outbound buffer of a channel with its size. The default estimator counts it as empty,
+ * so zero-copy file parts never make the channel unwritable and a download would queue the whole file at once
+ * instead of following the client.
+ */
+public final class FileRegionSizeEstimator implements MessageSizeEstimator {
+
+    public static final FileRegionSizeEstimator INSTANCE = new FileRegionSizeEstimator();
+
+    private final Handle handle = new Handle() {
+        private final Handle defaultHandle = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+
+        @Override
+        public int size(Object msg) {
+            if (msg instanceof FileRegion) return (int) Math.min(Integer.MAX_VALUE, ((FileRegion) msg).count());
+            return defaultHandle.size(msg);
+        }
+    };
+
+    private FileRegionSizeEstimator() {
+    }
+
+    @Override
+    public Handle newHandle() {
+        return handle;
+    }
+
+}
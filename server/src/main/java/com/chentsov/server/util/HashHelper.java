@@ -13,6 +13,15 @@ import java.security.spec.KeySpec;
  */
 public class HashHelper {
 
+    //looking up a factory is costly and an instance is not thread-safe, so every thread keeps its own
+    private static final ThreadLocal<SecretKeyFactory> keyFactory = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Mentioned algorithm was not found", e);
+        }
+    });
+
     /**
      * Generates salt for the hashing algorithm
      *
@@ -36,10 +45,9 @@ public class HashHelper {
         try {
             byte[] byteSalt = salt.getBytes(StandardCharsets.UTF_8);
             KeySpec spec = new PBEKeySpec(password.toCharArray(), byteSalt, 65536, 128);
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            byte[] hash = factory.generateSecret(spec).getEncoded();
+            byte[] hash = keyFactory.get().generateSecret(spec).getEncoded();
             return convertBytesToHex(hash);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+        } catch (InvalidKeySpecException e) {
             e.printStackTrace();
             throw new RuntimeException("Mentioned algorithm was not found or the key spec is invalid");
         }
@@ -56,7 +64,6 @@ public class HashHelper {
         for (byte b : hash) {
             result.append(String.format("%02x", b));
         }
-        System.out.println(result.toString());
         return result.toString();
     }
 
@@ -0,0 +1,105 @@
+package com.chentsov.server.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Issues and verifies session tokens. A token is {@code expiry.signature}, where the signature is
+ * HMAC-SHA256 of the login and the expiry time. Verification needs neither the database nor password hashing,
+ * and every server that holds the same key accepts the token.
+ * <p>
+ * The key is taken from the {@code geekcloud.sessionKey} system property (Base64). Otherwise it is read from
+ * the key file, which is generated on the first start.
+ */
+public final class SessionTokens {
+
+    private static final Logger logger = LogManager.getLogger(SessionTokens.class.getSimpleName());
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Path KEY_FILE = Paths.get("server/session.key");
+    private static final long TTL_MS = Long.getLong("geekcloud.sessionTtlMs", TimeUnit.HOURS.toMillis(12));
+
+    private static final SecretKeySpec key = new SecretKeySpec(loadKey(), ALGORITHM);
+    //Mac instances are not thread-safe
+    private static final ThreadLocal<Mac> mac = ThreadLocal.withInitial(() -> {
+        try {
+            Mac instance = Mac.getInstance(ALGORITHM);
+            instance.init(key);
+            return instance;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Cannot initialize " + ALGORITHM, e);
+        }
+    });
+
+    private SessionTokens() {
+    }
+
+    /**
+     * Issues a token for the user
+     *
+     * @param login a login of the authorized user
+     * @return a signed token
+     */
+    public static String issue(String login) {
+        long expiry = System.currentTimeMillis() + TTL_MS;
+        return expiry + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(login, expiry));
+    }
+
+    /**
+     * Checks that the token was issued for the user by a server with the same key and has not expired
+     *
+     * @param login a login presented by the client
+     * @param token a token presented by the client
+     * @return true if the token is valid
+     */
+    public static boolean verify(String login, String token) {
+        if (login == null || token == null) return false;
+        int dot = token.indexOf('.');
+        if (dot < 0) return false;
+        try {
+            long expiry = Long.parseLong(token.substring(0, dot));
+            if (expiry < System.currentTimeMillis()) return false;
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+            return MessageDigest.isEqual(signature, sign(login, expiry));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] sign(String login, long expiry) {
+        return mac.get().doFinal((login + '\n' + expiry).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] loadKey() {
+        String property = System.getProperty("geekcloud.sessionKey");
+        if (property != null) return Base64.getDecoder().decode(property);
+        try {
+            if (Files.exists(KEY_FILE)) return Files.readAllBytes(KEY_FILE);
+            byte[] generated = new byte[32];
+            new SecureRandom().nextBytes(generated);
+            Files.createDirectories(KEY_FILE.toAbsolutePath().getParent());
+            Files.write(KEY_FILE, generated);
+            logger.info("Generated a new session key: " + KEY_FILE);
+            return generated;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load session key", e);
+        }
+    }
+
+}
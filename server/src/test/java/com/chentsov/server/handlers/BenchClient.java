@@ -0,0 +1,86 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.codec.MessageInputStream;
+import com.chentsov.common.codec.MessageOutputStream;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.FileRequest;
+import com.chentsov.common.messages.responses.FileMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A blocking connection of the benchmarks, the same as the client one
+ */
+final class BenchClient implements Closeable {
+
+    private final Socket socket;
+    private final MessageOutputStream out;
+    private final MessageInputStream in;
+
+    BenchClient(int port) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        out = new MessageOutputStream(socket.getOutputStream());
+        in = new MessageInputStream(socket.getInputStream(), ChunkSizer.MAX_CHUNK_SIZE + ChunkSizer.FRAME_OVERHEAD);
+    }
+
+    synchronized void send(AbstractMessage msg) throws IOException {
+        out.writeMessage(msg);
+        out.flush();
+    }
+
+    AbstractMessage receive() throws IOException {
+        return in.readMessage();
+    }
+
+    /**
+     * Downloads a whole file without storing it
+     *
+     * @param stringPath a server path of the file
+     * @param fileSize   size of the file
+     * @return count of the file parts received
+     * @throws IOException in case of I/O errors
+     */
+    int download(String stringPath, long fileSize) throws IOException {
+        send(new FileRequest(Collections.singletonList(stringPath), "downloads"));
+        return receive(fileSize);
+    }
+
+    /**
+     * Downloads a range of a file without storing it
+     *
+     * @param stringPath a server path of the file
+     * @param offset     the first byte of the range
+     * @param length     a length of the range
+     * @return count of the file parts received
+     * @throws IOException in case of I/O errors
+     */
+    int download(String stringPath, long offset, long length) throws IOException {
+        send(new FileRequest(stringPath, "downloads", offset, length));
+        return receive(length);
+    }
+
+    private int receive(long length) throws IOException {
+        int parts = 0;
+        for (long received = 0; received < length; ) {
+            AbstractMessage am = receive();
+            if (!(am instanceof FileMessage)) continue;
+            received += ((FileMessage) am).getData().length;
+            parts++;
+        }
+        return parts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
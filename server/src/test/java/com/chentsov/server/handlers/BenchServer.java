@@ -0,0 +1,95 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.codec.MessageDecoder;
+import com.chentsov.common.codec.MessageEncoder;
+import com.chentsov.server.util.FileRegionSizeEstimator;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * The server pipeline of the benchmarks on an ephemeral port. Every connection is logged in as the bench user
+ * at once, unless the pipeline ends with an {@link AuthHandler}, see {@link #BenchServer(BiConsumer)}.
+ */
+final class BenchServer implements Closeable {
+
+    static final String LOGIN = "bench";
+    private static final int MAX_FRAME_SIZE = ChunkSizer.MAX_CHUNK_SIZE + ChunkSizer.FRAME_OVERHEAD;
+    private static final int DISK_IO_THREADS = Integer.getInteger("geekcloud.diskIoThreads", 16);
+    private static final int WRITE_BUFFER_LOW = Integer.getInteger("geekcloud.writeBufferLow", 1024 * 1024); // 1Mb
+    private static final int WRITE_BUFFER_HIGH = Integer.getInteger("geekcloud.writeBufferHigh", 1024 * 1024 * 4); // 4Mb
+
+    private final EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+    private final EventExecutorGroup diskIoGroup = new DefaultEventExecutorGroup(DISK_IO_THREADS);
+    private final Channel serverChannel;
+
+    /**
+     * Starts a server whose connections are logged in already
+     *
+     * @param storage          a folder of the bench user
+     * @param sizers           sizers of the parts sent to every connection
+     * @param isDataConnection true if the connections carry ranges of large files only
+     */
+    BenchServer(Path storage, Supplier<ChunkSizer> sizers, boolean isDataConnection) {
+        this((pipeline, diskIoGroup) -> pipeline.addLast(new InboundThrottle())
+                .addLast(diskIoGroup, new MainHandler(LOGIN, storage.toString(), sizers.get(), isDataConnection)));
+    }
+
+    /**
+     * Starts a server with the given end of the pipeline, e.g. an AuthHandler
+     *
+     * @param handlers adds the handlers that follow the codec to the pipeline of every connection
+     */
+    BenchServer(BiConsumer<ChannelPipeline, EventExecutorGroup> handlers) {
+        serverChannel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline()
+                                .addLast(new MessageDecoder(MAX_FRAME_SIZE), new MessageEncoder())
+                                .addLast(diskIoGroup, new ChunkedWriteHandler());
+                        handlers.accept(channel.pipeline(), diskIoGroup);
+                    }
+                })
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(WRITE_BUFFER_LOW, WRITE_BUFFER_HIGH))
+                .childOption(ChannelOption.MESSAGE_SIZE_ESTIMATOR, FileRegionSizeEstimator.INSTANCE)
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .syncUninterruptibly()
+                .channel();
+    }
+
+    int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    @Override
+    public void close() {
+        serverChannel.close().syncUninterruptibly();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+        diskIoGroup.shutdownGracefully();
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.FileRequest;
+import com.chentsov.common.messages.responses.FileMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Compares the parts picked by the {@link ChunkSizer} with the fixed 5 mb parts sent before. A file is downloaded
+ * over the loopback and over a {@link DelayProxy}, the throughput shows the per-part overhead and the longest gap
+ * between two parts shows how coarse the progress and the cancellation are.
+ * <p>
+ * Run with {@code java -cp <test classpath> com.chentsov.server.handlers.ChunkSizeBenchmark}
+ */
+public class ChunkSizeBenchmark {
+
+    private static final int FIXED_CHUNK_SIZE = 1024 * 1024 * 5; // 5 mb
+    private static final long FAST_FILE_SIZE = Long.getLong("bench.fastFileSize", 512 * 1024 * 1024); // 512 mb
+    private static final long SLOW_FILE_SIZE = Long.getLong("bench.slowFileSize", 32 * 1024 * 1024); // 32 mb
+    private static final long RTT_MILLIS = Long.getLong("bench.rttMillis", 100);
+    private static final int WINDOW = Integer.getInteger("bench.window", 256 * 1024); // 256 kb
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("chunk-bench");
+        System.setProperty("geekcloud.transfersPath", root.resolve("transfers").toString());
+        Path storage = Files.createDirectories(root.resolve("storage"));
+        Path fast = createFile(storage.resolve("fast.bin"), FAST_FILE_SIZE);
+        Path slow = createFile(storage.resolve("slow.bin"), SLOW_FILE_SIZE);
+        long rttMicros = RTT_MILLIS * 1000;
+
+        run("loopback, adaptive", storage, () -> new ChunkSizer(), fast, 0);
+        run("loopback, fixed 5 mb", storage, ChunkSizeBenchmark::fixed, fast, 0);
+        run("rtt " + RTT_MILLIS + " ms, adaptive", storage, () -> new ChunkSizer(ChunkSizer.MIN_CHUNK_SIZE,
+                ChunkSizer.MAX_CHUNK_SIZE, ChunkSizer.INITIAL_CHUNK_SIZE, rttMicros), slow, RTT_MILLIS);
+        run("rtt " + RTT_MILLIS + " ms, fixed 5 mb", storage, ChunkSizeBenchmark::fixed, slow, RTT_MILLIS);
+    }
+
+    private static ChunkSizer fixed() {
+        return new ChunkSizer(FIXED_CHUNK_SIZE, FIXED_CHUNK_SIZE, FIXED_CHUNK_SIZE, 0);
+    }
+
+    private static void run(String name, Path storage, Supplier<ChunkSizer> sizers, Path file, long rttMillis)
+            throws IOException {
+        long fileSize = Files.size(file);
+        try (BenchServer server = new BenchServer(storage, sizers, false);
+             DelayProxy proxy = rttMillis == 0 ? null : new DelayProxy(server.getPort(), rttMillis, WINDOW);
+             BenchClient client = new BenchClient(proxy == null ? server.getPort() : proxy.getPort())) {
+            //the first download over the loopback warms the JIT and the page cache up
+            if (proxy == null) download(client, file, fileSize);
+            long start = System.nanoTime();
+            long[] stats = download(client, file, fileSize);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-24s %7.1f mb/s, %4d parts, longest gap between parts %5d ms%n", name,
+                    fileSize * 1e9 / elapsed / (1024 * 1024), stats[0], stats[1] / 1_000_000);
+        }
+    }
+
+    /**
+     * @return count of the parts and the longest gap between two parts in nanoseconds
+     */
+    private static long[] download(BenchClient client, Path file, long fileSize) throws IOException {
+        client.send(new FileRequest(Collections.singletonList(file.toString()), "downloads"));
+        long parts = 0;
+        long longestGap = 0;
+        long last = System.nanoTime();
+        for (long received = 0; received < fileSize; ) {
+            AbstractMessage am = client.receive();
+            if (!(am instanceof FileMessage)) continue;
+            long now = System.nanoTime();
+            longestGap = Math.max(longestGap, now - last);
+            last = now;
+            received += ((FileMessage) am).getData().length;
+            parts++;
+        }
+        return new long[]{parts, longestGap};
+    }
+
+    private static Path createFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.codec.MessageDecoder;
+import com.chentsov.common.codec.MessageEncoder;
+import com.chentsov.common.messages.requests.FileListRequest;
+import com.chentsov.common.messages.responses.FileMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.serialization.ClassResolvers;
+import io.netty.handler.codec.serialization.ObjectDecoder;
+import io.netty.handler.codec.serialization.ObjectEncoder;
+
+import java.io.Serializable;
+import java.util.function.Supplier;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Compares the binary wire codec with the Java serialization the server used before, see {@link MessageEncoder}.
+ * Every message is encoded and decoded back in the same thread, so the numbers show the cost of the codec alone.
+ * The old messages are mirrored by the serializable classes below.
+ * <p>
+ * Run with {@code java -cp <test classpath> com.chentsov.server.handlers.CodecBenchmark}
+ */
+public class CodecBenchmark {
+
+    private static final int MAX_FRAME_SIZE = 1024 * 1024 * 100; // 100 mb
+    private static final int CHUNK_SIZE = 1024 * 1024 * 5; // 5 mb
+    private static final int SMALL_MESSAGES = Integer.getInteger("bench.smallMessages", 200_000);
+    private static final int CHUNKS = Integer.getInteger("bench.chunks", 200);
+    private static final int ROUNDS = 3;
+
+    private static final String PATH = "server/cloud_storage/user/documents/reports";
+
+    /**
+     * A message as it was sent before the binary codec
+     */
+    private static class LegacyMessage implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class LegacyFileListRequest extends LegacyMessage {
+        private static final long serialVersionUID = 1L;
+        private final String currentCloudPath;
+
+        private LegacyFileListRequest(String currentCloudPath) {
+            this.currentCloudPath = currentCloudPath;
+        }
+    }
+
+    private static final class LegacyFileMessage extends LegacyMessage {
+        private static final long serialVersionUID = 1L;
+        private final String destination;
+        private final String relativePath;
+        private final byte[] data;
+        private final int part;
+        private final int totalParts;
+
+        private LegacyFileMessage(String destination, String relativePath, byte[] data, int part, int totalParts) {
+            this.destination = destination;
+            this.relativePath = relativePath;
+            this.data = data;
+            this.part = part;
+            this.totalParts = totalParts;
+        }
+    }
+
+    public static void main(String[] args) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (int round = 1; round <= ROUNDS; round++) {
+            //the first round warms the JIT up
+            boolean isReported = round == ROUNDS;
+            double legacySmall = messagesPerSecond(legacy(), () -> new LegacyFileListRequest(PATH), SMALL_MESSAGES);
+            double binarySmall = messagesPerSecond(binary(), () -> new FileListRequest(PATH), SMALL_MESSAGES);
+            double legacyChunks = messagesPerSecond(legacy(),
+                    () -> new LegacyFileMessage(PATH, "video.mp4", chunk, 1, CHUNKS), CHUNKS);
+            double binaryChunks = binaryChunksPerSecond(chunk);
+            if (!isReported) continue;
+            System.out.printf("small messages, msg/s:   serialization %,.0f, binary %,.0f (x%.1f)%n",
+                    legacySmall, binarySmall, binarySmall / legacySmall);
+            System.out.printf("5 mb chunks, mb/s:       serialization %,.0f, binary %,.0f (x%.1f)%n",
+                    legacyChunks * 5, binaryChunks * 5, binaryChunks / legacyChunks);
+        }
+    }
+
+    private static EmbeddedChannel[] legacy() {
+        return new EmbeddedChannel[]{new EmbeddedChannel(new ObjectEncoder()),
+                new EmbeddedChannel(new ObjectDecoder(MAX_FRAME_SIZE, ClassResolvers.cacheDisabled(null)))};
+    }
+
+    private static EmbeddedChannel[] binary() {
+        return new EmbeddedChannel[]{new EmbeddedChannel(new MessageEncoder()),
+                new EmbeddedChannel(new MessageDecoder(MAX_FRAME_SIZE))};
+    }
+
+    private static double messagesPerSecond(EmbeddedChannel[] codec, Supplier<Object> messages, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            codec[0].writeOutbound(messages.get());
+            roundTrip(codec);
+        }
+        return count * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * A file part is sent as a header followed by the data buffer, the way {@link FileMessage#sendRange} does it
+     */
+    private static double binaryChunksPerSecond(byte[] chunk) {
+        EmbeddedChannel[] codec = binary();
+        long start = System.nanoTime();
+        for (int i = 0; i < CHUNKS; i++) {
+            codec[0].writeOutbound(FileMessage.header("video.mp4", PATH, "transfer", (long) i * chunk.length,
+                    (long) CHUNKS * chunk.length, chunk.length), Unpooled.wrappedBuffer(chunk));
+            roundTrip(codec);
+        }
+        return CHUNKS * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void roundTrip(EmbeddedChannel[] codec) {
+        for (ByteBuf encoded = codec[0].readOutbound(); encoded != null; encoded = codec[0].readOutbound()) {
+            codec[1].writeInbound(encoded);
+        }
+        if (codec[1].readInbound() == null) throw new IllegalStateException("Nothing decoded");
+    }
+
+}
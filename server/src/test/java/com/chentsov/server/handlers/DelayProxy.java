@@ -0,0 +1,124 @@
+package com.chentsov.server.handlers;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * A TCP proxy that emulates a long link on the loopback. Every direction of a connection delivers the bytes
+ * after half the round trip time and frees their place in the window after the other half, the way
+ * an acknowledgement comes back, so a single connection moves at most a window per round trip.
+ */
+final class DelayProxy implements Closeable {
+
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private final Channel serverChannel;
+    private final long halfRttNanos;
+    private final int window;
+
+    /**
+     * @param targetPort a port of the server on the loopback
+     * @param rttMillis  an emulated round trip time
+     * @param window     max bytes in flight of every direction of a connection
+     */
+    DelayProxy(int targetPort, long rttMillis, int window) {
+        this.halfRttNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+        this.window = window;
+        serverChannel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.AUTO_READ, false)
+                //a read stops at a single buffer, so the window is not overshot
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator().maxMessagesPerRead(1))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel inbound) {
+                        connect(inbound, targetPort);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .syncUninterruptibly()
+                .channel();
+    }
+
+    private void connect(Channel inbound, int targetPort) {
+        //both sides run on the same event loop, so the windows need no synchronization
+        ChannelFuture connected = new Bootstrap()
+                .group(inbound.eventLoop())
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator().maxMessagesPerRead(1))
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(new InetSocketAddress("127.0.0.1", targetPort));
+        connected.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                inbound.close();
+                return;
+            }
+            Channel outbound = future.channel();
+            inbound.pipeline().addLast(new Link(outbound));
+            outbound.pipeline().addLast(new Link(inbound));
+            inbound.read();
+            outbound.read();
+        });
+    }
+
+    int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    @Override
+    public void close() {
+        serverChannel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    /**
+     * A direction of a connection, from the channel of the handler to the peer
+     */
+    private final class Link extends ChannelInboundHandlerAdapter {
+        private final Channel peer;
+        private long inFlight;
+
+        private Link(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext context, Object msg) {
+            int length = ((ByteBuf) msg).readableBytes();
+            inFlight += length;
+            context.executor().schedule(() -> peer.writeAndFlush(msg).addListener(written ->
+                    context.executor().schedule(() -> acknowledged(context, length), halfRttNanos, TimeUnit.NANOSECONDS)),
+                    halfRttNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext context) {
+            if (inFlight < window) context.read();
+        }
+
+        private void acknowledged(ChannelHandlerContext context, int length) {
+            boolean isBlocked = inFlight >= window;
+            inFlight -= length;
+            if (isBlocked && inFlight < window) context.read();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext context) {
+            context.executor().schedule(() -> peer.close(), halfRttNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Downloads a file of its own to each of K clients at once and reports the total throughput along with
+ * the time the first and the last client have finished. Downloads that wait for each other finish
+ * one after another, concurrent ones finish together.
+ * <p>
+ * Run with {@code java -cp <test classpath> com.chentsov.server.handlers.DownloadBenchmark}
+ */
+public class DownloadBenchmark {
+
+    private static final long FILE_SIZE = Long.getLong("bench.fileSize", 64 * 1024 * 1024); // 64 mb
+    private static final int[] CLIENTS = {1, 2, 4, 8, 16};
+    private static final int ROUNDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("download-bench");
+        System.setProperty("geekcloud.transfersPath", root.resolve("transfers").toString());
+        Path storage = Files.createDirectories(root.resolve("storage"));
+        int maxClients = CLIENTS[CLIENTS.length - 1];
+        for (int i = 0; i < maxClients; i++) {
+            createFile(storage.resolve("file" + i), i);
+        }
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + FILE_SIZE / (1024 * 1024)
+                + " mb per client");
+        try (BenchServer server = new BenchServer(storage, ChunkSizer::new, false)) {
+            for (int round = 1; round <= ROUNDS; round++) {
+                //the first round warms the JIT and the page cache up
+                for (int clients : CLIENTS) {
+                    long[] finished = downloadAll(server.getPort(), storage, clients);
+                    if (round < ROUNDS) continue;
+                    System.out.printf("K = %2d: %.0f mb/s in total, first done in %d ms, last in %d ms%n", clients,
+                            clients * FILE_SIZE * 1e3 / finished[1] / (1024 * 1024), finished[0], finished[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds the first and the last client have taken
+     */
+    private static long[] downloadAll(int port, Path storage, int clients) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<BenchClient> connected = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                connected.add(new BenchClient(port));
+            }
+            long start = System.nanoTime();
+            List<Future<Long>> downloads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                BenchClient client = connected.get(i);
+                String file = storage.resolve("file" + i).toString();
+                downloads.add(executor.submit(() -> {
+                    try (BenchClient closed = client) {
+                        closed.download(file, FILE_SIZE);
+                    }
+                    return (System.nanoTime() - start) / 1_000_000;
+                }));
+            }
+            long first = Long.MAX_VALUE;
+            long last = 0;
+            for (Future<Long> download : downloads) {
+                first = Math.min(first, download.get());
+                last = Math.max(last, download.get());
+            }
+            return new long[]{first, last};
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void createFile(Path file, int seed) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(seed).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < FILE_SIZE; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, FILE_SIZE - written));
+            }
+        }
+    }
+
+}
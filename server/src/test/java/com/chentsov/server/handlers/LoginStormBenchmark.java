@@ -0,0 +1,137 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.messages.AbstractMessage;
+import com.chentsov.common.messages.requests.AuthRequest;
+import com.chentsov.common.messages.requests.FileListRequest;
+import com.chentsov.common.messages.responses.AuthResponse;
+import com.chentsov.common.messages.responses.FileListResponse;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Floods the server with password logins from many connections and reports the logins done and rejected
+ * per second. Meanwhile a logged in client lists its folder over and over, the latency of the listings
+ * is compared with the one of a quiet server: password hashing must not stall the event loops.
+ * <p>
+ * The users are stored in ./h2db and their folders are created in ./server/cloud_storage, so run it
+ * from a scratch directory with {@code java -cp <test classpath> com.chentsov.server.handlers.LoginStormBenchmark}
+ */
+public class LoginStormBenchmark {
+
+    private static final int STORM_CLIENTS = Integer.getInteger("bench.stormClients", 128);
+    private static final long PHASE_MILLIS = Long.getLong("bench.phaseMillis", 5000);
+    //the same limits as the server has
+    private static final int AUTH_THREADS = Integer.getInteger("geekcloud.authThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int AUTH_QUEUE_SIZE = Integer.getInteger("geekcloud.authQueueSize", 64);
+    private static final String PASSWORD = "password";
+
+    public static void main(String[] args) throws Exception {
+        String login = "storm" + System.currentTimeMillis();
+        ExecutorService authPool = new ThreadPoolExecutor(AUTH_THREADS, AUTH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(AUTH_QUEUE_SIZE), new DefaultThreadFactory("auth"));
+        ExecutorService stormPool = Executors.newFixedThreadPool(STORM_CLIENTS);
+        try (BenchServer server = new BenchServer((pipeline, diskIoGroup) ->
+                pipeline.addLast(new AuthHandler(diskIoGroup, authPool)));
+             BenchClient client = new BenchClient(server.getPort())) {
+            if (!login(client, new AuthRequest(login, PASSWORD, true, 0)).success)
+                throw new IllegalStateException("User is not created");
+            if (!login(client, new AuthRequest(login, PASSWORD, false, 0)).success)
+                throw new IllegalStateException("User is not logged in");
+
+            System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + AUTH_THREADS
+                    + " auth threads, auth queue " + AUTH_QUEUE_SIZE + ", " + STORM_CLIENTS + " storm clients");
+            //the first phase warms the JIT and the listing cache up
+            listings(client, PHASE_MILLIS);
+            report("quiet, listing", listings(client, PHASE_MILLIS));
+
+            long deadline = System.currentTimeMillis() + PHASE_MILLIS;
+            List<Future<List<List<Long>>>> storm = new ArrayList<>();
+            for (int i = 0; i < STORM_CLIENTS; i++) {
+                storm.add(stormPool.submit(() -> storm(server.getPort(), login, deadline)));
+            }
+            List<Long> listed = listings(client, PHASE_MILLIS);
+            List<Long> done = new ArrayList<>();
+            List<Long> rejected = new ArrayList<>();
+            for (Future<List<List<Long>>> result : storm) {
+                done.addAll(result.get().get(0));
+                rejected.addAll(result.get().get(1));
+            }
+            report("storm, listing", listed);
+            report("storm, login done", done);
+            report("storm, login rejected", rejected);
+        } finally {
+            stormPool.shutdown();
+            authPool.shutdown();
+        }
+    }
+
+    /**
+     * Logs in over and over until the deadline
+     *
+     * @return latencies of the logins done and of the rejected ones, in nanoseconds
+     */
+    private static List<List<Long>> storm(int port, String login, long deadline) throws IOException {
+        List<List<Long>> latencies = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        try (BenchClient client = new BenchClient(port)) {
+            while (System.currentTimeMillis() < deadline) {
+                long start = System.nanoTime();
+                //the password is right, so a failed login has been rejected by the full auth queue
+                boolean isDone = login(client, new AuthRequest(login, PASSWORD, false, 0)).success;
+                latencies.get(isDone ? 0 : 1).add(System.nanoTime() - start);
+            }
+        }
+        return latencies;
+    }
+
+    private static List<Long> listings(BenchClient client, long millis) throws IOException {
+        List<Long> latencies = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            long start = System.nanoTime();
+            client.send(new FileListRequest(""));
+            AbstractMessage am;
+            do {
+                am = client.receive();
+            } while (!(am instanceof FileListResponse) || !((FileListResponse) am).isLast());
+            latencies.add(System.nanoTime() - start);
+        }
+        return latencies;
+    }
+
+    private static AuthResponse login(BenchClient client, AuthRequest request) throws IOException {
+        client.send(request);
+        AbstractMessage am;
+        do {
+            am = client.receive();
+        } while (!(am instanceof AuthResponse));
+        return (AuthResponse) am;
+    }
+
+    private static void report(String name, List<Long> latencies) {
+        Collections.sort(latencies);
+        System.out.printf("%-24s %7.1f/s, p50 %7.2f ms, p99 %7.2f ms, max %7.2f ms%n", name,
+                latencies.size() * 1000.0 / PHASE_MILLIS, percentile(latencies, 0.5),
+                percentile(latencies, 0.99), percentile(latencies, 1));
+    }
+
+    private static double percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(fraction * sorted.size()) - 1);
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+}
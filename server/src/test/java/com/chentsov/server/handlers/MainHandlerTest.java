@@ -0,0 +1,117 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.messages.responses.FileBatchMessage;
+import com.chentsov.common.messages.responses.FileChangeEvent;
+import com.chentsov.common.messages.responses.FileListResponse;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Drives the {@link MainHandler} through an EmbeddedChannel and checks that the listings
+ * and the pushed changes of a bulk upload are coalesced, see {@link RefreshDebouncer}.
+ */
+public class MainHandlerTest {
+
+    private static final int FILES = 50;
+    //longer than the quiet delay of the RefreshDebouncer
+    private static final long QUIET_MILLIS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path storage;
+    private Path source;
+
+    @BeforeClass
+    public static void setTransfersPath() throws IOException {
+        System.setProperty("geekcloud.transfersPath", Files.createTempDirectory("transfers").toString());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        storage = folder.newFolder("storage").toPath();
+        source = folder.newFolder("source").toPath();
+        for (int i = 0; i < FILES; i++) {
+            Files.write(source.resolve("file" + i), new byte[]{(byte) i});
+        }
+    }
+
+    @Test
+    public void bulkUploadIsListedOnce() throws Exception {
+        EmbeddedChannel channel = channel("bulk");
+        upload(channel);
+        assertNull("the listing is sent before the upload is over", channel.readOutbound());
+
+        settle(channel);
+        List<Object> sent = readAll(channel);
+        assertEquals(1, sent.size());
+        FileListResponse listing = (FileListResponse) sent.get(0);
+        assertEquals(FILES, listing.total);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void bulkUploadIsPushedOnceToOtherSession() throws Exception {
+        EmbeddedChannel origin = channel("push");
+        EmbeddedChannel other = channel("push");
+        upload(origin);
+        //a file changed twice is pushed once
+        upload(origin);
+
+        settle(other);
+        List<Object> pushed = readAll(other);
+        assertEquals(FILES, pushed.size());
+        for (Object message : pushed) {
+            assertEquals(FileChangeEvent.Kind.CHANGED, ((FileChangeEvent) message).kind);
+        }
+        origin.finishAndReleaseAll();
+        other.finishAndReleaseAll();
+    }
+
+    private EmbeddedChannel channel(String login) {
+        return new EmbeddedChannel(new ChunkedWriteHandler(),
+                new MainHandler(login, storage.toString(), new ChunkSizer(), false));
+    }
+
+    /**
+     * Uploads every file in a batch of its own, the way a bulk upload of large batches completes
+     */
+    private void upload(EmbeddedChannel channel) throws IOException {
+        for (int i = 0; i < FILES; i++) {
+            FileBatchMessage.Builder builder = new FileBatchMessage.Builder(storage.toString(), 1024);
+            builder.addFile("file" + i, source.resolve("file" + i), 1);
+            channel.writeInbound(builder.build());
+        }
+    }
+
+    private static void settle(EmbeddedChannel channel) throws InterruptedException {
+        channel.runPendingTasks();
+        Thread.sleep(QUIET_MILLIS);
+        channel.runScheduledPendingTasks();
+    }
+
+    private static List<Object> readAll(EmbeddedChannel channel) {
+        List<Object> messages = new ArrayList<>();
+        for (Object message = channel.readOutbound(); message != null; message = channel.readOutbound()) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.common.ChunkSizer;
+import com.chentsov.common.messages.responses.FileMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Uploads and downloads a large file over N data connections through a {@link DelayProxy}, every connection
+ * moves its own range the way the client ParallelTransfer does, and reports the throughput for every N.
+ * <p>
+ * Run with {@code java -cp <test classpath> com.chentsov.server.handlers.ParallelTransferBenchmark}
+ */
+public class ParallelTransferBenchmark {
+
+    private static final long FILE_SIZE = Long.getLong("bench.fileSize", 128 * 1024 * 1024); // 128 mb
+    private static final long RTT_MILLIS = Long.getLong("bench.rttMillis", 100);
+    private static final int WINDOW = Integer.getInteger("bench.window", 1024 * 1024); // 1 mb
+    private static final int[] CONNECTIONS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("parallel-bench");
+        System.setProperty("geekcloud.transfersPath", root.resolve("transfers").toString());
+        Path storage = Files.createDirectories(root.resolve("storage"));
+        Path source = createFile(root.resolve("source.bin"));
+
+        System.out.println("rtt " + RTT_MILLIS + " ms, window " + WINDOW / 1024 + " kb, file " + FILE_SIZE / (1024 * 1024) + " mb");
+        try (BenchServer server = new BenchServer(storage, ChunkSizer::new, true);
+             DelayProxy proxy = new DelayProxy(server.getPort(), RTT_MILLIS, WINDOW)) {
+            for (int connections : CONNECTIONS) {
+                double upload = upload(proxy.getPort(), source, storage, connections);
+                double download = download(proxy.getPort(), storage.resolve("source.bin"), connections);
+                System.out.printf("N = %d: upload %.1f mb/s, download %.1f mb/s%n", connections, upload, download);
+            }
+        }
+    }
+
+    private static double upload(int port, Path source, Path storage, int connections) throws Exception {
+        Path destination = storage.resolve(source.getFileName());
+        Files.deleteIfExists(destination);
+        String transferId = UUID.randomUUID().toString();
+        long start = System.nanoTime();
+        runRanges(connections, (client, from, to) -> FileMessage.sendRange(source, source.getFileName().toString(),
+                storage.toString(), transferId, FILE_SIZE, from, to, msg -> {
+                    try {
+                        client.send(msg);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, new ChunkSizer()), port);
+        //the last range is written by the server after the client has sent it
+        while (!Files.exists(destination)) {
+            Thread.sleep(1);
+        }
+        return megabytesPerSecond(System.nanoTime() - start);
+    }
+
+    private static double download(int port, Path file, int connections) throws Exception {
+        long start = System.nanoTime();
+        runRanges(connections, (client, from, to) -> client.download(file.toString(), from, to - from), port);
+        return megabytesPerSecond(System.nanoTime() - start);
+    }
+
+    private interface RangeTransfer {
+        void run(BenchClient client, long from, long to) throws IOException;
+    }
+
+    private static void runRanges(int connections, RangeTransfer transfer, int port) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try {
+            List<Future<?>> ranges = new ArrayList<>();
+            long rangeSize = (FILE_SIZE + connections - 1) / connections;
+            for (int i = 0; i < connections; i++) {
+                long from = i * rangeSize;
+                long to = Math.min(FILE_SIZE, from + rangeSize);
+                ranges.add(executor.submit(() -> {
+                    try (BenchClient client = new BenchClient(port)) {
+                        transfer.run(client, from, to);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> range : ranges) {
+                range.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Path createFile(Path file) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < FILE_SIZE; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, FILE_SIZE - written));
+            }
+        }
+        return file;
+    }
+
+    private static double megabytesPerSecond(long nanos) {
+        return FILE_SIZE * 1e9 / nanos / (1024 * 1024);
+    }
+
+}
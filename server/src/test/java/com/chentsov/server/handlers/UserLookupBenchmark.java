@@ -0,0 +1,102 @@
+package com.chentsov.server.handlers;
+
+import com.chentsov.server.dbService.DBService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Evgenii Chentsov
+ * <p>
+ * Looks random users up by their usernames from several threads at once and reports the lookups per second
+ * with their latency. Every lookup goes to the DB through the connection pool and the username index,
+ * the cached lookups of the recent users are reported apart.
+ * <p>
+ * The users are stored in ./h2db, so run it from a scratch directory
+ * with {@code java -cp <test classpath> com.chentsov.server.handlers.UserLookupBenchmark}
+ */
+public class UserLookupBenchmark {
+
+    private static final int USERS = Integer.getInteger("bench.users", 10_000);
+    private static final long PHASE_MILLIS = Long.getLong("bench.phaseMillis", 3000);
+    private static final int[] THREADS = {1, 4, 16};
+
+    public static void main(String[] args) throws Exception {
+        DBService dbService = DBService.getInstance();
+        try {
+            long start = System.currentTimeMillis();
+            //the users of a previous run are kept, an occupied username is not added again
+            for (int i = 0; i < USERS; i++) {
+                dbService.addUser(username(i), "hash", "salt");
+            }
+            System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + USERS + " users, added in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            //the first phase warms the JIT and the pool up
+            run(dbService, THREADS[THREADS.length - 1], false);
+            for (int threads : THREADS) {
+                report("db, " + threads + " threads", run(dbService, threads, false));
+            }
+            for (int threads : THREADS) {
+                report("cached, " + threads + " threads", run(dbService, threads, true));
+            }
+        } finally {
+            dbService.close();
+        }
+    }
+
+    /**
+     * @param isCached false if every lookup must go to the DB
+     * @return latencies of the lookups in nanoseconds
+     */
+    private static List<Long> run(DBService dbService, int threads, boolean isCached) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long deadline = System.currentTimeMillis() + PHASE_MILLIS;
+            List<Future<List<Long>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    List<Long> latencies = new ArrayList<>();
+                    while (System.currentTimeMillis() < deadline) {
+                        //the cached lookups go to a few hundred recent users
+                        String username = username(ThreadLocalRandom.current().nextInt(isCached ? 500 : USERS));
+                        if (!isCached) dbService.invalidate(username);
+                        long start = System.nanoTime();
+                        if (dbService.get(username) == null) throw new IllegalStateException("No user " + username);
+                        latencies.add(System.nanoTime() - start);
+                    }
+                    return latencies;
+                }));
+            }
+            List<Long> latencies = new ArrayList<>();
+            for (Future<List<Long>> result : results) {
+                latencies.addAll(result.get());
+            }
+            return latencies;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String username(int index) {
+        return "lookup" + index;
+    }
+
+    private static void report(String name, List<Long> latencies) {
+        Collections.sort(latencies);
+        System.out.printf("%-20s %,10.0f/s, p50 %7.3f ms, p99 %7.3f ms, max %7.2f ms%n", name,
+                latencies.size() * 1000.0 / PHASE_MILLIS, percentile(latencies, 0.5),
+                percentile(latencies, 0.99), percentile(latencies, 1));
+    }
+
+    private static double percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(fraction * sorted.size()) - 1);
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+}